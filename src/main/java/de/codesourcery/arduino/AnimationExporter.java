@@ -0,0 +1,421 @@
+package de.codesourcery.arduino;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Renders the frames of a project to an animated GIF or a PNG contact sheet.
+ *
+ * Frames are rasterized in parallel but only a small window of them is kept
+ * in memory while the ImageIO writer encodes the output, so memory use does
+ * not depend on the number of frames.
+ */
+public final class AnimationExporter
+{
+    private static final int GAP_GRAY = 0x40;
+
+    // palette index i is brightness level i, gap is the index of the contact sheet grid color
+    private record Palette(IndexColorModel model, int gap)
+    {
+        static Palette of(Image frame)
+        {
+            final int levels = frame.getMaxLevel() + 1;
+            // with 8 bits per pixel there is no free index, use the level closest to the grid color
+            final int size = Math.min( 256, levels + 1 );
+            final byte[] gray = new byte[size];
+            for ( int level = 0; level < levels; level++ ) {
+                gray[level] = (byte) frame.getColor( level ).getRed();
+            }
+            if ( size > levels )
+            {
+                gray[levels] = GAP_GRAY;
+                return new Palette( new IndexColorModel( 8, size, gray, gray, gray ), levels );
+            }
+            final int gap = Math.round( GAP_GRAY * frame.getMaxLevel() / 255f );
+            return new Palette( new IndexColorModel( 8, size, gray, gray, gray ), gap );
+        }
+    }
+
+    private final int pixelSize;
+    private IntConsumer progress = framesDone -> {};
+
+    public AnimationExporter(int pixelSize)
+    {
+        Validate.isTrue( pixelSize > 0, "pixel size must be > 0" );
+        this.pixelSize = pixelSize;
+    }
+
+    /**
+     * Called with the number of frames written so far while exporting.
+     * Throwing a runtime exception (e.g. from {@link CancellationToken#throwIfCancelled()})
+     * aborts the export.
+     */
+    public AnimationExporter setProgressListener(IntConsumer framesDone)
+    {
+        Validate.notNull( framesDone, "listener must not be null" );
+        this.progress = framesDone;
+        return this;
+    }
+
+    public void exportGif(Project project, File file) throws IOException
+    {
+        Validate.notNull( project, "project must not be null" );
+        Validate.notNull( file, "file must not be null" );
+        project.flattenLayers();
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.READ ) )
+        {
+            try ( ImageOutputStream out = new FileChannelImageOutputStream( channel ) ) {
+                writeGif( project.getImages(), project.getAnimationSpeedMillis(), out );
+            }
+        }
+    }
+
+    // streams the frames of a timeline, only the frames being rasterized exist at any time
+    public void exportGif(Timeline timeline, int delayMillis, File file) throws IOException
+    {
+        Validate.notNull( timeline, "timeline must not be null" );
+        Validate.notNull( file, "file must not be null" );
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.READ ) )
+        {
+            try ( ImageOutputStream out = new FileChannelImageOutputStream( channel ) )
+            {
+                final Image probe = new Image( timeline.getStore(), timeline.getBitsPerPixel() );
+                final Palette palette;
+                try {
+                    palette = Palette.of( probe );
+                } finally {
+                    probe.release();
+                }
+                writeGif( timeline.getFrameCount(), timeline.getStore().width, timeline.getStore().height, palette, idx -> {
+                    final Image frame = timeline.createFrame( idx );
+                    try {
+                        return rasterize( frame, palette );
+                    } finally {
+                        frame.release();
+                    }
+                }, delayMillis, out );
+            }
+        }
+    }
+
+    public void writeGif(List<Image> frames, int delayMillis, ImageOutputStream out) throws IOException
+    {
+        Validate.notEmpty( frames, "frames must not be null or empty" );
+        final Palette palette = Palette.of( frames.getFirst() );
+        writeGif( frames.size(), frames.getFirst().getWidth(), frames.getFirst().getHeight(), palette,
+            idx -> rasterize( frames.get( idx ), palette ), delayMillis, out );
+    }
+
+    private void writeGif(int frameCount, int frameWidth, int frameHeight, Palette palette, IntFunction<BufferedImage> rasterizer,
+                          int delayMillis, ImageOutputStream out) throws IOException
+    {
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName( "gif" ).next();
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final ExecutorService pool = Executors.newFixedThreadPool( threads );
+        try
+        {
+            writer.setOutput( out );
+            writer.prepareWriteSequence( null );
+
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            final int width = frameWidth * pixelSize;
+            final int height = frameHeight * pixelSize;
+            final ImageTypeSpecifier type = new ImageTypeSpecifier( palette.model(), palette.model().createCompatibleSampleModel( width, height ) );
+
+            final IIOMetadata firstFrameMetadata = gifMetadata( writer, type, param, delayMillis, true );
+            final IIOMetadata frameMetadata = gifMetadata( writer, type, param, delayMillis, false );
+
+            // keep at most two frames per thread in flight
+            final Deque<Future<BufferedImage>> window = new ArrayDeque<>();
+            int next = 0;
+            for ( int i = 0; i < frameCount; i++ )
+            {
+                while ( next < frameCount && window.size() < 2 * threads )
+                {
+                    final int frame = next++;
+                    window.add( pool.submit( () -> rasterizer.apply( frame ) ) );
+                }
+                final BufferedImage img = window.removeFirst().get();
+                writer.writeToSequence( new IIOImage( img, null, i == 0 ? firstFrameMetadata : frameMetadata ), param );
+                progress.accept( i + 1 );
+            }
+            writer.endWriteSequence();
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted", e );
+        }
+        catch( ExecutionException e )
+        {
+            throw new IOException( "Rasterizing frame failed", e.getCause() );
+        }
+        finally
+        {
+            pool.shutdownNow();
+            writer.dispose();
+        }
+    }
+
+    private static IIOMetadata gifMetadata(ImageWriter writer, ImageTypeSpecifier type, ImageWriteParam param,
+                                           int delayMillis, boolean firstFrame) throws IOException
+    {
+        final IIOMetadata metadata = writer.getDefaultImageMetadata( type, param );
+        final String format = metadata.getNativeMetadataFormatName();
+        final IIOMetadataNode root = new IIOMetadataNode( format );
+
+        final IIOMetadataNode control = new IIOMetadataNode( "GraphicControlExtension" );
+        control.setAttribute( "disposalMethod", "none" );
+        control.setAttribute( "userInputFlag", "FALSE" );
+        control.setAttribute( "transparentColorFlag", "FALSE" );
+        control.setAttribute( "delayTime", Integer.toString( Math.max( 1, Math.round( delayMillis / 10f ) ) ) );
+        control.setAttribute( "transparentColorIndex", "0" );
+        root.appendChild( control );
+
+        if ( firstFrame )
+        {
+            // loop forever
+            final IIOMetadataNode extensions = new IIOMetadataNode( "ApplicationExtensions" );
+            final IIOMetadataNode loop = new IIOMetadataNode( "ApplicationExtension" );
+            loop.setAttribute( "applicationID", "NETSCAPE" );
+            loop.setAttribute( "authenticationCode", "2.0" );
+            loop.setUserObject( new byte[] { 1, 0, 0 } );
+            extensions.appendChild( loop );
+            root.appendChild( extensions );
+        }
+        metadata.mergeTree( format, root );
+        return metadata;
+    }
+
+    private BufferedImage rasterize(Image frame, Palette palette)
+    {
+        final BufferedImage img = new BufferedImage( frame.getWidth() * pixelSize, frame.getHeight() * pixelSize,
+            BufferedImage.TYPE_BYTE_INDEXED, palette.model() );
+        rasterize( frame, img.getRaster(), 0, 0 );
+        return img;
+    }
+
+    private void rasterize(Image frame, WritableRaster raster, int x0, int y0)
+    {
+        final int[] samples = new int[pixelSize * pixelSize];
+        int filled = 0;
+        for ( int y = 0; y < frame.getHeight(); y++ )
+        {
+            for ( int x = 0; x < frame.getWidth(); x++ )
+            {
+                final int level = frame.getLevel( x, y );
+                if ( level != filled ) {
+                    Arrays.fill( samples, level );
+                    filled = level;
+                }
+                raster.setSamples( x0 + x * pixelSize, y0 + y * pixelSize, pixelSize, pixelSize, 0, samples );
+            }
+        }
+    }
+
+    public void writePng(Image frame, ImageOutputStream out) throws IOException
+    {
+        Validate.notNull( frame, "frame must not be null" );
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName( "png" ).next();
+        try
+        {
+            writer.setOutput( out );
+            writer.write( rasterize( frame, Palette.of( frame ) ) );
+        }
+        finally
+        {
+            writer.dispose();
+        }
+    }
+
+    public void exportContactSheet(Project project, int columns, File file) throws IOException
+    {
+        Validate.notNull( project, "project must not be null" );
+        Validate.notNull( file, "file must not be null" );
+        project.flattenLayers();
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, StandardOpenOption.READ ) )
+        {
+            try ( ImageOutputStream out = new FileChannelImageOutputStream( channel ) ) {
+                writeContactSheet( project.getImages(), columns, out );
+            }
+        }
+    }
+
+    public void writeContactSheet(List<Image> frames, int columns, ImageOutputStream out) throws IOException
+    {
+        Validate.notEmpty( frames, "frames must not be null or empty" );
+        Validate.isTrue( columns > 0, "columns must be > 0" );
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName( "png" ).next();
+        try
+        {
+            writer.setOutput( out );
+            writer.write( new ContactSheet( frames, Math.min( columns, frames.size() ) ) );
+        }
+        finally
+        {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Lazily rendered contact sheet. The PNG writer pulls one scanline at a time,
+     * only the row of frames covering that scanline is rasterized (in parallel)
+     * while the next row is already prepared in the background.
+     */
+    private final class ContactSheet implements RenderedImage
+    {
+        private final List<Image> frames;
+        private final int columns;
+        private final int cellWidth;
+        private final int cellHeight;
+        private final int width;
+        private final int height;
+        private final Palette palette;
+        private final SampleModel sampleModel;
+
+        private int currentRow = -1;
+        private WritableRaster currentStrip;
+        private CompletableFuture<WritableRaster> nextStrip;
+
+        ContactSheet(List<Image> frames, int columns)
+        {
+            this.frames = frames;
+            this.columns = columns;
+            final int rows = ( frames.size() + columns - 1 ) / columns;
+            this.cellWidth = frames.getFirst().getWidth() * pixelSize + 1;
+            this.cellHeight = frames.getFirst().getHeight() * pixelSize + 1;
+            this.width = columns * cellWidth + 1;
+            this.height = rows * cellHeight + 1;
+            this.palette = Palette.of( frames.getFirst() );
+            this.sampleModel = palette.model().createCompatibleSampleModel( width, height );
+        }
+
+        private WritableRaster rasterizeRow(int row)
+        {
+            final WritableRaster strip = palette.model().createCompatibleWritableRaster( width, cellHeight + 1 );
+            final int[] gap = new int[width];
+            Arrays.fill( gap, palette.gap() );
+            strip.setSamples( 0, 0, width, 1, 0, gap );
+            strip.setSamples( 0, cellHeight, width, 1, 0, gap );
+            final int first = row * columns;
+            IntStream.range( 0, columns ).parallel().forEach( col -> {
+                final int x0 = col * cellWidth;
+                final int[] vertical = new int[cellHeight];
+                Arrays.fill( vertical, palette.gap() );
+                strip.setSamples( x0, 0, 1, cellHeight, 0, vertical );
+                strip.setSamples( x0 + cellWidth, 0, 1, cellHeight, 0, vertical );
+                if ( first + col < frames.size() ) {
+                    rasterize( frames.get( first + col ), strip, x0 + 1, 1 );
+                }
+            } );
+            return strip;
+        }
+
+        private Raster strip(int row)
+        {
+            if ( row != currentRow )
+            {
+                if ( nextStrip != null && row == currentRow + 1 ) {
+                    currentStrip = nextStrip.join();
+                } else {
+                    currentStrip = rasterizeRow( row );
+                }
+                currentRow = row;
+                progress.accept( Math.min( frames.size(), ( row + 1 ) * columns ) );
+                final int rows = ( height - 1 ) / cellHeight;
+                nextStrip = row + 1 < rows ? CompletableFuture.supplyAsync( () -> rasterizeRow( row + 1 ) ) : null;
+            }
+            return currentStrip;
+        }
+
+        @Override
+        public Raster getData(Rectangle rect)
+        {
+            final WritableRaster result = palette.model().createCompatibleWritableRaster( rect.width, rect.height )
+                .createWritableTranslatedChild( rect.x, rect.y );
+            for ( int y = rect.y; y < rect.y + rect.height; y++ )
+            {
+                final int row = Math.min( y / cellHeight, ( height - 1 ) / cellHeight - 1 );
+                final Raster strip = strip( row );
+                final int stripY = y - row * cellHeight;
+                result.setDataElements( rect.x, y, strip.createChild( rect.x, stripY, rect.width, 1, 0, 0, null ) );
+            }
+            return result;
+        }
+
+        @Override
+        public Raster getData() {
+            return getData( new Rectangle( 0, 0, width, height ) );
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster)
+        {
+            final Rectangle bounds = raster == null ? new Rectangle( 0, 0, width, height ) : raster.getBounds();
+            final Raster data = getData( bounds );
+            if ( raster == null ) {
+                return (WritableRaster) data;
+            }
+            raster.setRect( data );
+            return raster;
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            return getData();
+        }
+
+        @Override public Vector<RenderedImage> getSources() { return null; }
+        @Override public Object getProperty(String name) { return java.awt.Image.UndefinedProperty; }
+        @Override public String[] getPropertyNames() { return null; }
+        @Override public ColorModel getColorModel() { return palette.model(); }
+        @Override public SampleModel getSampleModel() { return sampleModel; }
+        @Override public int getWidth() { return width; }
+        @Override public int getHeight() { return height; }
+        @Override public int getMinX() { return 0; }
+        @Override public int getMinY() { return 0; }
+        @Override public int getNumXTiles() { return 1; }
+        @Override public int getNumYTiles() { return 1; }
+        @Override public int getMinTileX() { return 0; }
+        @Override public int getMinTileY() { return 0; }
+        @Override public int getTileWidth() { return width; }
+        @Override public int getTileHeight() { return height; }
+        @Override public int getTileGridXOffset() { return 0; }
+        @Override public int getTileGridYOffset() { return 0; }
+    }
+}
@@ -0,0 +1,61 @@
+package de.codesourcery.arduino;
+
+/**
+ * Bit-parallel operations on 8x8 bit matrices packed into a long.
+ *
+ * Byte i holds column i, bit j of that byte is row j (bit 0 = top row),
+ * which is how 8x8 frames are stored in a {@link FrameStore}.
+ */
+public final class BitMatrix
+{
+    private BitMatrix() {
+    }
+
+    // mirrors along the main diagonal, afterwards byte i holds row i
+    public static long transpose(long m)
+    {
+        long t = 0x0f0f0f0f00000000L & ( m ^ ( m << 28 ) );
+        m ^= t ^ ( t >>> 28 );
+        t = 0x3333000033330000L & ( m ^ ( m << 14 ) );
+        m ^= t ^ ( t >>> 14 );
+        t = 0x5500550055005500L & ( m ^ ( m << 7 ) );
+        m ^= t ^ ( t >>> 7 );
+        return m;
+    }
+
+    // swaps left and right
+    public static long flipHorizontal(long m) {
+        return Long.reverseBytes( m );
+    }
+
+    // swaps top and bottom
+    public static long flipVertical(long m) {
+        return reverseBitsInBytes( m );
+    }
+
+    public static long reverseBitsInBytes(long m) {
+        return Long.reverse( Long.reverseBytes( m ) );
+    }
+
+    public static long rotate(long m, DisplayLayout.Rotation clockwise)
+    {
+        return switch ( clockwise )
+        {
+            case R0 -> m;
+            case R90 -> flipHorizontal( transpose( m ) );
+            case R180 -> flipHorizontal( flipVertical( m ) );
+            case R270 -> flipVertical( transpose( m ) );
+        };
+    }
+
+    // undoes rotate(m, clockwise)
+    public static long unrotate(long m, DisplayLayout.Rotation clockwise)
+    {
+        return switch ( clockwise )
+        {
+            case R0, R180 -> rotate( m, clockwise );
+            case R90 -> rotate( m, DisplayLayout.Rotation.R270 );
+            case R270 -> rotate( m, DisplayLayout.Rotation.R90 );
+        };
+    }
+}
@@ -0,0 +1,151 @@
+package de.codesourcery.arduino;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Fixed set of glyphs, each glyph being a run of pixel columns (bit 0 =
+ * top row) just like the columns of a frame.
+ *
+ * Characters without a glyph are drawn using the glyph for '?'.
+ */
+public final class BitmapFont
+{
+    // classic 5x8 LCD font for ASCII 0x20..0x7e, 5 columns per glyph
+    private static final int[] FONT_5X8 = {
+        0x00, 0x00, 0x00, 0x00, 0x00,  0x00, 0x00, 0x5f, 0x00, 0x00,  0x00, 0x07, 0x00, 0x07, 0x00,  0x14, 0x7f, 0x14, 0x7f, 0x14,
+        0x24, 0x2a, 0x7f, 0x2a, 0x12,  0x23, 0x13, 0x08, 0x64, 0x62,  0x36, 0x49, 0x56, 0x20, 0x50,  0x00, 0x08, 0x07, 0x03, 0x00,
+        0x00, 0x1c, 0x22, 0x41, 0x00,  0x00, 0x41, 0x22, 0x1c, 0x00,  0x2a, 0x1c, 0x7f, 0x1c, 0x2a,  0x08, 0x08, 0x3e, 0x08, 0x08,
+        0x00, 0x80, 0x70, 0x30, 0x00,  0x08, 0x08, 0x08, 0x08, 0x08,  0x00, 0x00, 0x60, 0x60, 0x00,  0x20, 0x10, 0x08, 0x04, 0x02,
+        0x3e, 0x51, 0x49, 0x45, 0x3e,  0x00, 0x42, 0x7f, 0x40, 0x00,  0x72, 0x49, 0x49, 0x49, 0x46,  0x21, 0x41, 0x49, 0x4d, 0x33,
+        0x18, 0x14, 0x12, 0x7f, 0x10,  0x27, 0x45, 0x45, 0x45, 0x39,  0x3c, 0x4a, 0x49, 0x49, 0x31,  0x41, 0x21, 0x11, 0x09, 0x07,
+        0x36, 0x49, 0x49, 0x49, 0x36,  0x46, 0x49, 0x49, 0x29, 0x1e,  0x00, 0x00, 0x14, 0x00, 0x00,  0x00, 0x40, 0x34, 0x00, 0x00,
+        0x00, 0x08, 0x14, 0x22, 0x41,  0x14, 0x14, 0x14, 0x14, 0x14,  0x00, 0x41, 0x22, 0x14, 0x08,  0x02, 0x01, 0x59, 0x09, 0x06,
+        0x3e, 0x41, 0x5d, 0x59, 0x4e,  0x7c, 0x12, 0x11, 0x12, 0x7c,  0x7f, 0x49, 0x49, 0x49, 0x36,  0x3e, 0x41, 0x41, 0x41, 0x22,
+        0x7f, 0x41, 0x41, 0x41, 0x3e,  0x7f, 0x49, 0x49, 0x49, 0x41,  0x7f, 0x09, 0x09, 0x09, 0x01,  0x3e, 0x41, 0x41, 0x51, 0x73,
+        0x7f, 0x08, 0x08, 0x08, 0x7f,  0x00, 0x41, 0x7f, 0x41, 0x00,  0x20, 0x40, 0x41, 0x3f, 0x01,  0x7f, 0x08, 0x14, 0x22, 0x41,
+        0x7f, 0x40, 0x40, 0x40, 0x40,  0x7f, 0x02, 0x1c, 0x02, 0x7f,  0x7f, 0x04, 0x08, 0x10, 0x7f,  0x3e, 0x41, 0x41, 0x41, 0x3e,
+        0x7f, 0x09, 0x09, 0x09, 0x06,  0x3e, 0x41, 0x51, 0x21, 0x5e,  0x7f, 0x09, 0x19, 0x29, 0x46,  0x26, 0x49, 0x49, 0x49, 0x32,
+        0x03, 0x01, 0x7f, 0x01, 0x03,  0x3f, 0x40, 0x40, 0x40, 0x3f,  0x1f, 0x20, 0x40, 0x20, 0x1f,  0x3f, 0x40, 0x38, 0x40, 0x3f,
+        0x63, 0x14, 0x08, 0x14, 0x63,  0x03, 0x04, 0x78, 0x04, 0x03,  0x61, 0x59, 0x49, 0x4d, 0x43,  0x00, 0x7f, 0x41, 0x41, 0x41,
+        0x02, 0x04, 0x08, 0x10, 0x20,  0x00, 0x41, 0x41, 0x41, 0x7f,  0x04, 0x02, 0x01, 0x02, 0x04,  0x40, 0x40, 0x40, 0x40, 0x40,
+        0x00, 0x03, 0x07, 0x08, 0x00,  0x20, 0x54, 0x54, 0x78, 0x40,  0x7f, 0x28, 0x44, 0x44, 0x38,  0x38, 0x44, 0x44, 0x44, 0x28,
+        0x38, 0x44, 0x44, 0x28, 0x7f,  0x38, 0x54, 0x54, 0x54, 0x18,  0x00, 0x08, 0x7e, 0x09, 0x02,  0x18, 0xa4, 0xa4, 0x9c, 0x78,
+        0x7f, 0x08, 0x04, 0x04, 0x78,  0x00, 0x44, 0x7d, 0x40, 0x00,  0x20, 0x40, 0x40, 0x3d, 0x00,  0x7f, 0x10, 0x28, 0x44, 0x00,
+        0x00, 0x41, 0x7f, 0x40, 0x00,  0x7c, 0x04, 0x78, 0x04, 0x78,  0x7c, 0x08, 0x04, 0x04, 0x78,  0x38, 0x44, 0x44, 0x44, 0x38,
+        0xfc, 0x18, 0x24, 0x24, 0x18,  0x18, 0x24, 0x24, 0x18, 0xfc,  0x7c, 0x08, 0x04, 0x04, 0x08,  0x48, 0x54, 0x54, 0x54, 0x24,
+        0x04, 0x04, 0x3f, 0x44, 0x24,  0x3c, 0x40, 0x40, 0x20, 0x7c,  0x1c, 0x20, 0x40, 0x20, 0x1c,  0x3c, 0x40, 0x30, 0x40, 0x3c,
+        0x44, 0x28, 0x10, 0x28, 0x44,  0x4c, 0x90, 0x90, 0x90, 0x7c,  0x44, 0x64, 0x54, 0x4c, 0x44,  0x00, 0x08, 0x36, 0x41, 0x00,
+        0x00, 0x00, 0x77, 0x00, 0x00,  0x00, 0x41, 0x36, 0x08, 0x00,  0x02, 0x01, 0x02, 0x04, 0x02
+    };
+
+    public static final BitmapFont DEFAULT = createDefault();
+
+    private final int height;
+    private final Map<Character,long[]> glyphs;
+    private final long[] fallback;
+
+    private BitmapFont(int height, Map<Character,long[]> glyphs)
+    {
+        this.height = height;
+        this.glyphs = glyphs;
+        this.fallback = glyphs.getOrDefault( '?', new long[0] );
+    }
+
+    private static BitmapFont createDefault()
+    {
+        final Map<Character,long[]> glyphs = new HashMap<>();
+        for ( int i = 0; i < FONT_5X8.length / 5; i++ )
+        {
+            final long[] columns = new long[5];
+            for ( int x = 0; x < 5; x++ ) {
+                columns[x] = FONT_5X8[i * 5 + x];
+            }
+            glyphs.put( (char) ( 0x20 + i ), columns );
+        }
+        return new BitmapFont( 8, glyphs );
+    }
+
+    /**
+     * Rasterizes the printable ASCII characters of an AWT font.
+     *
+     * Glyphs are rendered without anti-aliasing and trimmed to their ink,
+     * so the result is a proportional font.
+     *
+     * @param height pixel height, at most 64
+     */
+    public static BitmapFont of(Font font, int height)
+    {
+        Validate.notNull( font, "font must not be null" );
+        Validate.inclusiveBetween( 1, 64, height, "height must be in range 1..64" );
+
+        final BufferedImage img = new BufferedImage( height * 4, height, BufferedImage.TYPE_BYTE_BINARY );
+        final Graphics2D gfx = img.createGraphics();
+        gfx.setRenderingHint( RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF );
+        final FontMetrics metrics = gfx.getFontMetrics( font );
+        final Font scaled = font.deriveFont( font.getSize2D() * height / ( metrics.getAscent() + metrics.getDescent() ) );
+        gfx.setFont( scaled );
+        final int baseline = gfx.getFontMetrics().getAscent();
+
+        final Map<Character,long[]> glyphs = new HashMap<>();
+        for ( char c = 0x20; c < 0x7f; c++ )
+        {
+            gfx.setColor( Color.BLACK );
+            gfx.fillRect( 0, 0, img.getWidth(), img.getHeight() );
+            gfx.setColor( Color.WHITE );
+            gfx.drawString( Character.toString( c ), 0, baseline );
+
+            final long[] columns = new long[img.getWidth()];
+            int first = columns.length;
+            int last = -1;
+            for ( int x = 0; x < columns.length; x++ )
+            {
+                for ( int y = 0; y < height; y++ )
+                {
+                    if ( ( img.getRGB( x, y ) & 0xffffff ) != 0 ) {
+                        columns[x] |= 1L << y;
+                    }
+                }
+                if ( columns[x] != 0 )
+                {
+                    first = Math.min( first, x );
+                    last = x;
+                }
+            }
+            if ( last == -1 ) {
+                // blank glyphs like space keep their advance
+                glyphs.put( c, new long[Math.max( 1, gfx.getFontMetrics().charWidth( c ) )] );
+            } else {
+                glyphs.put( c, Arrays.copyOfRange( columns, first, last + 1 ) );
+            }
+        }
+        gfx.dispose();
+        return new BitmapFont( height, glyphs );
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // pixel columns of a glyph, must not be modified
+    long[] getGlyph(char c) {
+        return glyphs.getOrDefault( c, fallback );
+    }
+
+    public int getWidth(String text, int spacing)
+    {
+        int result = 0;
+        for ( int i = 0; i < text.length(); i++ ) {
+            result += getGlyph( text.charAt( i ) ).length + ( i > 0 ? spacing : 0 );
+        }
+        return result;
+    }
+}
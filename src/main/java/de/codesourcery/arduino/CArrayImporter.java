@@ -0,0 +1,701 @@
+package de.codesourcery.arduino;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Reads C initializer arrays with frame data back into projects, one
+ * project per array, e.g. headers written by {@link Project#toDataString()}
+ * or {@link DeduplicatingFrameWriter}.
+ *
+ * The file is memory-mapped and tokenized in a single pass without
+ * creating strings for numbers or comments, and every frame is decoded as
+ * soon as its element of the array is complete. Other declarations,
+ * function bodies and preprocessor lines are skipped.
+ *
+ * The first dimension of an array is the frame, the remaining ones
+ * decide how a frame is stored:
+ * <ul>
+ *   <li>[N][W]: W columns, bit 0 = top row, as many rows as the element type has bits</li>
+ *   <li>[N][8][M], [N][P][8], [N][P][8][M]: registers as exported for M modules in a row and P bit planes</li>
+ *   <li>[N]: columns of 8x8 frames, one after another</li>
+ * </ul>
+ * A "// layout ..., export ..." comment right before an array, as the
+ * exporter writes it, restores layout, export options and bit planes. A
+ * one-dimensional index array following such an array with a wider element type
+ * (the 'sequence' of deduplicated exports) expands it into the original
+ * frame order.
+ */
+public final class CArrayImporter
+{
+    private static final Pattern LAYOUT_COMMENT = Pattern.compile( "layout (.+?), export (.+?)(?:, (\\d+) bit planes\\b.*)?" );
+
+    private static final int MAX_DEPTH = 8;
+
+    private enum Token {
+        IDENTIFIER, NUMBER, STRING, COMMENT, PUNCTUATION, EOF
+    }
+
+    // single pass over the bytes, the current token is kept in fields
+    private static final class Tokenizer
+    {
+        private final ByteBuffer buffer;
+        private final int limit;
+        private int pos;
+        private boolean lineStart = true;
+
+        int line = 1;
+        Token token;
+        // value of a NUMBER
+        long number;
+        // PUNCTUATION character
+        char punctuation;
+        // text of IDENTIFIER, STRING and COMMENT tokens
+        int start, end;
+
+        Tokenizer(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+            this.limit = buffer.limit();
+        }
+
+        private int peek(int offset) {
+            return pos + offset < limit ? buffer.get( pos + offset ) & 0xff : -1;
+        }
+
+        String text()
+        {
+            final byte[] bytes = new byte[end - start];
+            buffer.get( start, bytes );
+            return new String( bytes, StandardCharsets.ISO_8859_1 );
+        }
+
+        boolean textStartsWith(String prefix)
+        {
+            int i = start;
+            while ( i < end && isWhitespace( buffer.get( i ) ) ) {
+                i++;
+            }
+            if ( end - i < prefix.length() ) {
+                return false;
+            }
+            for ( int j = 0; j < prefix.length(); j++ ) {
+                if ( buffer.get( i + j ) != prefix.charAt( j ) ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        IOException error(String message) {
+            return new IOException( "Line " + line + ": " + message );
+        }
+
+        Token next() throws IOException
+        {
+            while ( true )
+            {
+                while ( pos < limit && isWhitespace( buffer.get( pos ) ) )
+                {
+                    if ( buffer.get( pos++ ) == '\n' )
+                    {
+                        line++;
+                        lineStart = true;
+                    }
+                }
+                if ( pos >= limit ) {
+                    return token = Token.EOF;
+                }
+                final int c = peek( 0 );
+                if ( c == '#' && lineStart ) {
+                    skipPreprocessorLine();
+                    continue;
+                }
+                lineStart = false;
+                if ( c == '/' && peek( 1 ) == '/' )
+                {
+                    start = pos += 2;
+                    while ( pos < limit && buffer.get( pos ) != '\n' ) {
+                        pos++;
+                    }
+                    end = pos;
+                    return token = Token.COMMENT;
+                }
+                if ( c == '/' && peek( 1 ) == '*' )
+                {
+                    start = pos += 2;
+                    while ( pos < limit && ! ( buffer.get( pos ) == '*' && peek( 1 ) == '/' ) )
+                    {
+                        if ( buffer.get( pos++ ) == '\n' ) {
+                            line++;
+                        }
+                    }
+                    if ( pos >= limit ) {
+                        throw error( "Unterminated comment" );
+                    }
+                    end = pos;
+                    pos += 2;
+                    return token = Token.COMMENT;
+                }
+                if ( c == '"' ) {
+                    return readString();
+                }
+                if ( c == '\'' ) {
+                    return readCharacter();
+                }
+                if ( c >= '0' && c <= '9' ) {
+                    return readNumber();
+                }
+                if ( isIdentifierStart( c ) ) {
+                    return readIdentifier();
+                }
+                punctuation = (char) c;
+                pos++;
+                return token = Token.PUNCTUATION;
+            }
+        }
+
+        private void skipPreprocessorLine()
+        {
+            while ( pos < limit && buffer.get( pos ) != '\n' )
+            {
+                // continued on the next line
+                if ( buffer.get( pos ) == '\\' && peek( 1 ) == '\n' )
+                {
+                    pos++;
+                    line++;
+                }
+                pos++;
+            }
+        }
+
+        private Token readString() throws IOException
+        {
+            start = ++pos;
+            while ( pos < limit && buffer.get( pos ) != '"' )
+            {
+                if ( buffer.get( pos ) == '\n' ) {
+                    throw error( "Unterminated string" );
+                }
+                pos += buffer.get( pos ) == '\\' ? 2 : 1;
+            }
+            if ( pos >= limit ) {
+                throw error( "Unterminated string" );
+            }
+            end = pos++;
+            return token = Token.STRING;
+        }
+
+        private Token readCharacter() throws IOException
+        {
+            pos++;
+            int c = peek( 0 );
+            pos++;
+            if ( c == '\\' )
+            {
+                c = peek( 0 );
+                pos++;
+                c = switch ( c )
+                {
+                    case 'n' -> '\n';
+                    case 'r' -> '\r';
+                    case 't' -> '\t';
+                    case '0' -> 0;
+                    case 'x' -> (int) readDigits( 16 );
+                    default -> c;
+                };
+            }
+            if ( c < 0 || peek( 0 ) != '\'' ) {
+                throw error( "Invalid character literal" );
+            }
+            pos++;
+            number = c;
+            return token = Token.NUMBER;
+        }
+
+        private Token readNumber() throws IOException
+        {
+            if ( peek( 0 ) == '0' && ( peek( 1 ) == 'x' || peek( 1 ) == 'X' ) )
+            {
+                pos += 2;
+                number = readDigits( 16 );
+            }
+            else if ( peek( 0 ) == '0' && ( peek( 1 ) == 'b' || peek( 1 ) == 'B' ) )
+            {
+                pos += 2;
+                number = readDigits( 2 );
+            } else {
+                number = readDigits( peek( 0 ) == '0' ? 8 : 10 );
+            }
+            // integer suffixes
+            while ( peek( 0 ) == 'u' || peek( 0 ) == 'U' || peek( 0 ) == 'l' || peek( 0 ) == 'L' ) {
+                pos++;
+            }
+            if ( isIdentifierStart( peek( 0 ) ) || ( peek( 0 ) >= '0' && peek( 0 ) <= '9' ) ) {
+                throw error( "Invalid number" );
+            }
+            return token = Token.NUMBER;
+        }
+
+        private long readDigits(int radix) throws IOException
+        {
+            final int first = pos;
+            long value = 0;
+            while ( true )
+            {
+                final int digit = Character.digit( peek( 0 ), radix );
+                if ( digit < 0 ) {
+                    break;
+                }
+                value = value * radix + digit;
+                pos++;
+            }
+            if ( pos == first && radix != 8 ) {
+                throw error( "Invalid number" );
+            }
+            return value;
+        }
+
+        private Token readIdentifier()
+        {
+            start = pos;
+            while ( pos < limit && ( isIdentifierStart( peek( 0 ) ) || ( peek( 0 ) >= '0' && peek( 0 ) <= '9' ) ) ) {
+                pos++;
+            }
+            end = pos;
+            // Arduino's B01010101 constants
+            if ( buffer.get( start ) == 'B' && end - start > 1 && end - start <= 9 )
+            {
+                long value = 0;
+                for ( int i = start + 1; i < end; i++ )
+                {
+                    final byte b = buffer.get( i );
+                    if ( b != '0' && b != '1' ) {
+                        return token = Token.IDENTIFIER;
+                    }
+                    value = value << 1 | ( b - '0' );
+                }
+                number = value;
+                return token = Token.NUMBER;
+            }
+            return token = Token.IDENTIFIER;
+        }
+
+        private static boolean isWhitespace(int c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+        }
+
+        private static boolean isIdentifierStart(int c) {
+            return ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' ) || c == '_';
+        }
+    }
+
+    // how the values of one frame are turned into pixels
+    private record Format(DisplayLayout layout, ExportOptions options, int bitsPerPixel, boolean columns, int valuesPerFrame)
+    {
+        static Format columns(int width, int height)
+        {
+            final DisplayLayout layout = DisplayLayout.of( ( width + DisplayLayout.MODULE_SIZE - 1 ) / DisplayLayout.MODULE_SIZE,
+                height / DisplayLayout.MODULE_SIZE );
+            return new Format( layout, ExportOptions.defaults( layout ), 1, true, width );
+        }
+
+        static Format registers(DisplayLayout layout, ExportOptions options, int bitsPerPixel) {
+            return new Format( layout, options, bitsPerPixel, false, bitsPerPixel * layout.getBytesPerFrame() );
+        }
+    }
+
+    // an array read so far
+    private record Frames(String name, Format format, List<Image> images, boolean fromExport) {}
+
+    /**
+     * @return a project for every array with frame data, named after the array
+     */
+    public List<Project> importFile(File file) throws IOException
+    {
+        Validate.notNull( file, "file must not be null" );
+        try ( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) )
+        {
+            if ( channel.size() > Integer.MAX_VALUE ) {
+                throw new IOException( "File too large: " + file );
+            }
+            return parse( channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() ) );
+        }
+    }
+
+    // source code, e.g. pasted from the clipboard
+    public List<Project> parse(String source) throws IOException
+    {
+        Validate.notNull( source, "source must not be null" );
+        return parse( ByteBuffer.wrap( source.getBytes( StandardCharsets.ISO_8859_1 ) ) );
+    }
+
+    private List<Project> parse(ByteBuffer buffer) throws IOException
+    {
+        final Tokenizer tokens = new Tokenizer( buffer );
+        final List<Frames> arrays = new ArrayList<>();
+        try
+        {
+            // declaration read so far
+            String identifier = null;
+            String name = null;
+            int elementBits = 8;
+            final List<Integer> dimensions = new ArrayList<>();
+            Matcher layoutComment = null;
+
+            while ( tokens.next() != Token.EOF )
+            {
+                if ( tokens.token == Token.COMMENT && tokens.textStartsWith( "layout " ) )
+                {
+                    final Matcher m = LAYOUT_COMMENT.matcher( tokens.text().trim() );
+                    layoutComment = m.matches() ? m : null;
+                }
+                else if ( tokens.token == Token.IDENTIFIER )
+                {
+                    identifier = tokens.text();
+                    final int bits = getTypeBits( identifier );
+                    if ( bits > 0 ) {
+                        elementBits = bits;
+                    }
+                }
+                else if ( tokens.token == Token.PUNCTUATION && tokens.punctuation == '[' )
+                {
+                    if ( dimensions.isEmpty() ) {
+                        name = identifier;
+                    }
+                    dimensions.add( readDimension( tokens ) );
+                }
+                else if ( tokens.token == Token.PUNCTUATION && tokens.punctuation == '=' && name != null && ! dimensions.isEmpty() )
+                {
+                    if ( tokens.next() != Token.PUNCTUATION || tokens.punctuation != '{' ) {
+                        throw tokens.error( "Expected '{' after '='" );
+                    }
+                    final Frames previous = arrays.isEmpty() ? null : arrays.getLast();
+                    if ( dimensions.size() == 1 && elementBits > 8 && layoutComment == null && previous != null && previous.fromExport() ) {
+                        arrays.set( arrays.size() - 1, expand( previous, readSequence( tokens ) ) );
+                    } else {
+                        arrays.add( readArray( tokens, name, dimensions, elementBits, layoutComment ) );
+                    }
+                }
+                else if ( tokens.token == Token.PUNCTUATION && tokens.punctuation == '{' )
+                {
+                    // function body, struct or other initializer
+                    skipBlock( tokens );
+                }
+
+                // a declaration or block ended
+                if ( tokens.token == Token.PUNCTUATION && ( tokens.punctuation == ';' || tokens.punctuation == '}' ) )
+                {
+                    identifier = name = null;
+                    elementBits = 8;
+                    dimensions.clear();
+                    layoutComment = null;
+                }
+            }
+            final List<Project> result = new ArrayList<>();
+            for ( final Frames array : arrays )
+            {
+                if ( array.images().isEmpty() ) {
+                    continue;
+                }
+                final Project project = new Project( array.name(), null, array.format().layout(), array.images() );
+                project.setExportOptions( array.format().options() );
+                result.add( project );
+            }
+            return result;
+        }
+        catch( IOException | RuntimeException e )
+        {
+            arrays.forEach( array -> array.images().forEach( Image::release ) );
+            if ( e instanceof IllegalArgumentException ) {
+                throw new IOException( "Line " + tokens.line + ": " + e.getMessage(), e );
+            }
+            throw e;
+        }
+    }
+
+    // bits of an integer type, 0 if unknown
+    private static int getTypeBits(String type)
+    {
+        return switch ( type )
+        {
+            case "uint8_t", "int8_t", "byte", "char" -> 8;
+            case "uint16_t", "int16_t", "word", "short" -> 16;
+            case "uint32_t", "int32_t", "long" -> 32;
+            case "uint64_t", "int64_t" -> 64;
+            default -> 0;
+        };
+    }
+
+    // size of a dimension after '[', -1 if not given or not a number
+    private static int readDimension(Tokenizer tokens) throws IOException
+    {
+        int result = -1;
+        boolean number = true;
+        while ( tokens.next() != Token.EOF )
+        {
+            if ( tokens.token == Token.PUNCTUATION && tokens.punctuation == ']' ) {
+                return number ? result : -1;
+            }
+            if ( tokens.token == Token.NUMBER && result == -1 ) {
+                result = (int) Math.min( Integer.MAX_VALUE, tokens.number );
+            } else if ( tokens.token != Token.COMMENT ) {
+                // macro or expression
+                number = false;
+            }
+        }
+        throw tokens.error( "Missing ']'" );
+    }
+
+    // skips to the '}' closing an already opened block
+    private static void skipBlock(Tokenizer tokens) throws IOException
+    {
+        int depth = 1;
+        while ( depth > 0 )
+        {
+            if ( tokens.next() == Token.EOF ) {
+                throw tokens.error( "Missing '}'" );
+            }
+            if ( tokens.token == Token.PUNCTUATION ) {
+                depth += tokens.punctuation == '{' ? 1 : tokens.punctuation == '}' ? -1 : 0;
+            }
+        }
+    }
+
+    /**
+     * Reads the initializer after '{' and decodes every frame once its
+     * values are complete.
+     */
+    private Frames readArray(Tokenizer tokens, String name, List<Integer> dimensions, int elementBits, Matcher layoutComment) throws IOException
+    {
+        final List<Image> images = new ArrayList<>();
+        try {
+            return readArray( tokens, name, dimensions, elementBits, layoutComment, images );
+        }
+        catch( IOException | RuntimeException e )
+        {
+            images.forEach( Image::release );
+            throw e;
+        }
+    }
+
+    private Frames readArray(Tokenizer tokens, String name, List<Integer> dimensions, int elementBits, Matcher layoutComment, List<Image> images) throws IOException
+    {
+        final int line = tokens.line;
+        long[] values = new long[64];
+        int count = 0;
+        Format format = layoutComment != null ? fromComment( layoutComment ) : getDeclaredFormat( tokens, dimensions, elementBits );
+
+        // shape of the first frame's braces: number of items in the first group at each depth
+        final int[] firstGroup = new int[MAX_DEPTH + 1];
+        Arrays.fill( firstGroup, -1 );
+        final int[] items = new int[MAX_DEPTH + 1];
+        int maxDepth = 1;
+        int depth = 1;
+        boolean negate = false;
+        boolean flat = false;
+
+        while ( depth > 0 )
+        {
+            switch ( tokens.next() )
+            {
+                case EOF -> throw tokens.error( "Array " + name + " starting in line " + line + " is not terminated" );
+                case COMMENT -> {}
+                case NUMBER -> {
+                    if ( count == values.length ) {
+                        values = Arrays.copyOf( values, count * 2 );
+                    }
+                    values[count++] = negate ? -tokens.number : tokens.number;
+                    negate = false;
+                    items[depth]++;
+                    if ( depth == 1 )
+                    {
+                        // no braces around the frames
+                        flat = true;
+                        if ( format == null ) {
+                            format = getFlatFormat( tokens, dimensions );
+                        }
+                        if ( count == format.valuesPerFrame() )
+                        {
+                            images.add( decode( tokens, format, values, count ) );
+                            count = 0;
+                        }
+                    }
+                }
+                case PUNCTUATION -> {
+                    switch ( tokens.punctuation )
+                    {
+                        case '{' -> {
+                            if ( flat || depth == MAX_DEPTH ) {
+                                throw tokens.error( "Unsupported nesting of braces in array " + name );
+                            }
+                            items[depth++]++;
+                            items[depth] = 0;
+                            maxDepth = Math.max( maxDepth, depth );
+                        }
+                        case '}' -> {
+                            if ( firstGroup[depth] == -1 ) {
+                                firstGroup[depth] = items[depth];
+                            }
+                            if ( --depth == 1 )
+                            {
+                                // a frame is complete
+                                if ( format == null ) {
+                                    format = getFormat( tokens, Arrays.copyOfRange( firstGroup, 2, maxDepth + 1 ), elementBits );
+                                }
+                                images.add( decode( tokens, format, values, count ) );
+                                count = 0;
+                            }
+                        }
+                        case '-' -> negate = true;
+                        case '+', ',' -> {}
+                        default -> throw tokens.error( "Unexpected '" + tokens.punctuation + "' in array " + name );
+                    }
+                }
+                default -> throw tokens.error( "Unexpected " + tokens.token.name().toLowerCase() + " in array " + name );
+            }
+        }
+        if ( count > 0 ) {
+            // last frame of an array without braces around frames
+            images.add( decode( tokens, format, values, count ) );
+        }
+        if ( format == null ) {
+            format = Format.columns( DisplayLayout.MODULE_SIZE, DisplayLayout.MODULE_SIZE );
+        }
+        return new Frames( name, format, images, layoutComment != null );
+    }
+
+    private static Format fromComment(Matcher m)
+    {
+        final int bitsPerPixel = m.group( 3 ) != null ? Integer.parseInt( m.group( 3 ) ) : 1;
+        return Format.registers( DisplayLayout.fromDataString( m.group( 1 ) ), ExportOptions.fromDataString( m.group( 2 ) ), bitsPerPixel );
+    }
+
+    // shape of a frame from the braces of the first one, without the frame's own
+    private static Format getFormat(Tokenizer tokens, int[] shape, int elementBits) throws IOException
+    {
+        final int m = DisplayLayout.MODULE_SIZE;
+        if ( shape.length == 1 ) {
+            return Format.columns( shape[0], Math.clamp( elementBits, m, 64 ) );
+        }
+        if ( shape.length == 2 && shape[0] == m ) {
+            return registers( DisplayLayout.of( shape[1], 1 ), 1 );
+        }
+        if ( shape.length == 2 && shape[1] == m ) {
+            return registers( DisplayLayout.SINGLE, shape[0] );
+        }
+        if ( shape.length == 3 && shape[1] == m ) {
+            return registers( DisplayLayout.of( shape[2], 1 ), shape[0] );
+        }
+        throw tokens.error( "Unsupported array shape " + Arrays.toString( shape ) );
+    }
+
+    private static Format registers(DisplayLayout layout, int bitsPerPixel) {
+        return Format.registers( layout, ExportOptions.defaults( layout ), bitsPerPixel );
+    }
+
+    // null unless all dimensions but the first are given
+    private static Format getDeclaredFormat(Tokenizer tokens, List<Integer> dimensions, int elementBits) throws IOException
+    {
+        final int[] shape = dimensions.subList( 1, dimensions.size() ).stream().mapToInt( Integer::intValue ).toArray();
+        if ( shape.length == 0 || Arrays.stream( shape ).anyMatch( d -> d <= 0 ) ) {
+            return null;
+        }
+        return getFormat( tokens, shape, elementBits );
+    }
+
+    // frames without braces and without declared shape
+    private static Format getFlatFormat(Tokenizer tokens, List<Integer> dimensions) throws IOException
+    {
+        if ( dimensions.size() > 1 ) {
+            throw tokens.error( "Array without braces around frames needs all dimensions but the first" );
+        }
+        return Format.columns( DisplayLayout.MODULE_SIZE, DisplayLayout.MODULE_SIZE );
+    }
+
+    private static Image decode(Tokenizer tokens, Format format, long[] values, int count) throws IOException
+    {
+        // missing values are 0 like in C
+        if ( count > format.valuesPerFrame() ) {
+            throw tokens.error( "Expected at most " + format.valuesPerFrame() + " values per frame but got " + count );
+        }
+        final DisplayLayout layout = format.layout();
+        final Image result = new Image( layout.getStore(), format.bitsPerPixel() );
+        if ( format.columns() )
+        {
+            final long rows = Selection.rowMask( layout.getHeight() );
+            for ( int x = 0; x < count; x++ ) {
+                result.setColumn( x, values[x] & rows );
+            }
+        }
+        else
+        {
+            final int bytesPerPlane = layout.getBytesPerFrame();
+            final byte[] bytes = new byte[bytesPerPlane];
+            for ( int p = 0; p < format.bitsPerPixel(); p++ )
+            {
+                for ( int i = 0; i < bytesPerPlane; i++ ) {
+                    final int idx = p * bytesPerPlane + i;
+                    bytes[i] = idx < count ? (byte) values[idx] : 0;
+                }
+                layout.fromBytes( bytes, 0, format.options(), result.getPlane( p ) );
+            }
+        }
+        result.setDirty( false );
+        return result;
+    }
+
+    // frame indices after '{'
+    private static int[] readSequence(Tokenizer tokens) throws IOException
+    {
+        int[] result = new int[64];
+        int count = 0;
+        while ( tokens.next() != Token.PUNCTUATION || tokens.punctuation != '}' )
+        {
+            if ( tokens.token == Token.NUMBER )
+            {
+                if ( count == result.length ) {
+                    result = Arrays.copyOf( result, count * 2 );
+                }
+                result[count++] = (int) tokens.number;
+            }
+            else if ( tokens.token != Token.COMMENT && ! ( tokens.token == Token.PUNCTUATION && tokens.punctuation == ',' ) ) {
+                throw tokens.error( "Unexpected token in frame sequence" );
+            }
+        }
+        return Arrays.copyOf( result, count );
+    }
+
+    // distinct frames in the order given by a sequence
+    private static Frames expand(Frames distinct, int[] sequence)
+    {
+        final List<Image> images = distinct.images();
+        for ( final int idx : sequence ) {
+            Validate.isTrue( idx >= 0 && idx < images.size(), "Frame %d in sequence does not exist", idx );
+        }
+        final List<Image> result = new ArrayList<>( sequence.length );
+        final boolean[] used = new boolean[images.size()];
+        for ( final int idx : sequence )
+        {
+            // the first use keeps the frame itself
+            result.add( used[idx] ? images.get( idx ).createCopy() : images.get( idx ) );
+            used[idx] = true;
+        }
+        for ( int i = 0; i < used.length; i++ ) {
+            if ( ! used[i] ) {
+                images.get( i ).release();
+            }
+        }
+        return new Frames( distinct.name(), distinct.format(), result, false );
+    }
+}
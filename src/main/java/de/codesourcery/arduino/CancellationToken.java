@@ -0,0 +1,48 @@
+package de.codesourcery.arduino;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * Lets the user ask a running task to stop.
+ *
+ * Cancellation is cooperative: long loops call {@link #throwIfCancelled()}
+ * every now and then, nothing is interrupted. A task that finishes anyway
+ * after being cancelled has its result discarded.
+ */
+public final class CancellationToken
+{
+    private volatile boolean cancelled;
+    private final Runnable onCancel;
+
+    public CancellationToken() {
+        this( () -> {} );
+    }
+
+    // onCancel runs once, on the thread calling cancel()
+    CancellationToken(Runnable onCancel) {
+        this.onCancel = onCancel;
+    }
+
+    public void cancel()
+    {
+        synchronized ( this )
+        {
+            if ( cancelled ) {
+                return;
+            }
+            cancelled = true;
+        }
+        onCancel.run();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void throwIfCancelled()
+    {
+        if ( cancelled ) {
+            throw new CancellationException( "Cancelled" );
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package de.codesourcery.arduino;
+
+import java.awt.Rectangle;
+import java.util.List;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Pixels cut out of a frame, ready to be blitted into other frames.
+ *
+ * A clip stores the selected pixels relative to the top-left corner of the
+ * selection's bounds, one column per entry, plus a mask telling which of
+ * them were selected. Only selected pixels are written when pasting, so
+ * masked selections paste with their exact outline.
+ *
+ * Pasting first shifts and merges the clip's columns into words laid out
+ * like the target's {@link FrameStore}, once per target position. Every
+ * target frame is then updated with one masked word write per touched
+ * word, no matter how many of its pixels change.
+ */
+public final class Clip
+{
+    private final int width;
+    private final int height;
+    // selected rows of each column, row 0 = top of the bounds
+    private final long[] mask;
+    // pixels of each bit plane
+    private final long[][] planes;
+
+    private Clip(int width, int height, long[] mask, long[][] planes)
+    {
+        this.width = width;
+        this.height = height;
+        this.mask = mask;
+        this.planes = planes;
+    }
+
+    public static Clip copy(Image frame, Selection selection)
+    {
+        Validate.notNull( frame, "frame must not be null" );
+        Validate.notNull( selection, "selection must not be null" );
+        Validate.isTrue( frame.getWidth() == selection.getWidth() && frame.getHeight() == selection.getHeight(),
+            "Frame size does not match selection" );
+        final Rectangle bounds = selection.getBounds();
+        final long[] mask = new long[bounds.width];
+        final long[][] planes = new long[frame.getBitsPerPixel()][bounds.width];
+        for ( int cx = 0; cx < bounds.width; cx++ )
+        {
+            final long selected = selection.getColumn( bounds.x + cx );
+            mask[cx] = selected >>> bounds.y;
+            for ( int p = 0; p < planes.length; p++ ) {
+                planes[p][cx] = ( frame.getPlane( p ).getColumn( bounds.x + cx ) & selected ) >>> bounds.y;
+            }
+        }
+        return new Clip( bounds.width, bounds.height, mask, planes );
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBitsPerPixel() {
+        return planes.length;
+    }
+
+    public boolean isEmpty() {
+        return width == 0;
+    }
+
+    // selected rows of a column, row 0 = top
+    long getMask(int x) {
+        return mask[x];
+    }
+
+    long getPlaneColumn(int plane, int x) {
+        return planes[plane][x];
+    }
+
+    // e.g. "3x2 0x3, 0x1, 0x3; 0x1, 0x1, 0x2", selected rows of each column, then the bit planes
+    public String toDataString()
+    {
+        final StringBuilder b = new StringBuilder().append( width ).append( 'x' ).append( height ).append( ' ' );
+        appendColumns( b, mask );
+        for ( final long[] plane : planes ) {
+            appendColumns( b.append( "; " ), plane );
+        }
+        return b.toString();
+    }
+
+    private static void appendColumns(StringBuilder b, long[] columns)
+    {
+        for ( int x = 0; x < columns.length; x++ ) {
+            b.append( x == 0 ? "" : ", " ).append( "0x" ).append( Long.toHexString( columns[x] ) );
+        }
+    }
+
+    public static Clip fromDataString(String s)
+    {
+        Validate.notBlank( s, "clip must not be null or blank" );
+        final String[] parts = s.trim().split( ";" );
+        final String[] header = parts[0].trim().split( " ", 2 );
+        final String[] size = header[0].split( "x" );
+        Validate.isTrue( size.length == 2 && header.length == 2 && parts.length > 1, "Invalid clip: %s", s );
+        final int width = Integer.parseInt( size[0] );
+        final int height = Integer.parseInt( size[1] );
+        Validate.isTrue( width > 0 && height > 0 && height <= 64, "Invalid clip size: %s", header[0] );
+        final long[] mask = parseColumns( header[1], width );
+        final long[][] planes = new long[parts.length - 1][];
+        for ( int p = 0; p < planes.length; p++ ) {
+            planes[p] = parseColumns( parts[p + 1], width );
+        }
+        return new Clip( width, height, mask, planes );
+    }
+
+    private static long[] parseColumns(String s, int width)
+    {
+        final String[] parts = s.split( "," );
+        Validate.isTrue( parts.length == width, "Expected %d columns but got %d", width, parts.length );
+        final long[] result = new long[width];
+        for ( int x = 0; x < width; x++ ) {
+            result[x] = Long.parseUnsignedLong( StringUtils.removeStartIgnoreCase( parts[x].trim(), "0x" ), 16 );
+        }
+        return result;
+    }
+
+    /**
+     * The clip translated to a position within frames of a given store,
+     * as words to be merged into the target frames.
+     */
+    private final class Placement
+    {
+        // touched words and the masks/pixels to write into them
+        final int[] words;
+        final long[] masks;
+        final long[][] bits;
+
+        Placement(FrameStore store, int x, int y)
+        {
+            final long rows = Selection.rowMask( store.height );
+            final int first = Math.max( 0, x ) / store.columnsPerWord;
+            final int last = Math.min( store.width, x + width ) - 1;
+            final int count = last < 0 || x >= store.width || y >= store.height || y + height <= 0 ? 0 : last / store.columnsPerWord - first + 1;
+            words = new int[count];
+            masks = new long[count];
+            bits = new long[planes.length][count];
+            for ( int i = 0; i < count; i++ )
+            {
+                final int word = first + i;
+                words[i] = word;
+                for ( int c = 0; c < store.columnsPerWord; c++ )
+                {
+                    final int cx = word * store.columnsPerWord + c - x;
+                    if ( cx < 0 || cx >= width ) {
+                        continue;
+                    }
+                    final int shift = c * store.bitsPerColumn;
+                    masks[i] |= ( shift( mask[cx], y ) & rows ) << shift;
+                    for ( int p = 0; p < planes.length; p++ ) {
+                        bits[p][i] |= ( shift( planes[p][cx], y ) & rows ) << shift;
+                    }
+                }
+            }
+        }
+
+        private static long shift(long column, int y)
+        {
+            if ( y >= 64 || y <= -64 ) {
+                return 0;
+            }
+            return y >= 0 ? column << y : column >>> -y;
+        }
+
+        boolean pasteInto(Image frame) {
+            return write( frame, false );
+        }
+
+        // writes the clip's pixels or turns off all pixels the clip selects
+        private boolean write(Image frame, boolean erase)
+        {
+            boolean changed = false;
+            for ( int p = 0; p < bits.length; p++ )
+            {
+                final Image plane = frame.getPlane( p );
+                for ( int i = 0; i < words.length; i++ )
+                {
+                    final long m = masks[i];
+                    if ( m != 0 ) {
+                        changed |= plane.setWord( words[i], ( plane.getWord( words[i] ) & ~m ) | ( erase ? 0 : bits[p][i] & m ) );
+                    }
+                }
+            }
+            return changed;
+        }
+    }
+
+    private void checkCompatible(Image frame) {
+        Validate.isTrue( frame.getBitsPerPixel() == planes.length, "Frame has %d bits per pixel but the clip %d", frame.getBitsPerPixel(), planes.length );
+    }
+
+    /**
+     * Pastes the clip with its top-left corner at the given position, parts
+     * outside the frame are cut off.
+     *
+     * @return whether any pixel changed
+     */
+    public boolean paste(Image frame, int x, int y)
+    {
+        checkCompatible( frame );
+        return new Placement( frame.getStore(), x, y ).pasteInto( frame );
+    }
+
+    /**
+     * Turns off all pixels covered by the clip's selected pixels when placed
+     * at the given position.
+     *
+     * @return whether any pixel changed
+     */
+    public boolean erase(Image frame, int x, int y)
+    {
+        checkCompatible( frame );
+        return new Placement( frame.getStore(), x, y ).write( frame, true );
+    }
+
+    /**
+     * Pastes the clip into many frames of the same size in parallel.
+     *
+     * @return number of frames that changed
+     */
+    public int paste(List<Image> frames, int x, int y)
+    {
+        Validate.notNull( frames, "frames must not be null" );
+        if ( frames.isEmpty() ) {
+            return 0;
+        }
+        final FrameStore store = frames.getFirst().getStore();
+        frames.forEach( frame -> {
+            checkCompatible( frame );
+            Validate.isTrue( frame.getStore() == store, "All frames must have the same size" );
+        } );
+        final Placement placement = new Placement( store, x, y );
+        return (int) frames.parallelStream().filter( placement::pasteInto ).count();
+    }
+}
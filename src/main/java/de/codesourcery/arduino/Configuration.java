@@ -6,6 +6,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
@@ -29,6 +30,18 @@ public class Configuration
         return recentFiles;
     }
 
+    public void removeRecentFiles(Collection<File> files)
+    {
+        Validate.notNull( files, "files must not be null" );
+        this.recentFiles.removeAll( files );
+    }
+
+    // potentially slow for files on network shares, call off the EDT
+    public static List<File> findUnreadable(List<File> files)
+    {
+        return files.stream().filter( f -> ! ( f.exists() && f.isFile() && f.canRead() ) ).toList();
+    }
+
     public void addRecentFile(File recentFile)
     {
         Validate.notNull( recentFile, "recentFile must not be null" );
@@ -57,6 +70,7 @@ public class Configuration
         }
     }
 
+    // recent files are not checked for existence, see findUnreadable()
     public static Configuration load() throws IOException
     {
         final Configuration result = new Configuration();
@@ -73,11 +87,7 @@ public class Configuration
                 Collections.reverse(files);
                 for ( final String file : files )
                 {
-                    final File f = new File( file );
-                    if ( f.exists() && f.isFile() && f.canRead() )
-                    {
-                        result.addRecentFile( f );
-                    }
+                    result.addRecentFile( new File( file ) );
                 }
             }
         }
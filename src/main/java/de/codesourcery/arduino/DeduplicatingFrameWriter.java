@@ -0,0 +1,125 @@
+package de.codesourcery.arduino;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Streams frames into C source that stores every distinct frame only once.
+ *
+ * Writes a 'frames' array with the distinct frames in export byte order
+ * (see {@link Project#toExportBytes(Image)}) and, on {@link #close()}, a
+ * 'sequence' array with the index of the frame to show at each step. Only
+ * the distinct frames and the sequence are kept in memory.
+ */
+public final class DeduplicatingFrameWriter implements MarqueeGenerator.FrameSink, Closeable
+{
+    private record Key(long[] words)
+    {
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key other && Arrays.equals( other.words, words );
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode( words );
+        }
+    }
+
+    private final Writer out;
+    private final DisplayLayout layout;
+    private final ExportOptions options;
+    private final Image scratch;
+    private final byte[] bytes;
+    private final Map<Key,Integer> indices = new HashMap<>();
+
+    private int[] sequence = new int[1024];
+    private int frameCount;
+    private boolean closed;
+
+    public DeduplicatingFrameWriter(Writer out, DisplayLayout layout, ExportOptions options) throws IOException
+    {
+        Validate.notNull( out, "out must not be null" );
+        Validate.notNull( layout, "layout must not be null" );
+        Validate.notNull( options, "options must not be null" );
+        this.out = out;
+        this.layout = layout;
+        this.options = options;
+        this.scratch = new Image( layout.getStore() );
+        this.bytes = new byte[layout.getBytesPerFrame()];
+        out.write( "// layout " + layout.toDataString() + ", export " + options.toDataString() + "\n" );
+        out.write( "const uint8_t frames[][" + bytes.length + "] = {\n" );
+    }
+
+    public void add(Image frame) throws IOException
+    {
+        final long[] words = new long[frame.getWordCount()];
+        for ( int i = 0; i < words.length; i++ ) {
+            words[i] = frame.getWord( i );
+        }
+        accept( words );
+    }
+
+    // words as laid out by the layout's frame store
+    @Override
+    public void accept(long[] words) throws IOException
+    {
+        Validate.validState( ! closed, "Writer already closed" );
+        final Key key = new Key( words.clone() );
+        Integer index = indices.get( key );
+        if ( index == null )
+        {
+            index = indices.size();
+            indices.put( key, index );
+            writeFrame( words, index );
+        }
+        if ( frameCount == sequence.length ) {
+            sequence = Arrays.copyOf( sequence, sequence.length * 2 );
+        }
+        sequence[frameCount++] = index;
+    }
+
+    private void writeFrame(long[] words, int index) throws IOException
+    {
+        for ( int i = 0; i < words.length; i++ ) {
+            scratch.setWord( i, words[i] );
+        }
+        layout.toBytes( scratch, options, bytes, 0 );
+        final StringBuilder line = new StringBuilder( index == 0 ? "    {" : ",\n    {" );
+        for ( int i = 0; i < bytes.length; i++ ) {
+            line.append( i == 0 ? "0x" : ", 0x" ).append( Integer.toHexString( bytes[i] & 0xff ) );
+        }
+        out.write( line.append( '}' ).toString() );
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public int getDistinctFrameCount() {
+        return indices.size();
+    }
+
+    // writes the sequence, does not close the underlying writer
+    @Override
+    public void close() throws IOException
+    {
+        if ( closed ) {
+            return;
+        }
+        closed = true;
+        scratch.release();
+        out.write( "\n};\n\n" );
+        out.write( "const " + ( indices.size() <= 0x10000 ? "uint16_t" : "uint32_t" ) + " sequence[" + frameCount + "] = {" );
+        for ( int i = 0; i < frameCount; i++ ) {
+            out.write( ( i % 16 == 0 ? ( i == 0 ? "\n    " : ",\n    " ) : ", " ) + sequence[i] );
+        }
+        out.write( "\n};\n" );
+        out.flush();
+    }
+}
@@ -0,0 +1,239 @@
+package de.codesourcery.arduino;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Headless model of a MCU driving chained MAX7219 LED drivers over SPI.
+ *
+ * Every register write shifts one 16-bit word (address + data) per module
+ * through the chain and is latched by pulsing LOAD. The emulator replays
+ * the frames of an animation and reports bus and CPU time per frame.
+ *
+ * Frames are replayed as {@link Project#toExportBytes(Image)} lays them
+ * out, so the project's display layout and export options decide what
+ * goes into each register.
+ */
+public final class DeviceEmulator
+{
+    private static final int REGISTERS = DisplayLayout.MODULE_SIZE;
+
+    public record Settings(long spiClockHz,
+                           long mcuClockHz,
+                           int modules,
+                           int byteOverheadCycles,
+                           int latchCycles,
+                           int decodeCyclesPerByte,
+                           boolean deltaUpdates,
+                           int targetFps)
+    {
+        public Settings
+        {
+            Validate.isTrue( spiClockHz > 0, "SPI clock must be > 0" );
+            Validate.isTrue( mcuClockHz > 0, "MCU clock must be > 0" );
+            Validate.isTrue( modules > 0, "need at least one module" );
+            Validate.isTrue( byteOverheadCycles >= 0 && latchCycles >= 0 && decodeCyclesPerByte >= 0 );
+            Validate.isTrue( targetFps > 0, "target FPS must be > 0" );
+        }
+
+        // ATmega328 @ 16 MHz with hardware SPI at f_cpu/2
+        public static Settings defaults()
+        {
+            return new Settings( 8_000_000, 16_000_000, 1, 4, 6, 12, false, 60 );
+        }
+    }
+
+    public record FrameStats(int frame, int registerWrites, int bytes, double busMicros, double cpuMicros)
+    {
+        public double totalMicros() {
+            return busMicros + cpuMicros;
+        }
+
+        public double maxFps() {
+            return totalMicros() == 0 ? Double.POSITIVE_INFINITY : 1_000_000d / totalMicros();
+        }
+
+        public double busUtilization(int fps) {
+            return busMicros * fps / 1_000_000d;
+        }
+    }
+
+    public record Report(Settings settings, List<FrameStats> frames)
+    {
+        public FrameStats worstFrame()
+        {
+            FrameStats worst = frames.getFirst();
+            for ( final FrameStats s : frames )
+            {
+                if ( s.totalMicros() > worst.totalMicros() ) {
+                    worst = s;
+                }
+            }
+            return worst;
+        }
+
+        public double averageMicros() {
+            return frames.stream().mapToDouble( FrameStats::totalMicros ).average().orElse( 0 );
+        }
+
+        public boolean meetsTarget() {
+            return worstFrame().maxFps() >= settings.targetFps();
+        }
+    }
+
+    private final Settings settings;
+
+    // registers of all modules as currently latched on the device, null = unknown after power-up
+    private byte[] deviceRegisters;
+
+    public DeviceEmulator(Settings settings)
+    {
+        Validate.notNull( settings, "settings must not be null" );
+        this.settings = settings;
+        reset();
+    }
+
+    public void reset() {
+        deviceRegisters = null;
+    }
+
+    public Report run(Project project)
+    {
+        Validate.notNull( project, "project must not be null" );
+        Validate.notEmpty( project.getImages(), "project has no frames" );
+        Validate.isTrue( project.getLayout().getModuleCount() == settings.modules(),
+            "Project has %d modules but the chain %d", project.getLayout().getModuleCount(), settings.modules() );
+        reset();
+        project.flattenLayers();
+        final List<Image> frames = project.getImages();
+        final List<FrameStats> result = new ArrayList<>( frames.size() );
+        for ( int i = 0; i < frames.size(); i++ )
+        {
+            result.add( update( i, project.toExportBytes( frames.get( i ) ) ) );
+        }
+        return new Report( settings, result );
+    }
+
+    // bytes as laid out by DisplayLayout.toBytes(), one byte per module for every register
+    private FrameStats update(int frameNo, byte[] frame)
+    {
+        final int modules = settings.modules();
+        int writes = 0;
+        for ( int register = 0; register < REGISTERS; register++ )
+        {
+            final int from = register * modules;
+            if ( ! settings.deltaUpdates() || deviceRegisters == null
+                || ! Arrays.equals( deviceRegisters, from, from + modules, frame, from, from + modules ) )
+            {
+                writes++;
+            }
+        }
+        deviceRegisters = frame;
+        // every register write shifts address + data through all modules of the chain
+        final int bytes = writes * 2 * settings.modules();
+        final double busMicros = bytes * 8 * 1_000_000d / settings.spiClockHz();
+
+        final long cycles = (long) bytes * settings.byteOverheadCycles()
+            + (long) writes * settings.latchCycles()
+            + (long) REGISTERS * settings.modules() * settings.decodeCyclesPerByte();
+        final double cpuMicros = cycles * 1_000_000d / settings.mcuClockHz();
+        return new FrameStats( frameNo, writes, bytes, busMicros, cpuMicros );
+    }
+
+    // exported C arrays keep layout and export options in the comment the exporter writes
+    static Project loadProject(File file) throws IOException
+    {
+        if ( file.getName().endsWith( ".properties" ) ) {
+            return Project.load( file );
+        }
+        final List<Project> projects = new CArrayImporter().importFile( file );
+        if ( projects.isEmpty() ) {
+            throw new IOException( "No frame data found in " + file );
+        }
+        return projects.getFirst();
+    }
+
+    private static void usage()
+    {
+        System.err.println( """
+            Usage: DeviceEmulator [options] <project .properties file or exported C array>
+
+            --spi-clock <Hz>        SPI clock (default 8000000)
+            --mcu-clock <Hz>        MCU clock (default 16000000)
+            --byte-overhead <n>     MCU cycles spent per SPI byte (default 4)
+            --latch <n>             MCU cycles per LOAD pulse (default 6)
+            --decode <n>            MCU cycles to decode one frame byte (default 12)
+            --delta                 only write registers that changed
+            --fps <n>               target frame rate (default 60)
+            --per-frame             print statistics for every frame
+
+            Exits with status 1 if the target frame rate cannot be reached.""" );
+        System.exit( 2 );
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        Settings d = Settings.defaults();
+        long spiClock = d.spiClockHz(), mcuClock = d.mcuClockHz();
+        int byteOverhead = d.byteOverheadCycles(), latch = d.latchCycles(), decode = d.decodeCyclesPerByte();
+        int fps = d.targetFps();
+        boolean delta = false, perFrame = false;
+        File input = null;
+
+        for ( int i = 0; i < args.length; i++ )
+        {
+            final String arg = args[i];
+            final boolean hasValue = i + 1 < args.length;
+            switch ( arg )
+            {
+                case "--spi-clock" -> { if ( ! hasValue ) usage(); spiClock = Long.parseLong( args[++i] ); }
+                case "--mcu-clock" -> { if ( ! hasValue ) usage(); mcuClock = Long.parseLong( args[++i] ); }
+                case "--byte-overhead" -> { if ( ! hasValue ) usage(); byteOverhead = Integer.parseInt( args[++i] ); }
+                case "--latch" -> { if ( ! hasValue ) usage(); latch = Integer.parseInt( args[++i] ); }
+                case "--decode" -> { if ( ! hasValue ) usage(); decode = Integer.parseInt( args[++i] ); }
+                case "--fps" -> { if ( ! hasValue ) usage(); fps = Integer.parseInt( args[++i] ); }
+                case "--delta" -> delta = true;
+                case "--per-frame" -> perFrame = true;
+                default -> {
+                    if ( arg.startsWith( "-" ) || input != null ) {
+                        usage();
+                    }
+                    input = new File( arg );
+                }
+            }
+        }
+        if ( input == null ) {
+            usage();
+        }
+
+        // the chain has as many modules as the project's display layout
+        final Project project = loadProject( input );
+        final Settings settings = new Settings( spiClock, mcuClock, project.getLayout().getModuleCount(), byteOverhead, latch, decode, delta, fps );
+        final Report report = new DeviceEmulator( settings ).run( project );
+
+        if ( perFrame )
+        {
+            System.out.println( "frame;register_writes;bytes;bus_us;cpu_us;max_fps;bus_utilization" );
+            for ( final FrameStats s : report.frames() )
+            {
+                System.out.println( "%d;%d;%d;%.2f;%.2f;%.1f;%.4f".formatted( s.frame(), s.registerWrites(), s.bytes(),
+                    s.busMicros(), s.cpuMicros(), s.maxFps(), s.busUtilization( fps ) ) );
+            }
+        }
+        final FrameStats worst = report.worstFrame();
+        System.out.println( "Frames:              " + report.frames().size() );
+        System.out.println( "Avg. time per frame: %.2f us".formatted( report.averageMicros() ) );
+        System.out.println( "Worst frame:         #%d, %d bytes, %.2f us".formatted( worst.frame(), worst.bytes(), worst.totalMicros() ) );
+        System.out.println( "Max. FPS:            %.1f".formatted( worst.maxFps() ) );
+        System.out.println( "Bus utilization:     %.2f %% @ %d FPS".formatted( worst.busUtilization( fps ) * 100, fps ) );
+        if ( ! report.meetsTarget() )
+        {
+            System.out.println( "FAILED: target of " + fps + " FPS cannot be reached." );
+            System.exit( 1 );
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package de.codesourcery.arduino;
+
+import java.util.Arrays;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Physical arrangement of cascaded 8x8 LED modules (MAX7219 style).
+ *
+ * Modules form a grid that makes up the virtual canvas the editor works
+ * on. Modules are numbered row-major within that grid. The chain lists the
+ * modules in the order they are wired, position 0 being the module whose
+ * DIN is connected to the MCU. Each module may be mounted rotated.
+ *
+ * SPI byte order: for every register 0..7 the MCU shifts out one data
+ * byte per module, starting with the module at the far end of the chain,
+ * and then latches. What a register and its bits mean is up to the
+ * {@link ExportOptions}, with {@link ExportOptions#ROWS_MSB_FIRST} bit 7 of
+ * each byte is the leftmost pixel of a row as seen by the module.
+ */
+public final class DisplayLayout
+{
+    public static final int MODULE_SIZE = 8;
+
+    // a single unrotated module, the layout of all projects created before layouts existed
+    public static final DisplayLayout SINGLE = of( 1, 1 );
+
+    // clockwise rotation of a module relative to the canvas
+    public enum Rotation
+    {
+        R0, R90, R180, R270
+    }
+
+    private final int modulesX;
+    private final int modulesY;
+    private final int[] chain;
+    private final Rotation[] rotations;
+
+    private DisplayLayout(int modulesX, int modulesY, int[] chain, Rotation[] rotations)
+    {
+        Validate.isTrue( modulesX > 0 && modulesY > 0, "Module grid must be at least 1x1" );
+        Validate.isTrue( modulesY * MODULE_SIZE <= 64, "At most 8 modules per canvas column are supported" );
+        final int count = modulesX * modulesY;
+        Validate.isTrue( chain.length == count, "Chain must contain all %d modules", count );
+        Validate.isTrue( rotations.length == count, "Expected %d rotations", count );
+        final boolean[] seen = new boolean[count];
+        for ( final int module : chain )
+        {
+            Validate.isTrue( module >= 0 && module < count && ! seen[module], "Chain must contain every module exactly once" );
+            seen[module] = true;
+        }
+        Validate.noNullElements( rotations, "rotations must not contain null" );
+
+        this.modulesX = modulesX;
+        this.modulesY = modulesY;
+        this.chain = chain.clone();
+        this.rotations = rotations.clone();
+    }
+
+    // row-major chain without rotation
+    public static DisplayLayout of(int modulesX, int modulesY)
+    {
+        final Rotation[] rotations = new Rotation[modulesX * modulesY];
+        Arrays.fill( rotations, Rotation.R0 );
+        return of( modulesX, modulesY, IntStream.range( 0, rotations.length ).toArray(), rotations );
+    }
+
+    public static DisplayLayout of(int modulesX, int modulesY, int[] chain, Rotation[] rotations)
+    {
+        Validate.notNull( chain, "chain must not be null" );
+        Validate.notNull( rotations, "rotations must not be null" );
+        return new DisplayLayout( modulesX, modulesY, chain, rotations );
+    }
+
+    public int getModulesX() {
+        return modulesX;
+    }
+
+    public int getModulesY() {
+        return modulesY;
+    }
+
+    public int getModuleCount() {
+        return chain.length;
+    }
+
+    public int getWidth() {
+        return modulesX * MODULE_SIZE;
+    }
+
+    public int getHeight() {
+        return modulesY * MODULE_SIZE;
+    }
+
+    // module index (row-major in the grid) at the given chain position
+    public int getChainModule(int position) {
+        return chain[position];
+    }
+
+    public Rotation getRotation(int module) {
+        return rotations[module];
+    }
+
+    public boolean isSingleModule() {
+        return chain.length == 1 && rotations[0] == Rotation.R0;
+    }
+
+    public FrameStore getStore() {
+        return FrameStore.of( getWidth(), getHeight() );
+    }
+
+    public boolean fits(Image frame) {
+        return frame.getWidth() == getWidth() && frame.getHeight() == getHeight();
+    }
+
+    public int getBytesPerFrame() {
+        return getModuleCount() * MODULE_SIZE;
+    }
+
+    public byte[] toBytes(Image frame, ExportOptions options)
+    {
+        final byte[] result = new byte[getBytesPerFrame()];
+        toBytes( frame, options, result, 0 );
+        return result;
+    }
+
+    /**
+     * Writes the bytes of one frame in shift-out order.
+     *
+     * Every module is cut out of the canvas as one 64-bit word, rotated
+     * back to how the module is mounted and then transformed according to
+     * the export options.
+     */
+    public void toBytes(Image frame, ExportOptions options, byte[] dest, int offset)
+    {
+        Validate.isTrue( fits( frame ), "Frame does not match layout" );
+        final int count = getModuleCount();
+        for ( int pos = 0; pos < count; pos++ )
+        {
+            final int module = chain[pos];
+            final int ox = ( module % modulesX ) * MODULE_SIZE;
+            final int oy = ( module / modulesX ) * MODULE_SIZE;
+            long m = 0;
+            for ( int x = 0; x < MODULE_SIZE; x++ ) {
+                m |= ( ( frame.getColumn( ox + x ) >>> oy ) & 0xff ) << x * 8;
+            }
+            final long bytes = options.apply( BitMatrix.unrotate( m, rotations[module] ) );
+            // far end of the chain goes first
+            final int column = count - 1 - pos;
+            for ( int register = 0; register < MODULE_SIZE; register++ ) {
+                dest[offset + register * count + column] = (byte) ( bytes >>> register * 8 );
+            }
+        }
+    }
+
+    // inverse of toBytes(), writes the pixels of all modules into a 1-bit frame
+    public void fromBytes(byte[] src, int offset, ExportOptions options, Image frame)
+    {
+        Validate.isTrue( fits( frame ) && frame.getBitsPerPixel() == 1, "Frame does not match layout" );
+        final int count = getModuleCount();
+        for ( int pos = 0; pos < count; pos++ )
+        {
+            final int module = chain[pos];
+            final int ox = ( module % modulesX ) * MODULE_SIZE;
+            final int oy = ( module / modulesX ) * MODULE_SIZE;
+            final int column = count - 1 - pos;
+            long bytes = 0;
+            for ( int register = 0; register < MODULE_SIZE; register++ ) {
+                bytes |= ( src[offset + register * count + column] & 0xffL ) << register * 8;
+            }
+            final long m = BitMatrix.rotate( options.unapply( bytes ), rotations[module] );
+            for ( int x = 0; x < MODULE_SIZE; x++ )
+            {
+                final long old = frame.getColumn( ox + x );
+                frame.setColumn( ox + x, ( old & ~( 0xffL << oy ) ) | ( ( m >>> x * 8 ) & 0xff ) << oy );
+            }
+        }
+    }
+
+    // e.g. "4x1 chain=0,1,2,3 rotation=R0,R0,R90,R0"
+    public String toDataString()
+    {
+        return modulesX + "x" + modulesY
+            + " chain=" + Arrays.stream( chain ).mapToObj( Integer::toString ).collect( Collectors.joining( "," ) )
+            + " rotation=" + Arrays.stream( rotations ).map( Rotation::name ).collect( Collectors.joining( "," ) );
+    }
+
+    public static DisplayLayout fromDataString(String s)
+    {
+        Validate.notBlank( s, "layout must not be null or blank" );
+        final String[] parts = StringUtils.split( s.trim(), ' ' );
+        final String[] grid = StringUtils.split( parts[0], 'x' );
+        Validate.isTrue( grid.length == 2, "Invalid module grid: %s", parts[0] );
+        final int modulesX = Integer.parseInt( grid[0] );
+        final int modulesY = Integer.parseInt( grid[1] );
+        DisplayLayout result = of( modulesX, modulesY );
+        int[] chain = result.chain;
+        Rotation[] rotations = result.rotations;
+        for ( int i = 1; i < parts.length; i++ )
+        {
+            if ( parts[i].startsWith( "chain=" ) ) {
+                chain = Arrays.stream( StringUtils.split( parts[i].substring( 6 ), ',' ) ).mapToInt( Integer::parseInt ).toArray();
+            } else if ( parts[i].startsWith( "rotation=" ) ) {
+                rotations = Arrays.stream( StringUtils.split( parts[i].substring( 9 ), ',' ) ).map( Rotation::valueOf ).toArray( Rotation[]::new );
+            } else {
+                throw new IllegalArgumentException( "Unknown layout property: " + parts[i] );
+            }
+        }
+        return of( modulesX, modulesY, chain, rotations );
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        return obj instanceof DisplayLayout other && other.modulesX == modulesX && other.modulesY == modulesY
+            && Arrays.equals( other.chain, chain ) && Arrays.equals( other.rotations, rotations );
+    }
+
+    @Override
+    public int hashCode() {
+        return ( modulesX * 31 + modulesY ) * 31 + Arrays.hashCode( chain ) * 31 + Arrays.hashCode( rotations );
+    }
+
+    @Override
+    public String toString() {
+        return toDataString();
+    }
+}
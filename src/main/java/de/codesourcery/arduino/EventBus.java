@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.List;
 import org.apache.commons.lang3.Validate;
 import de.codesourcery.arduino.events.IEvent;
+import de.codesourcery.arduino.jfr.EventDispatchEvent;
 
 public class EventBus
 {
@@ -18,6 +19,15 @@ public class EventBus
     public static void send(IEvent event)
     {
         Validate.notNull( event, "event must not be null" );
+        final EventDispatchEvent dispatch = new EventDispatchEvent();
+        dispatch.begin();
         listeners.forEach( l->l.handle( event ) );
+        dispatch.end();
+        if ( dispatch.shouldCommit() )
+        {
+            dispatch.eventType = event.getClass().getName();
+            dispatch.listenerCount = listeners.size();
+            dispatch.commit();
+        }
     }
 }
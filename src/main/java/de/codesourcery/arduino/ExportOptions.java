@@ -0,0 +1,109 @@
+package de.codesourcery.arduino;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * How the bytes of a module are laid out in exported data, so the
+ * generated arrays match the register layout of the target driver.
+ *
+ * Each 8x8 module is first mirrored (if requested), then rotated clockwise
+ * and finally written as 8 bytes either one per column (bit 0 = top row)
+ * or one per row (bit 0 = leftmost column). MSB first reverses the bits of
+ * every byte. All of this is done with bit-parallel operations on the
+ * whole module, see {@link BitMatrix}.
+ */
+public record ExportOptions(Order order, BitOrder bitOrder, DisplayLayout.Rotation rotation, boolean flipHorizontal, boolean flipVertical)
+{
+    public enum Order {
+        COLUMN_MAJOR,
+        ROW_MAJOR
+    }
+
+    public enum BitOrder {
+        LSB_FIRST,
+        MSB_FIRST
+    }
+
+    // what single-module projects always exported
+    public static final ExportOptions COLUMNS_LSB_FIRST = new ExportOptions( Order.COLUMN_MAJOR, BitOrder.LSB_FIRST, DisplayLayout.Rotation.R0, false, false );
+
+    // MAX7219 digit registers
+    public static final ExportOptions ROWS_MSB_FIRST = new ExportOptions( Order.ROW_MAJOR, BitOrder.MSB_FIRST, DisplayLayout.Rotation.R0, false, false );
+
+    public ExportOptions
+    {
+        Validate.notNull( order, "order must not be null" );
+        Validate.notNull( bitOrder, "bitOrder must not be null" );
+        Validate.notNull( rotation, "rotation must not be null" );
+    }
+
+    public static ExportOptions defaults(DisplayLayout layout) {
+        return layout.isSingleModule() ? COLUMNS_LSB_FIRST : ROWS_MSB_FIRST;
+    }
+
+    // module in canvas orientation (byte = column) to the 8 exported bytes
+    public long apply(long module)
+    {
+        long m = module;
+        if ( flipHorizontal ) {
+            m = BitMatrix.flipHorizontal( m );
+        }
+        if ( flipVertical ) {
+            m = BitMatrix.flipVertical( m );
+        }
+        m = BitMatrix.rotate( m, rotation );
+        if ( order == Order.ROW_MAJOR ) {
+            m = BitMatrix.transpose( m );
+        }
+        if ( bitOrder == BitOrder.MSB_FIRST ) {
+            m = BitMatrix.reverseBitsInBytes( m );
+        }
+        return m;
+    }
+
+    // inverse of apply(long), exported bytes back to the module in canvas orientation
+    public long unapply(long bytes)
+    {
+        long m = bytes;
+        if ( bitOrder == BitOrder.MSB_FIRST ) {
+            m = BitMatrix.reverseBitsInBytes( m );
+        }
+        if ( order == Order.ROW_MAJOR ) {
+            m = BitMatrix.transpose( m );
+        }
+        m = BitMatrix.unrotate( m, rotation );
+        if ( flipVertical ) {
+            m = BitMatrix.flipVertical( m );
+        }
+        if ( flipHorizontal ) {
+            m = BitMatrix.flipHorizontal( m );
+        }
+        return m;
+    }
+
+    // e.g. "ROW_MAJOR MSB_FIRST R90 flipH"
+    public String toDataString()
+    {
+        return order + " " + bitOrder + " " + rotation + ( flipHorizontal ? " flipH" : "" ) + ( flipVertical ? " flipV" : "" );
+    }
+
+    public static ExportOptions fromDataString(String s)
+    {
+        Validate.notBlank( s, "options must not be null or blank" );
+        final String[] parts = StringUtils.split( s.trim(), ' ' );
+        Validate.isTrue( parts.length >= 3, "Invalid export options: %s", s );
+        boolean flipH = false;
+        boolean flipV = false;
+        for ( int i = 3; i < parts.length; i++ )
+        {
+            switch ( parts[i] )
+            {
+                case "flipH" -> flipH = true;
+                case "flipV" -> flipV = true;
+                default -> throw new IllegalArgumentException( "Unknown export option: " + parts[i] );
+            }
+        }
+        return new ExportOptions( Order.valueOf( parts[0] ), BitOrder.valueOf( parts[1] ), DisplayLayout.Rotation.valueOf( parts[2] ), flipH, flipV );
+    }
+}
@@ -0,0 +1,117 @@
+package de.codesourcery.arduino;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import javax.imageio.stream.ImageOutputStreamImpl;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Buffered {@link javax.imageio.stream.ImageOutputStream} that writes straight
+ * to a file channel instead of going through ImageIO's cache file.
+ *
+ * The channel is not closed when this stream is closed.
+ */
+final class FileChannelImageOutputStream extends ImageOutputStreamImpl
+{
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate( 64 * 1024 );
+
+    // file offset of the first byte in the buffer
+    private long bufferStart;
+
+    public FileChannelImageOutputStream(FileChannel channel) throws IOException
+    {
+        Validate.notNull( channel, "channel must not be null" );
+        this.channel = channel;
+        this.bufferStart = channel.position();
+        this.streamPos = bufferStart;
+        this.flushedPos = bufferStart;
+    }
+
+    private void flushBuffer() throws IOException
+    {
+        buffer.flip();
+        while ( buffer.hasRemaining() ) {
+            bufferStart += channel.write( buffer, bufferStart );
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        flushBits();
+        if ( ! buffer.hasRemaining() ) {
+            flushBuffer();
+        }
+        buffer.put( (byte) b );
+        streamPos++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        flushBits();
+        while ( len > 0 )
+        {
+            if ( ! buffer.hasRemaining() ) {
+                flushBuffer();
+            }
+            final int n = Math.min( len, buffer.remaining() );
+            buffer.put( b, off, n );
+            off += n;
+            len -= n;
+            streamPos += n;
+        }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        final byte[] tmp = new byte[1];
+        return read( tmp, 0, 1 ) == -1 ? -1 : tmp[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        checkClosed();
+        bitOffset = 0;
+        flushBuffer();
+        final int n = channel.read( ByteBuffer.wrap( b, off, len ), streamPos );
+        if ( n > 0 ) {
+            streamPos += n;
+        }
+        bufferStart = streamPos;
+        return n;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException
+    {
+        flushBuffer();
+        super.seek( pos );
+        bufferStart = pos;
+    }
+
+    @Override
+    public long length()
+    {
+        try
+        {
+            return Math.max( channel.size(), bufferStart + buffer.position() );
+        }
+        catch( IOException e )
+        {
+            return -1;
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        flushBuffer();
+        super.close();
+    }
+}
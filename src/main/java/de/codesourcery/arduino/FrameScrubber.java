@@ -0,0 +1,137 @@
+package de.codesourcery.arduino;
+
+import java.awt.DisplayMode;
+import java.awt.GraphicsEnvironment;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import javax.swing.Timer;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Moves through the frames of a project as fast as keys repeat without
+ * making the UI fall behind.
+ *
+ * Key presses move a logical cursor right away, showing the frame under
+ * the cursor happens at most once per display frame, so intermediate
+ * frames are skipped. Holding an arrow key accelerates: after a few
+ * repeats every step moves 2, then 4, ... frames. Jumps go straight to
+ * an index, so page and home/end cost the same for any number of frames.
+ */
+final class FrameScrubber
+{
+    // key repeats closer than this continue a scrub
+    private static final long REPEAT_WINDOW_NANOS = 250_000_000L;
+    // repeats before the step size doubles
+    private static final int REPEATS_PER_DOUBLING = 8;
+    private static final int MAX_STEP = 64;
+
+    private final IntSupplier frameCount;
+    private final IntSupplier displayedIndex;
+    private final IntConsumer show;
+    private final int frameMillis;
+    private final Timer timer;
+
+    private int cursor;
+    private int direction;
+    private int repeats;
+    private long lastMoveNanos;
+    private long lastShownNanos;
+
+    /**
+     * @param frameCount number of frames
+     * @param displayedIndex index of the frame currently shown
+     * @param show shows the frame at an index, called on the EDT
+     */
+    public FrameScrubber(IntSupplier frameCount, IntSupplier displayedIndex, IntConsumer show)
+    {
+        Validate.notNull( frameCount, "frameCount must not be null" );
+        Validate.notNull( displayedIndex, "displayedIndex must not be null" );
+        Validate.notNull( show, "show must not be null" );
+        this.frameCount = frameCount;
+        this.displayedIndex = displayedIndex;
+        this.show = show;
+        this.frameMillis = getFrameMillis();
+        this.timer = new Timer( frameMillis, ev -> showCursor() );
+        this.timer.setRepeats( false );
+    }
+
+    // display refresh interval, 60 Hz if unknown
+    private static int getFrameMillis()
+    {
+        if ( ! GraphicsEnvironment.isHeadless() )
+        {
+            final DisplayMode mode = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode();
+            if ( mode.getRefreshRate() != DisplayMode.REFRESH_RATE_UNKNOWN && mode.getRefreshRate() > 0 ) {
+                return Math.max( 1, 1000 / mode.getRefreshRate() );
+            }
+        }
+        return 1000 / 60;
+    }
+
+    // one arrow key press or repeat, direction is -1 or 1
+    public void step(int direction)
+    {
+        Validate.isTrue( direction == -1 || direction == 1, "direction must be -1 or 1" );
+        final long now = System.nanoTime();
+        if ( direction == this.direction && now - lastMoveNanos < REPEAT_WINDOW_NANOS ) {
+            repeats++;
+        } else {
+            repeats = 0;
+        }
+        this.direction = direction;
+        lastMoveNanos = now;
+        final int step = Math.min( MAX_STEP, 1 << Math.min( 30, repeats / REPEATS_PER_DOUBLING ) );
+        moveTo( currentCursor() + direction * step );
+    }
+
+    // jumps end a scrub, the next arrow key starts slow again
+    public void jumpBy(int delta)
+    {
+        direction = 0;
+        moveTo( currentCursor() + delta );
+    }
+
+    public void jumpTo(int index)
+    {
+        direction = 0;
+        moveTo( index );
+    }
+
+    // frame that is or will be shown next
+    public int getCursor() {
+        return currentCursor();
+    }
+
+    private int currentCursor() {
+        // without a pending update the displayed frame is the truth, it may have been changed otherwise
+        return timer.isRunning() ? cursor : displayedIndex.getAsInt();
+    }
+
+    private void moveTo(int index)
+    {
+        final int count = frameCount.getAsInt();
+        if ( count == 0 ) {
+            return;
+        }
+        cursor = Math.clamp( index, 0, count - 1 );
+        if ( timer.isRunning() ) {
+            return;
+        }
+        final long sinceShown = ( System.nanoTime() - lastShownNanos ) / 1_000_000;
+        if ( sinceShown >= frameMillis ) {
+            showCursor();
+        } else {
+            timer.setInitialDelay( (int) ( frameMillis - sinceShown ) );
+            timer.start();
+        }
+    }
+
+    private void showCursor()
+    {
+        lastShownNanos = System.nanoTime();
+        final int count = frameCount.getAsInt();
+        if ( count > 0 ) {
+            show.accept( Math.min( cursor, count - 1 ) );
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package de.codesourcery.arduino;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Persistent (immutable) sequence with O(log n) indexed access, insert and remove.
+ *
+ * Implemented as a rope: a height-balanced (AVL) binary tree whose leaves
+ * hold up to 32 elements. Every modification returns a new sequence that
+ * shares all untouched nodes with the old one, so holding on to an old
+ * version is a constant-time snapshot.
+ */
+public final class FrameSequence<T> implements Iterable<T>
+{
+    private static final int MAX_LEAF = 32;
+
+    private static final FrameSequence<?> EMPTY = new FrameSequence<>( null );
+
+    private abstract static sealed class Node permits Leaf, Branch
+    {
+        abstract int size();
+
+        abstract int height();
+    }
+
+    private static final class Leaf extends Node
+    {
+        final Object[] items;
+
+        Leaf(Object[] items) {
+            this.items = items;
+        }
+
+        @Override
+        int size() {
+            return items.length;
+        }
+
+        @Override
+        int height() {
+            return 0;
+        }
+    }
+
+    private static final class Branch extends Node
+    {
+        final Node left;
+        final Node right;
+        final int size;
+        final int height;
+
+        Branch(Node left, Node right)
+        {
+            this.left = left;
+            this.right = right;
+            this.size = left.size() + right.size();
+            this.height = Math.max( left.height(), right.height() ) + 1;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        int height() {
+            return height;
+        }
+    }
+
+    private final Node root;
+
+    private FrameSequence(Node root) {
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> FrameSequence<T> empty() {
+        return (FrameSequence<T>) EMPTY;
+    }
+
+    public static <T> FrameSequence<T> of(Collection<? extends T> items)
+    {
+        Validate.notNull( items, "items must not be null" );
+        final Object[] array = items.toArray();
+        final int leafCount = ( array.length + MAX_LEAF - 1 ) / MAX_LEAF;
+        final Node[] leaves = new Node[leafCount];
+        for ( int i = 0; i < leafCount; i++ )
+        {
+            final int start = i * MAX_LEAF;
+            leaves[i] = new Leaf( Arrays.copyOfRange( array, start, Math.min( array.length, start + MAX_LEAF ) ) );
+        }
+        return new FrameSequence<>( build( leaves, 0, leafCount ) );
+    }
+
+    private static Node build(Node[] leaves, int start, int end)
+    {
+        if ( start == end ) {
+            return null;
+        }
+        if ( end - start == 1 ) {
+            return leaves[start];
+        }
+        final int mid = ( start + end ) >>> 1;
+        return new Branch( build( leaves, start, mid ), build( leaves, mid, end ) );
+    }
+
+    public int size() {
+        return root == null ? 0 : root.size();
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int index)
+    {
+        Objects.checkIndex( index, size() );
+        Node n = root;
+        while ( n instanceof Branch b )
+        {
+            if ( index < b.left.size() ) {
+                n = b.left;
+            } else {
+                index -= b.left.size();
+                n = b.right;
+            }
+        }
+        return (T) ( (Leaf) n ).items[index];
+    }
+
+    public FrameSequence<T> set(int index, T value)
+    {
+        Objects.checkIndex( index, size() );
+        return new FrameSequence<>( set( root, index, value ) );
+    }
+
+    private static Node set(Node n, int index, Object value)
+    {
+        if ( n instanceof Branch b )
+        {
+            if ( index < b.left.size() ) {
+                return new Branch( set( b.left, index, value ), b.right );
+            }
+            return new Branch( b.left, set( b.right, index - b.left.size(), value ) );
+        }
+        final Object[] items = ( (Leaf) n ).items.clone();
+        items[index] = value;
+        return new Leaf( items );
+    }
+
+    public FrameSequence<T> insert(int index, T value)
+    {
+        Objects.checkIndex( index, size() + 1 );
+        if ( root == null ) {
+            return new FrameSequence<>( new Leaf( new Object[] { value } ) );
+        }
+        return new FrameSequence<>( insert( root, index, value ) );
+    }
+
+    public FrameSequence<T> append(T value) {
+        return insert( size(), value );
+    }
+
+    private static Node insert(Node n, int index, Object value)
+    {
+        if ( n instanceof Branch b )
+        {
+            if ( index <= b.left.size() ) {
+                return balance( insert( b.left, index, value ), b.right );
+            }
+            return balance( b.left, insert( b.right, index - b.left.size(), value ) );
+        }
+        final Object[] old = ( (Leaf) n ).items;
+        final Object[] items = new Object[old.length + 1];
+        System.arraycopy( old, 0, items, 0, index );
+        items[index] = value;
+        System.arraycopy( old, index, items, index + 1, old.length - index );
+        if ( items.length <= MAX_LEAF ) {
+            return new Leaf( items );
+        }
+        final int half = items.length / 2;
+        return new Branch( new Leaf( Arrays.copyOfRange( items, 0, half ) ),
+            new Leaf( Arrays.copyOfRange( items, half, items.length ) ) );
+    }
+
+    public FrameSequence<T> remove(int index)
+    {
+        Objects.checkIndex( index, size() );
+        return new FrameSequence<>( remove( root, index ) );
+    }
+
+    private static Node remove(Node n, int index)
+    {
+        if ( n instanceof Branch b )
+        {
+            final Node left, right;
+            if ( index < b.left.size() )
+            {
+                left = remove( b.left, index );
+                right = b.right;
+            } else {
+                left = b.left;
+                right = remove( b.right, index - b.left.size() );
+            }
+            if ( left == null ) {
+                return right;
+            }
+            if ( right == null ) {
+                return left;
+            }
+            // merge small neighbouring leaves so they do not degenerate
+            if ( left instanceof Leaf l && right instanceof Leaf r && l.size() + r.size() <= MAX_LEAF / 2 )
+            {
+                final Object[] items = Arrays.copyOf( l.items, l.size() + r.size() );
+                System.arraycopy( r.items, 0, items, l.size(), r.size() );
+                return new Leaf( items );
+            }
+            return balance( left, right );
+        }
+        final Object[] old = ( (Leaf) n ).items;
+        if ( old.length == 1 ) {
+            return null;
+        }
+        final Object[] items = new Object[old.length - 1];
+        System.arraycopy( old, 0, items, 0, index );
+        System.arraycopy( old, index + 1, items, index, old.length - index - 1 );
+        return new Leaf( items );
+    }
+
+    public FrameSequence<T> concat(FrameSequence<? extends T> other)
+    {
+        Validate.notNull( other, "other must not be null" );
+        return new FrameSequence<>( join( root, other.root ) );
+    }
+
+    public FrameSequence<T> appendAll(Collection<? extends T> items) {
+        return concat( of( items ) );
+    }
+
+    private static Node join(Node a, Node b)
+    {
+        if ( a == null ) {
+            return b;
+        }
+        if ( b == null ) {
+            return a;
+        }
+        if ( a.height() > b.height() + 1 )
+        {
+            final Branch ba = (Branch) a;
+            return balance( ba.left, join( ba.right, b ) );
+        }
+        if ( b.height() > a.height() + 1 )
+        {
+            final Branch bb = (Branch) b;
+            return balance( join( a, bb.left ), bb.right );
+        }
+        return new Branch( a, b );
+    }
+
+    // creates a branch, rotating if the heights of left and right differ by 2
+    private static Node balance(Node left, Node right)
+    {
+        final int diff = left.height() - right.height();
+        if ( diff > 1 )
+        {
+            final Branch l = (Branch) left;
+            if ( l.left.height() >= l.right.height() ) {
+                return new Branch( l.left, new Branch( l.right, right ) );
+            }
+            final Branch lr = (Branch) l.right;
+            return new Branch( new Branch( l.left, lr.left ), new Branch( lr.right, right ) );
+        }
+        if ( diff < -1 )
+        {
+            final Branch r = (Branch) right;
+            if ( r.right.height() >= r.left.height() ) {
+                return new Branch( new Branch( left, r.left ), r.right );
+            }
+            final Branch rl = (Branch) r.left;
+            return new Branch( new Branch( left, rl.left ), new Branch( rl.right, r.right ) );
+        }
+        return new Branch( left, right );
+    }
+
+    public int indexOf(Object o)
+    {
+        int idx = 0;
+        for ( final T item : this )
+        {
+            if ( Objects.equals( item, o ) ) {
+                return idx;
+            }
+            idx++;
+        }
+        return -1;
+    }
+
+    @Override
+    public Iterator<T> iterator()
+    {
+        return new Iterator<>()
+        {
+            private final Deque<Node> stack = new ArrayDeque<>();
+            private Object[] leaf;
+            private int ptr;
+
+            {
+                if ( root != null ) {
+                    descend( root );
+                }
+            }
+
+            private void descend(Node n)
+            {
+                while ( n instanceof Branch b )
+                {
+                    stack.push( b.right );
+                    n = b.left;
+                }
+                leaf = ( (Leaf) n ).items;
+                ptr = 0;
+            }
+
+            @Override
+            public boolean hasNext()
+            {
+                return leaf != null && ( ptr < leaf.length || ! stack.isEmpty() );
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next()
+            {
+                if ( ! hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                if ( ptr == leaf.length ) {
+                    descend( stack.pop() );
+                }
+                return (T) leaf[ptr++];
+            }
+        };
+    }
+
+    // read-only list view of this version
+    public List<T> asList()
+    {
+        return new AbstractList<>()
+        {
+            @Override
+            public T get(int index) {
+                return FrameSequence.this.get( index );
+            }
+
+            @Override
+            public int size() {
+                return FrameSequence.this.size();
+            }
+
+            @Override
+            public Iterator<T> iterator() {
+                return FrameSequence.this.iterator();
+            }
+
+            @Override
+            public int indexOf(Object o) {
+                return FrameSequence.this.indexOf( o );
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return FrameSequence.this.indexOf( o ) != -1;
+            }
+        };
+    }
+}
@@ -0,0 +1,243 @@
+package de.codesourcery.arduino;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Arena holding the pixels of all frames of the same size.
+ *
+ * Frame bits, flags and versions live in parallel primitive arrays indexed
+ * by slot number, {@link Image} instances are just views on a slot. The
+ * arrays are allocated in fixed-size chunks that never move, so growing
+ * the arena never races with threads writing to existing slots.
+ *
+ * Pixels are stored column-major like the exported data: every column
+ * occupies a bit field of 8, 16, 32 or 64 bits (the smallest one that fits
+ * the height) with row 0 in the least significant bit, columns never
+ * straddle words.
+ */
+public final class FrameStore
+{
+    private static final int CHUNK_SHIFT = 12;
+    private static final int CHUNK_SLOTS = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SLOTS - 1;
+
+    private static final byte FLAG_ALLOCATED = 1;
+    private static final byte FLAG_DIRTY = 2;
+
+    private static final Map<Long,FrameStore> STORES = new HashMap<>();
+
+    public final int width;
+    public final int height;
+    public final int bitsPerColumn;
+    public final int columnsPerWord;
+    public final int wordsPerFrame;
+
+    // mask of all bits belonging to a column
+    private final long columnMask;
+    // mask of all bits in a word that map to pixels
+    private final long[] validMask;
+
+    private volatile long[][] bits = new long[0][];
+    private volatile byte[][] flags = new byte[0][];
+    private volatile int[][] versions = new int[0][];
+
+    private int slotCount;
+    private int[] freeSlots = new int[16];
+    private int freeCount;
+
+    private FrameStore(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        this.bitsPerColumn = Math.max( 8, Integer.highestOneBit( height - 1 ) << 1 );
+        this.columnsPerWord = 64 / bitsPerColumn;
+        this.wordsPerFrame = ( width + columnsPerWord - 1 ) / columnsPerWord;
+        this.columnMask = bitsPerColumn == 64 ? -1L : ( 1L << bitsPerColumn ) - 1;
+
+        final long rows = height == 64 ? -1L : ( 1L << height ) - 1;
+        this.validMask = new long[wordsPerFrame];
+        for ( int x = 0; x < width; x++ ) {
+            validMask[x / columnsPerWord] |= rows << ( ( x % columnsPerWord ) * bitsPerColumn );
+        }
+    }
+
+    public static FrameStore of(int width, int height)
+    {
+        Validate.inclusiveBetween( 1, 4096, width, "width must be in range 1..4096" );
+        Validate.inclusiveBetween( 1, 64, height, "height must be in range 1..64" );
+        synchronized ( STORES )
+        {
+            return STORES.computeIfAbsent( (long) width << 32 | height, k -> new FrameStore( width, height ) );
+        }
+    }
+
+    // returns a zeroed slot
+    public synchronized int allocate()
+    {
+        final int slot;
+        if ( freeCount > 0 )
+        {
+            slot = freeSlots[--freeCount];
+            Arrays.fill( bits[slot >>> CHUNK_SHIFT], offset( slot ), offset( slot ) + wordsPerFrame, 0 );
+        }
+        else
+        {
+            slot = slotCount++;
+            if ( ( slot >>> CHUNK_SHIFT ) == bits.length ) {
+                addChunk();
+            }
+        }
+        flags[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] = FLAG_ALLOCATED;
+        versions[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK]++;
+        return slot;
+    }
+
+    private void addChunk()
+    {
+        final int chunks = bits.length + 1;
+        final long[][] newBits = Arrays.copyOf( bits, chunks );
+        final byte[][] newFlags = Arrays.copyOf( flags, chunks );
+        final int[][] newVersions = Arrays.copyOf( versions, chunks );
+        newBits[chunks - 1] = new long[CHUNK_SLOTS * wordsPerFrame];
+        newFlags[chunks - 1] = new byte[CHUNK_SLOTS];
+        newVersions[chunks - 1] = new int[CHUNK_SLOTS];
+        versions = newVersions;
+        flags = newFlags;
+        bits = newBits;
+    }
+
+    // the slot must not be used afterwards
+    public synchronized void release(int slot)
+    {
+        final byte[] chunk = flags[slot >>> CHUNK_SHIFT];
+        Validate.isTrue( ( chunk[slot & CHUNK_MASK] & FLAG_ALLOCATED ) != 0, "Slot %d is not allocated", slot );
+        chunk[slot & CHUNK_MASK] = 0;
+        if ( freeCount == freeSlots.length ) {
+            freeSlots = Arrays.copyOf( freeSlots, freeCount * 2 );
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    public synchronized int getAllocatedCount() {
+        return slotCount - freeCount;
+    }
+
+    private int offset(int slot) {
+        return ( slot & CHUNK_MASK ) * wordsPerFrame;
+    }
+
+    private int wordIndex(int x) {
+        return x / columnsPerWord;
+    }
+
+    private int shift(int x, int y) {
+        return ( x % columnsPerWord ) * bitsPerColumn + y;
+    }
+
+    public boolean isSet(int slot, int x, int y)
+    {
+        final long word = bits[slot >>> CHUNK_SHIFT][offset( slot ) + wordIndex( x )];
+        return ( word & 1L << shift( x, y ) ) != 0;
+    }
+
+    public boolean set(int slot, int x, int y, boolean onOff)
+    {
+        final long[] chunk = bits[slot >>> CHUNK_SHIFT];
+        final int idx = offset( slot ) + wordIndex( x );
+        final long mask = 1L << shift( x, y );
+        final long oldValue = chunk[idx];
+        final long newValue = onOff ? oldValue | mask : oldValue & ~mask;
+        if ( oldValue == newValue ) {
+            return false;
+        }
+        chunk[idx] = newValue;
+        modified( slot );
+        return true;
+    }
+
+    public long getColumn(int slot, int x)
+    {
+        final long word = bits[slot >>> CHUNK_SHIFT][offset( slot ) + wordIndex( x )];
+        return ( word >>> shift( x, 0 ) ) & columnMask;
+    }
+
+    public boolean setColumn(int slot, int x, long value)
+    {
+        final int s = shift( x, 0 );
+        final long mask = columnMask << s;
+        return setWord( slot, wordIndex( x ), ( getWord( slot, wordIndex( x ) ) & ~mask ) | ( ( value << s ) & mask ) );
+    }
+
+    public long getWord(int slot, int word)
+    {
+        return bits[slot >>> CHUNK_SHIFT][offset( slot ) + word];
+    }
+
+    public boolean setWord(int slot, int word, long value)
+    {
+        final long[] chunk = bits[slot >>> CHUNK_SHIFT];
+        final int idx = offset( slot ) + word;
+        value &= validMask[word];
+        if ( chunk[idx] == value ) {
+            return false;
+        }
+        chunk[idx] = value;
+        modified( slot );
+        return true;
+    }
+
+    public long getValidMask(int word) {
+        return validMask[word];
+    }
+
+    // sets all pixels to the same value
+    public boolean fill(int slot, boolean onOff)
+    {
+        boolean changed = false;
+        for ( int i = 0; i < wordsPerFrame; i++ )
+        {
+            changed |= setWord( slot, i, onOff ? -1L : 0 );
+        }
+        return changed;
+    }
+
+    public void copy(int srcSlot, int dstSlot)
+    {
+        System.arraycopy( bits[srcSlot >>> CHUNK_SHIFT], offset( srcSlot ),
+            bits[dstSlot >>> CHUNK_SHIFT], offset( dstSlot ), wordsPerFrame );
+        versions[dstSlot >>> CHUNK_SHIFT][dstSlot & CHUNK_MASK]++;
+    }
+
+    public boolean contentEquals(int slot, FrameStore otherStore, int otherSlot)
+    {
+        if ( otherStore != this && ( otherStore.width != width || otherStore.height != height ) ) {
+            return false;
+        }
+        return Arrays.equals( bits[slot >>> CHUNK_SHIFT], offset( slot ), offset( slot ) + wordsPerFrame,
+            otherStore.bits[otherSlot >>> CHUNK_SHIFT], otherStore.offset( otherSlot ), otherStore.offset( otherSlot ) + wordsPerFrame );
+    }
+
+    private void modified(int slot)
+    {
+        flags[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] |= FLAG_DIRTY;
+        versions[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK]++;
+    }
+
+    public boolean isDirty(int slot) {
+        return ( flags[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK] & FLAG_DIRTY ) != 0;
+    }
+
+    public void setDirty(int slot, boolean dirty)
+    {
+        final byte[] chunk = flags[slot >>> CHUNK_SHIFT];
+        chunk[slot & CHUNK_MASK] = (byte) ( dirty ? chunk[slot & CHUNK_MASK] | FLAG_DIRTY : chunk[slot & CHUNK_MASK] & ~FLAG_DIRTY );
+    }
+
+    // incremented on every modification of the slot's pixels
+    public int getVersion(int slot) {
+        return versions[slot >>> CHUNK_SHIFT][slot & CHUNK_MASK];
+    }
+}
@@ -5,68 +5,187 @@ import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.Objects;
+import java.util.function.Predicate;
+import org.apache.commons.lang3.Validate;
 
+/**
+ * A single frame.
+ *
+ * Pixels live in a {@link FrameStore}, this class is a view on one of its
+ * slots. Frames are owned by their project and returned to the store by
+ * {@link #release()} when the project is disposed.
+ *
+ * Frames with more than one bit per pixel keep each bit of the brightness
+ * level in a plane of its own (plane 0 = LSB), every plane being a 1-bit
+ * frame in the same store. The 1-bit operations of this class apply to all
+ * planes alike, so for them a pixel is either off (level 0) or fully on
+ * (maximum level), reading returns whether the pixel is lit at all.
+ */
 public class Image
 {
-    private static final AtomicLong ID = new AtomicLong();
+    public static final int MAX_BITS_PER_PIXEL = 8;
 
-    private final long imageId = ID.getAndIncrement();
+    private final FrameStore store;
+    private final int slot;
+    // null for 1-bit frames, planes[0] is a view on slot
+    private final Image[] planes;
 
-    public byte[] data = new byte[8];
+    public Image() {
+        this( FrameStore.of( 8, 8 ) );
+    }
 
-    private boolean isDirty;
+    public Image(FrameStore store) {
+        this( store, 1 );
+    }
 
-    public Image() {
+    public Image(FrameStore store, int bitsPerPixel)
+    {
+        Validate.inclusiveBetween( 1, MAX_BITS_PER_PIXEL, bitsPerPixel, "bits per pixel must be in range 1..%d", MAX_BITS_PER_PIXEL );
+        this.store = store;
+        this.slot = store.allocate();
+        if ( bitsPerPixel == 1 ) {
+            this.planes = null;
+        }
+        else
+        {
+            this.planes = new Image[bitsPerPixel];
+            this.planes[0] = new Image( this );
+            for ( int i = 1; i < bitsPerPixel; i++ ) {
+                this.planes[i] = new Image( store );
+            }
+        }
+    }
+
+    // 1-bit view on the slot of another frame
+    private Image(Image owner)
+    {
+        this.store = owner.store;
+        this.slot = owner.slot;
+        this.planes = null;
     }
 
     public int getWidth() {
-        return 8;
+        return store.width;
     }
 
     public int getHeight() {
-        return 8;
+        return store.height;
     }
 
-
     public Image(byte[] data) {
-        this.data = data;
+        this();
+        Validate.isTrue( data.length <= getWidth(), "Expected at most %d columns but got %d", getWidth(), data.length );
+        for ( int x = 0; x < data.length; x++ ) {
+            store.setColumn( slot, x, data[x] & 0xff );
+        }
+        store.setDirty( slot, false );
     }
 
-    public boolean isSet(int x, int y) {
-        final int bitMask =1<<y;
-        return (data[x] & bitMask) != 0;
+    public int getBitsPerPixel() {
+        return planes == null ? 1 : planes.length;
     }
 
-    public boolean fill() {
+    public int getMaxLevel() {
+        return ( 1 << getBitsPerPixel() ) - 1;
+    }
+
+    // 1-bit frame holding bit 'plane' of every pixel's brightness level
+    public Image getPlane(int plane)
+    {
+        Objects.checkIndex( plane, getBitsPerPixel() );
+        return planes == null ? this : planes[plane];
+    }
 
+    public int getLevel(int x, int y)
+    {
+        if ( planes == null ) {
+            return store.isSet( slot, x, y ) ? 1 : 0;
+        }
+        int result = 0;
+        for ( int i = 0; i < planes.length; i++ ) {
+            result |= planes[i].isSet( x, y ) ? 1 << i : 0;
+        }
+        return result;
+    }
+
+    public boolean setLevel(int x, int y, int level)
+    {
+        Validate.inclusiveBetween( 0, getMaxLevel(), level, "level must be in range 0..%d", getMaxLevel() );
+        if ( planes == null ) {
+            return store.set( slot, x, y, level != 0 );
+        }
         boolean changed = false;
-        for ( final byte b : data )
+        for ( int i = 0; i < planes.length; i++ ) {
+            changed |= planes[i].set( x, y, ( level & 1 << i ) != 0 );
+        }
+        return changed;
+    }
+
+    /**
+     * Returns a copy with a different number of bits per pixel, levels are
+     * scaled so that fully lit pixels stay fully lit.
+     */
+    public Image convert(int bitsPerPixel)
+    {
+        final Image result = new Image( store, bitsPerPixel );
+        final int from = getMaxLevel();
+        final int to = result.getMaxLevel();
+        for ( int x = 0; x < getWidth(); x++ )
         {
-            if (b != 0xff ) {
-                changed = true;
-                break;
+            for ( int y = 0; y < getHeight(); y++ )
+            {
+                final int level = getLevel( x, y );
+                if ( level != 0 ) {
+                    result.setLevel( x, y, ( level * to + from / 2 ) / from );
+                }
             }
         }
-        Arrays.fill( data, (byte) 0xff );
-        isDirty |= changed;
-        return changed;
+        result.setDirty( false );
+        return result;
+    }
+
+    public FrameStore getStore() {
+        return store;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public boolean isSet(int x, int y) {
+        if ( planes != null ) {
+            for ( final Image plane : planes ) {
+                if ( plane.isSet( x, y ) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return store.isSet( slot, x, y );
+    }
+
+    public boolean fill() {
+        if ( planes != null ) {
+            return forAllPlanes( Image::fill );
+        }
+        return store.fill( slot, true );
     }
 
     public boolean clear() {
+        if ( planes != null ) {
+            return forAllPlanes( Image::clear );
+        }
+        return store.fill( slot, false );
+    }
 
+    private boolean forAllPlanes(Predicate<Image> op)
+    {
         boolean changed = false;
-        for ( final byte b : data )
-        {
-            if (b != 0 ) {
-                changed = true;
-                break;
-            }
+        for ( final Image plane : planes ) {
+            changed |= op.test( plane );
         }
-        Arrays.fill( data, (byte) 0 );
-        isDirty |= changed;
         return changed;
     }
 
@@ -75,16 +194,82 @@ public class Image
     }
 
     public boolean set(int x, int y,boolean onOff) {
-        final int bitMask = 1<<y;
-        byte oldValue = data[x];
-        if ( onOff ) {
-            data[x] |= bitMask;
-        } else {
-            data[x] &= ~bitMask;
+        if ( planes != null ) {
+            return forAllPlanes( plane -> plane.set( x, y, onOff ) );
+        }
+        return store.set( slot, x, y, onOff );
+    }
+
+    public long getColumn(int x) {
+        if ( planes != null ) {
+            long result = 0;
+            for ( final Image plane : planes ) {
+                result |= plane.getColumn( x );
+            }
+            return result;
+        }
+        return store.getColumn( slot, x );
+    }
+
+    public boolean setColumn(int x, long value) {
+        if ( planes != null ) {
+            return forAllPlanes( plane -> plane.setColumn( x, value ) );
         }
-        final boolean hasChanged = oldValue != data[x];
-        isDirty |= hasChanged;
-        return hasChanged;
+        return store.setColumn( slot, x, value );
+    }
+
+    public int getWordCount() {
+        return store.wordsPerFrame;
+    }
+
+    // raw words as laid out by the store, see FrameStore
+    public long getWord(int idx) {
+        if ( planes != null ) {
+            long result = 0;
+            for ( final Image plane : planes ) {
+                result |= plane.getWord( idx );
+            }
+            return result;
+        }
+        return store.getWord( slot, idx );
+    }
+
+    public boolean setWord(int idx, long value) {
+        if ( planes != null ) {
+            return forAllPlanes( plane -> plane.setWord( idx, value ) );
+        }
+        return store.setWord( slot, idx, value );
+    }
+
+    // replaces all pixels, marks this frame dirty if anything changed
+    public boolean copyFrom(Image other)
+    {
+        Validate.isTrue( other.getWidth() == getWidth() && other.getHeight() == getHeight(), "Frame sizes differ" );
+        Validate.isTrue( other.getBitsPerPixel() == getBitsPerPixel(), "Bits per pixel differ" );
+        boolean changed = false;
+        for ( int p = 0; p < getBitsPerPixel(); p++ )
+        {
+            final Image src = other.getPlane( p );
+            final Image dst = getPlane( p );
+            for ( int i = 0; i < store.wordsPerFrame; i++ ) {
+                changed |= dst.store.setWord( dst.slot, i, src.store.getWord( src.slot, i ) );
+            }
+        }
+        return changed;
+    }
+
+    // all 64 pixels of an 8x8 frame, column x in byte x
+    public long getBits() {
+        return getWord( 0 );
+    }
+
+    public byte[] toByteArray()
+    {
+        final byte[] result = new byte[getWidth()];
+        for ( int x = 0; x < result.length; x++ ) {
+            result[x] = (byte) getColumn( x );
+        }
+        return result;
     }
 
     public java.awt.Image render() {
@@ -94,7 +279,7 @@ public class Image
         {
             for ( int x = 0 ; x < getWidth() ; x++ )
             {
-                gfx.setColor( isSet(x,y) ? Color.WHITE : Color.BLACK );
+                gfx.setColor( getColor( getLevel( x, y ) ) );
                 gfx.fillRect( x, y, 1, 1 );
             }
         }
@@ -102,20 +287,58 @@ public class Image
         return img;
     }
 
+    // gray value used to display a brightness level
+    public Color getColor(int level)
+    {
+        final int gray = level * 255 / getMaxLevel();
+        return new Color( gray, gray, gray );
+    }
+
+    // planes are separated by ';', LSB first
     public String toDataString() {
 
         StringBuilder b = new StringBuilder();
-        for ( int x = 0 ; x < getWidth() ; x++ )
+        for ( int p = 0; p < getBitsPerPixel(); p++ )
         {
-            final byte value = data[x];
-            b.append("0x").append(Integer.toHexString(value & 0xff));
-            if ( (x+1) <  getWidth()  ) {
-                b.append( ", ");
+            if ( p > 0 ) {
+                b.append( "; " );
+            }
+            final Image plane = getPlane( p );
+            for ( int x = 0 ; x < getWidth() ; x++ )
+            {
+                final long value = plane.getColumn( x );
+                b.append("0x").append(Long.toHexString(value));
+                if ( (x+1) <  getWidth()  ) {
+                    b.append( ", ");
+                }
             }
         }
         return b.toString();
     }
 
+    // parses columns of any height into a frame of the given geometry
+    public static Image fromDataString(String s, FrameStore store)
+    {
+        final String[] planes = s.split(";");
+        final Image result = new Image( store, planes.length );
+        for ( int p = 0; p < planes.length; p++ )
+        {
+            final String[] parts = planes[p].split(",");
+            Validate.isTrue( parts.length <= store.width, "Expected at most %d columns but got %d", store.width, parts.length );
+            final Image plane = result.getPlane( p );
+            for ( int x = 0; x < parts.length; x++ )
+            {
+                String part = parts[x].trim();
+                if ( part.startsWith("0x") || part.startsWith( "0X" ) ) {
+                    part = part.substring( 2 );
+                }
+                plane.setColumn( x, Long.parseUnsignedLong( part, 16 ) );
+            }
+        }
+        result.setDirty( false );
+        return result;
+    }
+
     public static Image fromDataString(String s) {
 
         String[] parts = s.split(",");
@@ -137,24 +360,79 @@ public class Image
 
     public void setDirty(boolean dirty)
     {
-        isDirty = dirty;
+        if ( planes != null ) {
+            for ( final Image plane : planes ) {
+                plane.setDirty( dirty );
+            }
+            return;
+        }
+        store.setDirty( slot, dirty );
     }
 
     public boolean isDirty()
     {
-        return isDirty;
+        if ( planes != null ) {
+            for ( final Image plane : planes ) {
+                if ( plane.isDirty() ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return store.isDirty( slot );
+    }
+
+    // changes whenever a pixel changes
+    public int getVersion()
+    {
+        if ( planes != null ) {
+            int result = 0;
+            for ( final Image plane : planes ) {
+                result += plane.getVersion();
+            }
+            return result;
+        }
+        return store.getVersion( slot );
+    }
+
+    public boolean contentEquals(Image other)
+    {
+        if ( other.getBitsPerPixel() != getBitsPerPixel() ) {
+            return false;
+        }
+        for ( int p = 0; p < getBitsPerPixel(); p++ )
+        {
+            final Image a = getPlane( p );
+            final Image b = other.getPlane( p );
+            if ( ! a.store.contentEquals( a.slot, b.store, b.slot ) ) {
+                return false;
+            }
+        }
+        return true;
     }
 
     public Image createCopy()
     {
-        final byte[] data = new byte[this.data.length];
-        System.arraycopy( this.data, 0, data , 0 , data.length );
-        return new Image( data );
+        final Image copy = new Image( store, getBitsPerPixel() );
+        for ( int p = 0; p < getBitsPerPixel(); p++ ) {
+            store.copy( getPlane( p ).slot, copy.getPlane( p ).slot );
+        }
+        return copy;
+    }
+
+    public void release()
+    {
+        if ( planes != null ) {
+            for ( int i = 1; i < planes.length; i++ ) {
+                planes[i].release();
+            }
+        }
+        store.release( slot );
     }
 
     @Override
     public String toString()
     {
-        return "Image #" + imageId;
+        return "Image #" + slot;
     }
-}
\ No newline at end of file
+}
@@ -7,12 +7,18 @@ import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JViewport;
 import org.apache.commons.lang3.Validate;
 import de.codesourcery.arduino.events.CurrentImageChangedEvent;
+import de.codesourcery.arduino.jfr.PaintEvent;
 
 public class ImageSelectionPanel extends JPanel
 {
@@ -21,8 +27,20 @@ public class ImageSelectionPanel extends JPanel
     private static final int IMG_WIDTH = 32;
     private static final int IMG_HEIGHT = 32;
 
+    private static final Color PLACEHOLDER = Color.DARK_GRAY;
+
+    // number of thumbnails to the left and right of the visible ones that get rendered ahead of time
+    private static final int PREFETCH = 16;
+
     private Project project;
     private Image selectedImage;
+    // index of the selected image as of the last selection, checked before use as frames may have moved since
+    private int selectedIndex;
+
+    // frames marked by "select similar"
+    private Set<Image> highlightedImages = Collections.emptySet();
+
+    private final ThumbnailRenderer thumbnails = new ThumbnailRenderer( 4096, this::thumbnailReady );
 
     private int x0,y0;
     private int imgWidth, imgHeight;
@@ -67,8 +85,37 @@ public class ImageSelectionPanel extends JPanel
     public void setSelectedImage(Image selectedImage)
     {
         Validate.notNull( selectedImage, "selectedImage must not be null" );
+        select( getProject().getImages().indexOf( selectedImage ), selectedImage );
+        update();
+    }
+
+    // selects by position, without searching the frame list
+    public void setSelectedIndex(int idx)
+    {
+        select( idx, getProject().getImages().get( idx ) );
+        repaint();
+    }
+
+    public int getSelectedIndex()
+    {
+        final List<Image> images = getProject().getImages();
+        if ( selectedIndex < 0 || selectedIndex >= images.size() || images.get( selectedIndex ) != selectedImage ) {
+            selectedIndex = images.indexOf( selectedImage );
+        }
+        return selectedIndex;
+    }
+
+    // number of thumbnails that fit into the visible part of the panel
+    public int getVisibleFrameCount()
+    {
+        final int width = getParent() instanceof JViewport vp ? vp.getExtentSize().width : getWidth();
+        return Math.max( 1, width / Math.max( 1, imgWidth + IMG_SPACING ) );
+    }
+
+    private void select(int idx, Image selectedImage)
+    {
         this.selectedImage = selectedImage;
-        final int idx = getProject().getImages().indexOf( selectedImage );
+        this.selectedIndex = idx;
         final Rectangle imageRect = new Rectangle();
         getPreviewBounds( idx, imageRect );
         final JViewport vp = (JViewport) getParent();
@@ -83,14 +130,29 @@ public class ImageSelectionPanel extends JPanel
         {
             vp.scrollRectToVisible( imageRect );
         }
-        update();
         EventBus.send( new CurrentImageChangedEvent( this, getProject(), selectedImage) );
     }
 
+    public void setHighlightedImages(Collection<Image> images)
+    {
+        Validate.notNull( images, "images must not be null" );
+        final Set<Image> set = Collections.newSetFromMap( new IdentityHashMap<>() );
+        set.addAll( images );
+        this.highlightedImages = set;
+        repaint();
+    }
+
+    public Set<Image> getHighlightedImages()
+    {
+        return Collections.unmodifiableSet( highlightedImages );
+    }
+
     public void setProject(Project project)
     {
         Validate.notNull( project, "project must not be null" );
         this.project = project;
+        this.highlightedImages = Collections.emptySet();
+        thumbnails.clear();
         setSelectedImage( project.getFirstImage() );
         update();
     }
@@ -118,7 +180,7 @@ public class ImageSelectionPanel extends JPanel
 
     public void newImage() {
         System.out.println( "Adding image." );
-        final Image img = new Image();
+        final Image img = project.createImage();
         project.add( img );
         setSelectedImage( img );
         update();
@@ -132,6 +194,8 @@ public class ImageSelectionPanel extends JPanel
     @Override
     protected void paintComponent(Graphics g)
     {
+        final PaintEvent event = new PaintEvent();
+        event.begin();
         super.paintComponent( g );
 
         g.setColor( Color.BLACK );
@@ -148,34 +212,101 @@ public class ImageSelectionPanel extends JPanel
 
         final Rectangle tmp = new Rectangle();
 
-        for ( int i = 0; i < images.size(); i++ )
+        // only thumbnails intersecting the clip are painted
+        final Rectangle clip = g.getClipBounds() != null ? g.getClipBounds() : new Rectangle( 0, 0, getWidth(), getHeight() );
+        final int first = Math.max( 0, indexAt( clip.x ) );
+        final int last = Math.min( images.size() - 1, indexAt( clip.x + clip.width ) );
+
+        for ( int i = first; i <= last; i++ )
         {
             final Image image = images.get( i );
             getPreviewBounds( i, tmp );
 
-            g.setColor( image == selectedImage ? Color.RED : Color.WHITE );
+            g.setColor( image == selectedImage ? Color.RED : highlightedImages.contains( image ) ? Color.ORANGE : Color.WHITE );
             g.drawRect( tmp.x, tmp.y, tmp.width, tmp.height );
 
-            final java.awt.Image toDraw = image.render();
-            g.drawImage( toDraw, tmp.x+1, tmp.y + 1, tmp.width-1, tmp.height-1, null  );
+            // an outdated thumbnail is shown until the new one arrives
+            final java.awt.Image toDraw = thumbnails.get( image );
+            if ( toDraw != null ) {
+                g.drawImage( toDraw, tmp.x+1, tmp.y + 1, tmp.width-1, tmp.height-1, null  );
+            } else {
+                g.setColor( PLACEHOLDER );
+                g.fillRect( tmp.x+1, tmp.y + 1, tmp.width-1, tmp.height-1 );
+            }
+        }
+        requestThumbnails( images );
+
+        event.end();
+        if ( event.shouldCommit() )
+        {
+            event.component = PaintEvent.FILMSTRIP;
+            event.paintedFrames = Math.max( 0, last - first + 1 );
+            event.totalFrames = images.size();
+            event.clipWidth = clip.width;
+            event.clipHeight = clip.height;
+            event.commit();
+        }
+    }
+
+    private int indexAt(int x) {
+        return ( x - x0 ) / ( imgWidth + IMG_SPACING );
+    }
+
+    // queues the visible thumbnails first, then the ones next to them, and cancels everything else
+    private void requestThumbnails(List<Image> images)
+    {
+        final Rectangle visible = getVisibleRect();
+        final int first = Math.max( 0, indexAt( visible.x ) );
+        final int last = Math.min( images.size() - 1, indexAt( visible.x + visible.width ) );
+        // nothing is visible while the view shows only the margin left of the first thumbnail
+        final List<Image> wanted = new ArrayList<>( first <= last ? images.subList( first, last + 1 ) : List.of() );
+        for ( int i = 1; i <= PREFETCH; i++ )
+        {
+            if ( last + i >= 0 && last + i < images.size() ) {
+                wanted.add( images.get( last + i ) );
+            }
+            if ( first - i >= 0 ) {
+                wanted.add( images.get( first - i ) );
+            }
+        }
+        thumbnails.retain( wanted );
+    }
+
+    private void thumbnailReady(Image image)
+    {
+        // thumbnails outside the visible area need no repaint, so only look there
+        final List<Image> images = project.getImages();
+        final Rectangle r = getVisibleRect();
+        final int first = Math.max( 0, indexAt( r.x ) );
+        final int last = Math.min( images.size() - 1, indexAt( r.x + r.width ) );
+        for ( int i = first; i <= last; i++ )
+        {
+            if ( images.get( i ) == image )
+            {
+                getPreviewBounds( i, r );
+                repaint( r.x, r.y, r.width + 1, r.height + 1 );
+                return;
+            }
         }
     }
 
     public void duplicateImage() {
         final Image copy = getSelectedImage().createCopy();
-        final List<Image> images = project.getImages();
-        final int idx = images.indexOf( getSelectedImage() );
+        final int idx = getSelectedIndex();
         project.add( idx+1, copy );
         setSelectedImage( copy );
         update();
     }
 
     public void deleteImage(Image image) {
-        final List<Image> images = project.getImages();
-        final int idx = images.indexOf( image );
-        project.delete( image );
+        final int idx = project.getImages().indexOf( image );
+        if ( idx == -1 ) {
+            return;
+        }
+        project.delete( idx );
         if ( selectedImage == image )
         {
+            final List<Image> images = project.getImages();
             setSelectedImage( idx < images.size() ? images.get( idx ) : images.getLast() );
         }
         update();
@@ -183,11 +314,9 @@ public class ImageSelectionPanel extends JPanel
 
     public boolean selectPreviousImage()
     {
-        final List<Image> images = project.getImages();
-        final int newIdx = images.indexOf( selectedImage )-1;
+        final int newIdx = getSelectedIndex() - 1;
         if ( newIdx >= 0 ) {
-            setSelectedImage( images.get( newIdx ) );
-            repaint();
+            setSelectedIndex( newIdx );
             return true;
         }
         return false;
@@ -195,11 +324,9 @@ public class ImageSelectionPanel extends JPanel
 
     public boolean selectNextImage()
     {
-        final List<Image> images = project.getImages();
-        final int newIdx = images.indexOf( selectedImage ) + 1;
-        if ( newIdx < images.size() ) {
-            setSelectedImage( images.get( newIdx ) );
-            repaint();
+        final int newIdx = getSelectedIndex() + 1;
+        if ( newIdx < project.getImages().size() ) {
+            setSelectedIndex( newIdx );
             return true;
         }
         return false;
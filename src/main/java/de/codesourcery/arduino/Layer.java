@@ -0,0 +1,148 @@
+package de.codesourcery.arduino;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * One layer of a {@link LayerStack}.
+ *
+ * The pixels are a regular frame of the same size and brightness levels as
+ * the frame the stack belongs to. How the layer is combined with the
+ * layers below it is determined by its blend mode.
+ */
+public final class Layer
+{
+    /**
+     * How a layer combines with the result of the layers below it.
+     *
+     * Operations work on whole words of the frame store. For frames with
+     * more than one bit per pixel OR and XOR apply to every bit plane
+     * separately, AND and MASK use the pixels the layer lights at any
+     * level.
+     */
+    public enum BlendMode
+    {
+        // lights the layer's pixels
+        OR,
+        // keeps only pixels the layer lights as well
+        AND,
+        // inverts the layer's pixels
+        XOR,
+        // turns off the layer's pixels
+        MASK;
+
+        /**
+         * @param below word of the result so far
+         * @param plane same word of the layer's bit plane
+         * @param lit same word with all pixels lit by the layer at any level
+         */
+        long apply(long below, long plane, long lit)
+        {
+            return switch ( this )
+            {
+                case OR -> below | plane;
+                case AND -> below & lit;
+                case XOR -> below ^ plane;
+                case MASK -> below & ~lit;
+            };
+        }
+    }
+
+    private final Image image;
+    private String name;
+    private BlendMode mode;
+    private boolean visible = true;
+    // incremented when anything but the pixels changes
+    private int settingsVersion;
+
+    public Layer(String name, Image image, BlendMode mode)
+    {
+        Validate.notBlank( name, "name must not be null or blank" );
+        Validate.notNull( image, "image must not be null" );
+        Validate.notNull( mode, "mode must not be null" );
+        this.name = name;
+        this.image = image;
+        this.mode = mode;
+    }
+
+    public Image getImage() {
+        return image;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name)
+    {
+        Validate.notBlank( name, "name must not be null or blank" );
+        if ( ! name.equals( this.name ) )
+        {
+            this.name = name;
+            settingsVersion++;
+            image.setDirty( true );
+        }
+    }
+
+    public BlendMode getMode() {
+        return mode;
+    }
+
+    public void setMode(BlendMode mode)
+    {
+        Validate.notNull( mode, "mode must not be null" );
+        if ( this.mode != mode )
+        {
+            this.mode = mode;
+            settingsVersion++;
+            image.setDirty( true );
+        }
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public void setVisible(boolean visible)
+    {
+        if ( this.visible != visible )
+        {
+            this.visible = visible;
+            settingsVersion++;
+            image.setDirty( true );
+        }
+    }
+
+    // changes whenever the layer's pixels, name, blend mode or visibility change
+    long getStamp() {
+        return (long) settingsVersion << 32 | ( image.getVersion() & 0xffffffffL );
+    }
+
+    public Layer createCopy()
+    {
+        final Layer copy = new Layer( name, image.createCopy(), mode );
+        copy.visible = visible;
+        return copy;
+    }
+
+    // e.g. "XOR visible Moving sprite", the pixels are stored separately
+    public String toDataString() {
+        return mode.name() + ( visible ? " visible " : " hidden " ) + name;
+    }
+
+    public static Layer fromDataString(String s, Image image)
+    {
+        Validate.notBlank( s, "layer must not be null or blank" );
+        final String[] parts = StringUtils.split( s.trim(), " ", 3 );
+        Validate.isTrue( parts.length == 3, "Invalid layer: %s", s );
+        Validate.isTrue( parts[1].equals( "visible" ) || parts[1].equals( "hidden" ), "Invalid layer visibility: %s", parts[1] );
+        final Layer result = new Layer( parts[2], image, BlendMode.valueOf( parts[0] ) );
+        result.visible = parts[1].equals( "visible" );
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + mode + ( visible ? "" : ", hidden" ) + ")";
+    }
+}
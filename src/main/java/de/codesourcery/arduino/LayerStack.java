@@ -0,0 +1,218 @@
+package de.codesourcery.arduino;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Layers of a single frame, bottom layer first.
+ *
+ * The frame itself holds the composite of all visible layers, so everything
+ * that reads frames (canvas, filmstrip, export) sees the flattened result
+ * without knowing about layers. {@link #update()} recomposites the frame
+ * word-wise, but only if a layer's pixels, blend mode or visibility or the
+ * order of the layers changed since the last time.
+ *
+ * Pixels of a layered frame should only be changed through its layers,
+ * direct changes are overwritten by the next update.
+ */
+public final class LayerStack
+{
+    private final Image frame;
+    private final List<Layer> layers = new ArrayList<>();
+    private int active;
+
+    // layer stamps and frame version as of the last composite
+    private long[] stamps = new long[0];
+    private int frameVersion;
+    private boolean structureChanged = true;
+
+    /**
+     * Creates a stack with a single layer holding the current pixels of the frame.
+     */
+    public LayerStack(Image frame)
+    {
+        Validate.notNull( frame, "frame must not be null" );
+        this.frame = frame;
+        final Image background = frame.createCopy();
+        background.setDirty( false );
+        layers.add( new Layer( "Background", background, Layer.BlendMode.OR ) );
+    }
+
+    public LayerStack(Image frame, List<Layer> layers)
+    {
+        Validate.notNull( frame, "frame must not be null" );
+        Validate.notEmpty( layers, "layers must not be null or empty" );
+        this.frame = frame;
+        layers.forEach( this::checkFits );
+        this.layers.addAll( layers );
+        this.active = layers.size() - 1;
+    }
+
+    private void checkFits(Layer layer)
+    {
+        final Image image = layer.getImage();
+        Validate.isTrue( image.getStore() == frame.getStore() && image.getBitsPerPixel() == frame.getBitsPerPixel(),
+            "Layer does not match frame size or brightness levels" );
+    }
+
+    // the composite
+    public Image getFrame() {
+        return frame;
+    }
+
+    public List<Layer> getLayers() {
+        return Collections.unmodifiableList( layers );
+    }
+
+    public int getLayerCount() {
+        return layers.size();
+    }
+
+    public Layer getLayer(int idx) {
+        return layers.get( idx );
+    }
+
+    // the layer the editor paints on
+    public Layer getActiveLayer() {
+        return layers.get( active );
+    }
+
+    public int getActiveIndex() {
+        return active;
+    }
+
+    public void setActiveIndex(int idx) {
+        active = Objects.checkIndex( idx, layers.size() );
+    }
+
+    // adds a blank layer above the active one and makes it the active layer
+    public Layer addLayer(String name, Layer.BlendMode mode)
+    {
+        final Layer layer = new Layer( name, new Image( frame.getStore(), frame.getBitsPerPixel() ), mode );
+        addLayer( active + 1, layer );
+        return layer;
+    }
+
+    public void addLayer(int idx, Layer layer)
+    {
+        Validate.notNull( layer, "layer must not be null" );
+        checkFits( layer );
+        layers.add( idx, layer );
+        active = idx;
+        structureChanged = true;
+        frame.setDirty( true );
+    }
+
+    // the last layer cannot be removed, the layer's pixels are released
+    public void removeLayer(int idx)
+    {
+        Objects.checkIndex( idx, layers.size() );
+        Validate.validState( layers.size() > 1, "Cannot remove the last layer" );
+        layers.remove( idx ).getImage().release();
+        active = Math.min( active, layers.size() - 1 );
+        structureChanged = true;
+        frame.setDirty( true );
+    }
+
+    public void moveLayer(int from, int to)
+    {
+        Objects.checkIndex( from, layers.size() );
+        Objects.checkIndex( to, layers.size() );
+        if ( from != to )
+        {
+            layers.add( to, layers.remove( from ) );
+            active = to;
+            structureChanged = true;
+            frame.setDirty( true );
+        }
+    }
+
+    public synchronized boolean isStale()
+    {
+        if ( structureChanged || frame.getVersion() != frameVersion ) {
+            return true;
+        }
+        for ( int i = 0; i < stamps.length; i++ )
+        {
+            if ( layers.get( i ).getStamp() != stamps[i] ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Recomposites the frame if any layer changed.
+     *
+     * @return whether pixels of the frame changed
+     */
+    public synchronized boolean update()
+    {
+        if ( ! isStale() ) {
+            return false;
+        }
+        final long[] newStamps = new long[layers.size()];
+        for ( int i = 0; i < newStamps.length; i++ ) {
+            newStamps[i] = layers.get( i ).getStamp();
+        }
+        final boolean changed = composite();
+        stamps = newStamps;
+        frameVersion = frame.getVersion();
+        structureChanged = false;
+        return changed;
+    }
+
+    private boolean composite()
+    {
+        final int planes = frame.getBitsPerPixel();
+        final long[] result = new long[planes];
+        boolean changed = false;
+        for ( int word = 0; word < frame.getWordCount(); word++ )
+        {
+            Arrays.fill( result, 0 );
+            for ( final Layer layer : layers )
+            {
+                if ( ! layer.isVisible() ) {
+                    continue;
+                }
+                final Image image = layer.getImage();
+                // all pixels lit at any level
+                final long lit = image.getWord( word );
+                for ( int p = 0; p < planes; p++ ) {
+                    result[p] = layer.getMode().apply( result[p], image.getPlane( p ).getWord( word ), lit );
+                }
+            }
+            for ( int p = 0; p < planes; p++ ) {
+                changed |= frame.getPlane( p ).setWord( word, result[p] );
+            }
+        }
+        return changed;
+    }
+
+    public boolean isDirty() {
+        return layers.stream().anyMatch( l -> l.getImage().isDirty() );
+    }
+
+    public void setDirty(boolean dirty) {
+        layers.forEach( l -> l.getImage().setDirty( dirty ) );
+    }
+
+    // copies all layers, frameCopy must already hold the composite
+    public LayerStack createCopy(Image frameCopy)
+    {
+        final List<Layer> copies = new ArrayList<>( layers.size() );
+        layers.forEach( l -> copies.add( l.createCopy() ) );
+        final LayerStack copy = new LayerStack( frameCopy, copies );
+        copy.active = active;
+        return copy;
+    }
+
+    // returns the layers' pixels to their store, the frame is not released
+    public void release() {
+        layers.forEach( l -> l.getImage().release() );
+    }
+}
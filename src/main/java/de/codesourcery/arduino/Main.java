@@ -3,31 +3,54 @@ package de.codesourcery.arduino;
 import java.awt.Dimension;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
+import java.awt.GridLayout;
+import java.awt.Point;
 import java.awt.Toolkit;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
 import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
 import javax.swing.SwingUtilities;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
 
 public class Main extends JFrame
 {
     private final MainWindowPanel mainPanel;
     private final Configuration configuration;
+    private final RecentProjectsCache recentProjects = new RecentProjectsCache( 4 );
 
     private JMenu recentFiles;
 
+    private PreviewStreamer previewStreamer;
+
+    private final TaskService tasks = new TaskService();
+    private final StatusBar statusBar = new StatusBar( tasks );
+    private TaskService.Handle<Project> pendingLoad;
+
     private static JMenuItem menuItem(String name, ActionListener l) {
         final JMenuItem item = new JMenuItem( name );
         item.addActionListener( l );
@@ -67,6 +90,9 @@ public class Main extends JFrame
         cnstrs.gridwidth = 1;
         cnstrs.gridheight = 1;
         getContentPane().add( mainPanel, cnstrs);
+        cnstrs.weighty = 0;
+        cnstrs.gridy = 1;
+        getContentPane().add( statusBar, cnstrs);
         setDefaultCloseOperation( JFrame.DO_NOTHING_ON_CLOSE );
         setLocationRelativeTo( null );
         pack();
@@ -98,13 +124,14 @@ public class Main extends JFrame
         menu.add( menuItem("Load...", ev -> loadProject() ) );
 
         recentFiles = new JMenu("Recent files");
-        configuration.getRecentFiles().forEach( file -> {
-            menu.add( recentFiles );
-            refreshRecentFilesMenu();
-        } );
-        menu.add( menuItem("Copy to clipboard", ev -> {
-            copyToClipboard( mainPanel.getProject().toDataString() );
-        } ));
+        menu.add( recentFiles );
+        refreshRecentFilesMenu();
+        menu.add( menuItem("Import sprite sheet / GIF...", ev -> importImage() ));
+        menu.add( menuItem("Import C arrays...", ev -> importCArrays() ));
+        menu.add( menuItem("Copy to clipboard", ev -> copyProjectToClipboard() ));
+        menu.add( menuItem("Export options...", ev -> editExportOptions() ));
+        menu.add( menuItem("Export animated GIF...", ev -> exportGif() ));
+        menu.add( menuItem("Export PNG contact sheet...", ev -> exportContactSheet() ));
         menu.add( menuItem("Save as...", ev -> saveAs() ));
         menu.add( menuItem("Save", ev -> save() ) );
 
@@ -116,26 +143,501 @@ public class Main extends JFrame
         animationSpeed.add( menuItem("15 FPS", ev -> getProject().setAnimationSpeedMillis( 1000/15 ) ));
         animationSpeed.add( menuItem("5 FPS", ev -> getProject().setAnimationSpeedMillis( 1000/5 ) ));
 
+        final JMenu frames = new JMenu("Frames");
+        bar.add( frames );
+
+        frames.add( menuItem("Display layout...", ev -> changeLayout() ));
+        frames.add( menuItem("Brightness levels...", ev -> changeBrightnessLevels() ));
+        frames.add( menuItem("Generate scrolling text...", ev -> generateScrollingText() ));
+        frames.add( menuItem("Export scrolling text as C source...", ev -> exportScrollingText() ));
+        frames.add( menuItem("Select similar...", ev -> {
+            final Integer distance = askForDistance( "Select frames differing in at most N pixels" );
+            if ( distance != null ) {
+                statusBar.showMessage( "Found " + mainPanel.selectSimilar( distance ) + " similar frames." );
+            }
+        }));
+        frames.add( menuItem("Merge near-duplicates...", ev -> {
+            final Integer distance = askForDistance( "Merge frames differing in at most N pixels" );
+            if ( distance != null )
+            {
+                final int changed = mainPanel.mergeNearDuplicates( distance );
+                JOptionPane.showMessageDialog( this, changed + " frames merged." );
+            }
+        }));
+
+        final JMenu edit = new JMenu("Edit");
+        bar.add( edit );
+
+        edit.add( menuItem("Copy selection", ev -> {
+            if ( ! mainPanel.copySelection() ) {
+                error( "Shift-drag on the canvas to select pixels first (shift+ctrl selects lit pixels only)." );
+            }
+        }));
+        edit.add( menuItem("Paste at mouse position", ev -> mainPanel.paste() ));
+        edit.add( menuItem("Paste into frames...", ev -> pasteIntoFrames() ));
+        edit.add( menuItem("Find copied pixels in all frames", ev -> {
+            final int count = mainPanel.findClip();
+            if ( count < 0 ) {
+                error( "Copy the pixels to search for first." );
+            } else if ( count == 0 ) {
+                JOptionPane.showMessageDialog( this, "Not found." );
+            }
+        }));
+        edit.add( menuItem("Next match", ev -> mainPanel.nextMatch() ));
+        edit.add( menuItem("Previous match", ev -> mainPanel.previousMatch() ));
+        edit.add( menuItem("Replace all matches with copied pixels", ev -> {
+            final int changed = mainPanel.replaceMatches();
+            if ( changed < 0 ) {
+                error( "Search for pixels first, then copy the pixels to replace them with." );
+            } else {
+                JOptionPane.showMessageDialog( this, changed + " frames changed." );
+            }
+        }));
+        edit.add( menuItem("Select lit pixels only", ev -> mainPanel.selectLitPixels() ));
+        edit.add( menuItem("Clear selection", ev -> mainPanel.clearSelection() ));
+
+        final JMenu tools = new JMenu("Tools");
+        bar.add( tools );
+
+        tools.add( menuItem("Pen (1)", ev -> mainPanel.setTool( MainWindowPanel.Tool.PEN ) ));
+        tools.add( menuItem("Flood fill (2)", ev -> mainPanel.setTool( MainWindowPanel.Tool.FILL ) ));
+        tools.add( menuItem("Line (3)", ev -> mainPanel.setTool( MainWindowPanel.Tool.LINE ) ));
+        tools.add( menuItem("Rectangle (4)", ev -> mainPanel.setTool( MainWindowPanel.Tool.RECTANGLE ) ));
+        tools.add( menuItem("Ellipse (5)", ev -> mainPanel.setTool( MainWindowPanel.Tool.ELLIPSE ) ));
+
+        final JMenu layers = new JMenu("Layers");
+        bar.add( layers );
+
+        layers.add( menuItem("Add layer", ev -> mainPanel.addLayer() ));
+        layers.add( menuItem("Remove layer", ev -> mainPanel.removeActiveLayer() ));
+        layers.add( menuItem("Next layer", ev -> mainPanel.selectNextLayer() ));
+        layers.add( menuItem("Blend mode...", ev -> changeBlendMode() ));
+        layers.add( menuItem("Show / hide layer", ev -> mainPanel.toggleActiveLayerVisibility() ));
+        layers.add( menuItem("Merge layers", ev -> mainPanel.mergeLayers() ));
+
+        final JMenu timeline = new JMenu("Timeline");
+        bar.add( timeline );
+
+        timeline.add( menuItem("Animate copied pixels...", ev -> animateClip() ));
+        timeline.add( menuItem("Use current frame as background", ev -> {
+            if ( requireTimeline() ) {
+                getProject().getTimeline().setBackground( mainPanel.getCurrentFrame() );
+            }
+        }));
+        timeline.add( menuItem("Preview...", ev -> previewTimeline() ));
+        timeline.add( menuItem("Export as animated GIF...", ev -> exportTimelineGif() ));
+        timeline.add( menuItem("Export as C source...", ev -> exportTimelineSource() ));
+        timeline.add( menuItem("Expand into frames", ev -> expandTimeline() ));
+        timeline.add( menuItem("Remove timeline", ev -> getProject().setTimeline( null ) ));
+
+        final JMenu preview = new JMenu("Live preview");
+        bar.add( preview );
+
+        preview.add( menuItem("Stream to TCP endpoint...", ev -> streamToSocket() ));
+        preview.add( menuItem("Stream to serial device...", ev -> streamToDevice() ));
+        preview.add( menuItem("Show statistics", ev -> showStreamingStats() ));
+        preview.add( menuItem("Stop streaming", ev -> stopStreaming() ));
+
         menu.add( menuItem("Quit", ev -> {
             quit();
         }));
         setJMenuBar( bar );
     }
 
+    private void editExportOptions()
+    {
+        final ExportOptions current = getProject().getExportOptions();
+        final JComboBox<ExportOptions.Order> order = new JComboBox<>( ExportOptions.Order.values() );
+        final JComboBox<ExportOptions.BitOrder> bitOrder = new JComboBox<>( ExportOptions.BitOrder.values() );
+        final JComboBox<DisplayLayout.Rotation> rotation = new JComboBox<>( DisplayLayout.Rotation.values() );
+        final JCheckBox flipH = new JCheckBox( "Flip horizontally", current.flipHorizontal() );
+        final JCheckBox flipV = new JCheckBox( "Flip vertically", current.flipVertical() );
+        order.setSelectedItem( current.order() );
+        bitOrder.setSelectedItem( current.bitOrder() );
+        rotation.setSelectedItem( current.rotation() );
+
+        final JPanel panel = new JPanel( new GridLayout( 0, 2, 5, 5 ) );
+        panel.add( new JLabel( "Byte order" ) );
+        panel.add( order );
+        panel.add( new JLabel( "Bit order" ) );
+        panel.add( bitOrder );
+        panel.add( new JLabel( "Rotation (clockwise)" ) );
+        panel.add( rotation );
+        panel.add( flipH );
+        panel.add( flipV );
+        if ( JOptionPane.showConfirmDialog( this, panel, "Export options", JOptionPane.OK_CANCEL_OPTION ) == JOptionPane.OK_OPTION )
+        {
+            getProject().setExportOptions( new ExportOptions( (ExportOptions.Order) order.getSelectedItem(),
+                (ExportOptions.BitOrder) bitOrder.getSelectedItem(), (DisplayLayout.Rotation) rotation.getSelectedItem(),
+                flipH.isSelected(), flipV.isSelected() ) );
+        }
+    }
+
+    // frames above this count are better streamed to a file than added to the project
+    private static final int MAX_GENERATED_FRAMES = 10_000;
+
+    private MarqueeGenerator createMarqueeGenerator() {
+        return new MarqueeGenerator( BitmapFont.DEFAULT, getProject().getLayout().getStore() );
+    }
+
+    private void generateScrollingText()
+    {
+        final String text = JOptionPane.showInputDialog( this, "Text to scroll" );
+        if ( StringUtils.isEmpty( text ) ) {
+            return;
+        }
+        final MarqueeGenerator generator = createMarqueeGenerator();
+        final int count = generator.getFrameCount( text );
+        if ( count > MAX_GENERATED_FRAMES ) {
+            error( count + " frames are too many to edit, please use 'Export scrolling text as C source' instead." );
+            return;
+        }
+        mainPanel.addImages( generator.generate( text ) );
+    }
+
+    private void exportScrollingText()
+    {
+        final String text = JOptionPane.showInputDialog( this, "Text to scroll" );
+        if ( StringUtils.isEmpty( text ) ) {
+            return;
+        }
+        final File file = chooseExportFile( ".h" );
+        if ( file == null ) {
+            return;
+        }
+        final DisplayLayout layout = getProject().getLayout();
+        final ExportOptions options = getProject().getExportOptions();
+        final MarqueeGenerator generator = createMarqueeGenerator();
+        tasks.submit( "Exporting " + file.getName(), TaskService.Priority.NORMAL, progress -> {
+            try ( Writer out = new BufferedWriter( new FileWriter( file ) );
+                  DeduplicatingFrameWriter writer = new DeduplicatingFrameWriter( out, layout, options ) )
+            {
+                generator.generate( text, writer );
+                return "Exported " + writer.getFrameCount() + " frames, " + writer.getDistinctFrameCount() + " distinct.";
+            }
+        }, statusBar::showMessage, t -> error( "Failed to export " + file, t ) );
+    }
+
+    private void pasteIntoFrames()
+    {
+        if ( ! mainPanel.hasClip() ) {
+            error( "Nothing copied yet." );
+            return;
+        }
+        final int frameCount = getProject().getImages().size();
+        final Point origin = mainPanel.getClipOrigin();
+        final JTextField first = new JTextField( "1" );
+        final JTextField last = new JTextField( Integer.toString( frameCount ) );
+        final JTextField x = new JTextField( Integer.toString( origin.x ) );
+        final JTextField y = new JTextField( Integer.toString( origin.y ) );
+
+        final JPanel panel = new JPanel( new GridLayout( 0, 2, 5, 5 ) );
+        panel.add( new JLabel( "First frame" ) );
+        panel.add( first );
+        panel.add( new JLabel( "Last frame" ) );
+        panel.add( last );
+        panel.add( new JLabel( "X" ) );
+        panel.add( x );
+        panel.add( new JLabel( "Y" ) );
+        panel.add( y );
+        if ( JOptionPane.showConfirmDialog( this, panel, "Paste into frames", JOptionPane.OK_CANCEL_OPTION ) == JOptionPane.OK_OPTION )
+        {
+            try
+            {
+                final int changed = mainPanel.pasteIntoFrames( Integer.parseInt( first.getText().trim() ) - 1,
+                    Integer.parseInt( last.getText().trim() ) - 1, Integer.parseInt( x.getText().trim() ), Integer.parseInt( y.getText().trim() ) );
+                statusBar.showMessage( "Pasted into " + changed + " frames." );
+            }
+            catch( IllegalArgumentException e ) {
+                error( "Invalid input", e );
+            }
+        }
+    }
+
+    private boolean requireTimeline()
+    {
+        if ( getProject().getTimeline() == null ) {
+            error( "The project has no timeline, use 'Animate copied pixels' first." );
+            return false;
+        }
+        return true;
+    }
+
+    // adds a track moving the clip in a straight line, creating the timeline if necessary
+    private void animateClip()
+    {
+        final Clip clip = mainPanel.getClip();
+        if ( clip == null ) {
+            error( "Copy the pixels to animate first." );
+            return;
+        }
+        final Point origin = mainPanel.getClipOrigin();
+        final JTextField first = new JTextField( "1" );
+        final JTextField last = new JTextField( "32" );
+        final JTextField fromX = new JTextField( Integer.toString( origin.x ) );
+        final JTextField fromY = new JTextField( Integer.toString( origin.y ) );
+        final JTextField toX = new JTextField( Integer.toString( getProject().getLayout().getWidth() ) );
+        final JTextField toY = new JTextField( Integer.toString( origin.y ) );
+
+        final JPanel panel = new JPanel( new GridLayout( 0, 2, 5, 5 ) );
+        panel.add( new JLabel( "First frame" ) );
+        panel.add( first );
+        panel.add( new JLabel( "Last frame" ) );
+        panel.add( last );
+        panel.add( new JLabel( "From X" ) );
+        panel.add( fromX );
+        panel.add( new JLabel( "From Y" ) );
+        panel.add( fromY );
+        panel.add( new JLabel( "To X" ) );
+        panel.add( toX );
+        panel.add( new JLabel( "To Y" ) );
+        panel.add( toY );
+        if ( JOptionPane.showConfirmDialog( this, panel, "Animate copied pixels", JOptionPane.OK_CANCEL_OPTION ) != JOptionPane.OK_OPTION ) {
+            return;
+        }
+        try
+        {
+            final int start = Integer.parseInt( first.getText().trim() ) - 1;
+            final int end = Integer.parseInt( last.getText().trim() ) - 1;
+            final Timeline.Track track = new Timeline.Track( clip, List.of(
+                new Timeline.Keyframe( start, Integer.parseInt( fromX.getText().trim() ), Integer.parseInt( fromY.getText().trim() ) ),
+                new Timeline.Keyframe( end, Integer.parseInt( toX.getText().trim() ), Integer.parseInt( toY.getText().trim() ) ) ) );
+            Timeline timeline = getProject().getTimeline();
+            if ( timeline == null )
+            {
+                timeline = new Timeline( getProject().getLayout().getStore(), getProject().getBitsPerPixel(), track.getLastFrame() + 1 );
+                getProject().setTimeline( timeline );
+            }
+            timeline.addTrack( track );
+        }
+        catch( IllegalArgumentException e ) {
+            error( "Invalid input", e );
+        }
+    }
+
+    private void previewTimeline()
+    {
+        if ( ! requireTimeline() ) {
+            return;
+        }
+        final TimelinePreview preview = new TimelinePreview( getProject().getTimeline(), getProject().getAnimationSpeedMillis() );
+        JOptionPane.showMessageDialog( this, preview, "Timeline (" + getProject().getTimeline().getFrameCount() + " frames)", JOptionPane.PLAIN_MESSAGE );
+        preview.stop();
+    }
+
+    private void exportTimelineGif()
+    {
+        final File file = requireTimeline() ? chooseExportFile( ".gif" ) : null;
+        if ( file == null ) {
+            return;
+        }
+        final Timeline snapshot = getProject().getTimeline().createCopy();
+        final int delay = getProject().getAnimationSpeedMillis();
+        tasks.submit( "Exporting " + file.getName(), TaskService.Priority.NORMAL, progress -> {
+            try
+            {
+                new AnimationExporter( 16 ).setProgressListener( done -> {
+                    progress.getToken().throwIfCancelled();
+                    progress.update( done, snapshot.getFrameCount() );
+                } ).exportGif( snapshot, delay, file );
+            }
+            catch( CancellationException e )
+            {
+                file.delete();
+                throw e;
+            }
+            return file;
+        }, f -> statusBar.showMessage( "Exported " + f.getName() ), t -> error( "Failed to export " + file, t ), snapshot::dispose );
+    }
+
+    private void exportTimelineSource()
+    {
+        final File file = requireTimeline() ? chooseExportFile( ".h" ) : null;
+        if ( file == null ) {
+            return;
+        }
+        final Timeline snapshot = getProject().getTimeline().createCopy();
+        final DisplayLayout layout = getProject().getLayout();
+        final ExportOptions options = getProject().getExportOptions();
+        tasks.submit( "Exporting " + file.getName(), TaskService.Priority.NORMAL, progress -> {
+            try ( Writer out = new BufferedWriter( new FileWriter( file ) );
+                  DeduplicatingFrameWriter writer = new DeduplicatingFrameWriter( out, layout, options ) )
+            {
+                snapshot.generate( words -> {
+                    progress.getToken().throwIfCancelled();
+                    writer.accept( words );
+                    progress.update( writer.getFrameCount(), snapshot.getFrameCount() );
+                } );
+                return "Exported " + writer.getFrameCount() + " frames, " + writer.getDistinctFrameCount() + " distinct.";
+            }
+        }, statusBar::showMessage, t -> error( "Failed to export " + file, t ), snapshot::dispose );
+    }
+
+    private void expandTimeline()
+    {
+        if ( ! requireTimeline() ) {
+            return;
+        }
+        final Timeline timeline = getProject().getTimeline();
+        if ( timeline.getFrameCount() > MAX_GENERATED_FRAMES ) {
+            error( timeline.getFrameCount() + " frames are too many to edit, please export the timeline instead." );
+            return;
+        }
+        mainPanel.addImages( timeline.toImages() );
+    }
+
+    private void changeBlendMode()
+    {
+        final Layer active = mainPanel.getActiveLayer();
+        final Object choice = JOptionPane.showInputDialog( this, "Combine the active layer with the layers below using",
+            "Blend mode", JOptionPane.QUESTION_MESSAGE, null, Layer.BlendMode.values(), active == null ? Layer.BlendMode.OR : active.getMode() );
+        if ( choice instanceof Layer.BlendMode mode ) {
+            mainPanel.setActiveBlendMode( mode );
+        }
+    }
+
+    private void changeBrightnessLevels()
+    {
+        final Integer[] options = new Integer[Image.MAX_BITS_PER_PIXEL];
+        for ( int i = 0; i < options.length; i++ ) {
+            options[i] = i + 1;
+        }
+        final Object choice = JOptionPane.showInputDialog( this, "Bits per pixel (" + ( 1 << getProject().getBitsPerPixel() ) + " levels currently)",
+            "Brightness levels", JOptionPane.QUESTION_MESSAGE, null, options, getProject().getBitsPerPixel() );
+        if ( choice instanceof Integer bits && bits != getProject().getBitsPerPixel() ) {
+            mainPanel.setProject( getProject().withBitsPerPixel( bits ) );
+        }
+    }
+
+    private void changeLayout()
+    {
+        final String input = JOptionPane.showInputDialog( this,
+            "Modules (columns x rows), chain order (module indices, row-major, starting at the MCU) and rotations",
+            getProject().getLayout().toDataString() );
+        if ( input == null ) {
+            return;
+        }
+        final DisplayLayout layout;
+        try {
+            layout = DisplayLayout.fromDataString( input );
+        }
+        catch( IllegalArgumentException e ) {
+            error( "Invalid layout: " + e.getMessage() );
+            return;
+        }
+        if ( ! layout.equals( getProject().getLayout() ) ) {
+            mainPanel.setProject( getProject().withLayout( layout ) );
+        }
+    }
+
+    private Integer askForDistance(String message)
+    {
+        final String input = JOptionPane.showInputDialog( this, message, Integer.toString( MainWindowPanel.DEFAULT_SIMILARITY ) );
+        if ( input == null ) {
+            return null;
+        }
+        try
+        {
+            final int result = Integer.parseInt( input.trim() );
+            if ( result >= 0 ) {
+                return result;
+            }
+        }
+        catch( NumberFormatException e ) {
+            // handled below
+        }
+        error( "Not a valid number of pixels: " + input );
+        return null;
+    }
+
+    private void streamToSocket()
+    {
+        final String endpoint = JOptionPane.showInputDialog( this, "Host:port", "localhost:7219" );
+        if ( endpoint == null ) {
+            return;
+        }
+        final int idx = endpoint.lastIndexOf( ':' );
+        if ( idx < 1 ) {
+            error( "Expected host:port but got '" + endpoint + "'" );
+            return;
+        }
+        try
+        {
+            final int port = Integer.parseInt( endpoint.substring( idx + 1 ).trim() );
+            stopStreaming();
+            previewStreamer = PreviewStreamer.connect( endpoint.substring( 0, idx ).trim(), port, mainPanel::getDisplayedFrameData );
+        }
+        catch( NumberFormatException | IOException e )
+        {
+            error( "Failed to connect to " + endpoint, e );
+        }
+    }
+
+    private void streamToDevice()
+    {
+        final String device = JOptionPane.showInputDialog( this, "Serial device or pty", "/dev/ttyUSB0" );
+        if ( device == null ) {
+            return;
+        }
+        try
+        {
+            stopStreaming();
+            previewStreamer = PreviewStreamer.open( Path.of( device ), mainPanel::getDisplayedFrameData );
+        }
+        catch( IOException e )
+        {
+            error( "Failed to open " + device, e );
+        }
+    }
+
+    private void showStreamingStats()
+    {
+        if ( previewStreamer == null ) {
+            JOptionPane.showMessageDialog( this, "Not streaming." );
+            return;
+        }
+        final String status = previewStreamer.isFailed() ? " (failed)" : "";
+        JOptionPane.showMessageDialog( this, previewStreamer.getEndpointName() + status + "\n" + previewStreamer.getStats() );
+    }
+
+    private void stopStreaming()
+    {
+        if ( previewStreamer != null )
+        {
+            try
+            {
+                previewStreamer.close();
+            }
+            catch( IOException e )
+            {
+                e.printStackTrace();
+            }
+            previewStreamer = null;
+        }
+    }
+
     private void quit() {
         if ( mainPanel.getProject().isDirty() ) {
             final int result =
                 JOptionPane.showConfirmDialog( null, "Project is dirty - save?",
                     "Project dirty", JOptionPane.YES_NO_OPTION, JOptionPane.QUESTION_MESSAGE );
             if ( result == JOptionPane.YES_OPTION ) {
+                // exits once the save finished, stays open if it failed
                 if ( mainPanel.getProject().getFile() == null ) {
-                    saveAs();
+                    saveAs( this::exit );
                 } else {
-                    save();
+                    save( mainPanel.getProject().getFile(), this::exit );
                 }
-                System.out.println("Project saved.");
+                return;
             }
         }
+        exit();
+    }
+
+    private void exit()
+    {
+        tasks.shutdown();
+        stopStreaming();
         try
         {
             configuration.save();
@@ -160,28 +662,205 @@ public class Main extends JFrame
     }
 
     private void loadProject(File file) {
-        try
-        {
-            final Project p = Project.load( file );
+        // only the most recently requested project gets shown
+        if ( pendingLoad != null ) {
+            pendingLoad.cancel();
+        }
+        pendingLoad = tasks.submit( "Loading " + file.getName(), TaskService.Priority.INTERACTIVE, progress -> {
+            final Project p = recentProjects.load( file );
+            if ( progress.getToken().isCancelled() ) {
+                p.dispose();
+            }
+            return p;
+        }, p -> {
             mainPanel.setProject( p );
             setTitle( p.getName()+" - "+p.getFile().getAbsolutePath() );
             configuration.addRecentFile( file );
             refreshRecentFilesMenu();
+        }, t -> error( "Failed to load " + file, t ) );
+    }
+
+    private void importImage()
+    {
+        final JFileChooser chooser = new JFileChooser();
+        chooser.setFileSelectionMode( JFileChooser.FILES_ONLY);
+        if ( chooser.showOpenDialog( null ) != JFileChooser.APPROVE_OPTION ) {
+            return;
         }
-        catch( IOException e )
-        {
-            error( "Failed to load " + file, e );
+        final SpriteSheetImporter.Conversion[] options = SpriteSheetImporter.Conversion.values();
+        final int choice = JOptionPane.showOptionDialog( this, "How should pixels be converted?", "Import",
+            JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, options, options[0] );
+        if ( choice < 0 ) {
+            return;
+        }
+        final File file = chooser.getSelectedFile();
+        final SpriteSheetImporter importer = new SpriteSheetImporter( options[choice], 128, getProject().getLayout().getStore() );
+        final long[] millis = { 0 };
+        tasks.submit( "Importing " + file.getName(), TaskService.Priority.INTERACTIVE, progress -> {
+            final long start = System.currentTimeMillis();
+            final List<Image> images = importer.importFile( file );
+            millis[0] = System.currentTimeMillis() - start;
+            return images;
+        }, images -> {
+            mainPanel.addImages( images );
+            statusBar.showMessage( "Imported " + images.size() + " frames in " + millis[0] + " ms" );
+        }, t -> error( "Failed to import " + file, t ) );
+    }
+
+    // opens one of the arrays in a C header as a new project
+    private void importCArrays()
+    {
+        final JFileChooser chooser = new JFileChooser();
+        chooser.setFileSelectionMode( JFileChooser.FILES_ONLY);
+        if ( chooser.showOpenDialog( null ) != JFileChooser.APPROVE_OPTION ) {
+            return;
+        }
+        final File file = chooser.getSelectedFile();
+        final long[] millis = { 0 };
+        tasks.submit( "Importing " + file.getName(), TaskService.Priority.INTERACTIVE, progress -> {
+            final long start = System.currentTimeMillis();
+            final List<Project> projects = new CArrayImporter().importFile( file );
+            millis[0] = System.currentTimeMillis() - start;
+            return projects;
+        }, projects -> {
+            statusBar.showMessage( "Imported " + projects.size() + " arrays in " + millis[0] + " ms" );
+            if ( projects.isEmpty() ) {
+                error( "No frame data found in " + file );
+                return;
+            }
+            Project choice = projects.getFirst();
+            if ( projects.size() > 1 )
+            {
+                final String[] names = projects.stream().map( p -> p.getName() + " (" + p.getImages().size() + " frames)" ).toArray( String[]::new );
+                final Object selected = JOptionPane.showInputDialog( this, "Array to open", "Import",
+                    JOptionPane.QUESTION_MESSAGE, null, names, names[0] );
+                choice = selected == null ? null : projects.get( Arrays.asList( names ).indexOf( selected ) );
+            }
+            for ( final Project p : projects ) {
+                if ( p != choice ) {
+                    p.dispose();
+                }
+            }
+            if ( choice != null )
+            {
+                mainPanel.setProject( choice );
+                setTitle( choice.getName() + " - " + file.getAbsolutePath() );
+            }
+        }, t -> error( "Failed to import " + file, t ) );
+    }
+
+    private File chooseExportFile(String extension)
+    {
+        final JFileChooser chooser = new JFileChooser();
+        chooser.setApproveButtonText( "Export" );
+        chooser.setFileSelectionMode( JFileChooser.FILES_ONLY);
+        final File projectFile = mainPanel.getProject().getFile();
+        if ( projectFile != null ) {
+            chooser.setSelectedFile( new File( projectFile.getParentFile(), mainPanel.getProject().getName() + extension ) );
+        }
+        if ( chooser.showSaveDialog( null ) != JFileChooser.APPROVE_OPTION ) {
+            return null;
+        }
+        return chooser.getSelectedFile();
+    }
+
+    private void exportGif()
+    {
+        final File file = chooseExportFile( ".gif" );
+        if ( file != null ) {
+            export( file, (exporter, snapshot) -> exporter.exportGif( snapshot, file ), 16 );
         }
     }
 
+    private void exportContactSheet()
+    {
+        final File file = chooseExportFile( ".png" );
+        if ( file != null ) {
+            export( file, (exporter, snapshot) -> exporter.exportContactSheet( snapshot, 16, file ), 4 );
+        }
+    }
+
+    private interface Export
+    {
+        void run(AnimationExporter exporter, Project snapshot) throws IOException;
+    }
+
+    private interface SnapshotTask<T>
+    {
+        T run(Project snapshot, TaskService.Progress progress) throws Exception;
+    }
+
+    /**
+     * Runs a task on a copy of the project as it is when the task starts.
+     *
+     * The task copies the frames itself, the EDT only copies again the
+     * frames that changed meanwhile. The copy is disposed when the task ends.
+     *
+     * @param onCopied called on the EDT right after the copy was taken
+     */
+    private <T> void submitWithCopy(String name, Project project, Runnable onCopied, SnapshotTask<T> task,
+                                    Consumer<? super T> onSuccess, Consumer<Throwable> onFailure)
+    {
+        final FrameSequence<Image> frames = project.snapshot();
+        tasks.submit( name, TaskService.Priority.NORMAL, progress -> {
+            final Project.FrameCopies copies = Project.FrameCopies.of( frames, progress.getToken() );
+            final Project[] snapshot = { null };
+            try
+            {
+                SwingUtilities.invokeAndWait( () -> {
+                    if ( mainPanel.getProject() != project ) {
+                        copies.release();
+                        throw new IllegalStateException( "Project was closed" );
+                    }
+                    snapshot[0] = project.createCopy( copies );
+                    onCopied.run();
+                } );
+            }
+            catch( InvocationTargetException e ) {
+                throw e.getCause() instanceof Exception ex ? ex : e;
+            }
+            try {
+                return task.run( snapshot[0], progress );
+            } finally {
+                snapshot[0].dispose();
+            }
+        }, onSuccess, onFailure );
+    }
+
+    // exports a copy of the project in the background, a cancelled export deletes the partially written file
+    private void export(File file, Export export, int pixelSize)
+    {
+        submitWithCopy( "Exporting " + file.getName(), getProject(), () -> {}, (snapshot, progress) -> {
+            final int frameCount = snapshot.getImages().size();
+            final AnimationExporter exporter = new AnimationExporter( pixelSize ).setProgressListener( done -> {
+                progress.getToken().throwIfCancelled();
+                progress.update( done, frameCount );
+            } );
+            try
+            {
+                export.run( exporter, snapshot );
+            }
+            catch( CancellationException e )
+            {
+                file.delete();
+                throw e;
+            }
+            return file;
+        }, f -> statusBar.showMessage( "Exported " + f.getName() ), t -> error( "Failed to export " + file, t ) );
+    }
+
     private void save()
     {
         if ( mainPanel.getProject().getFile() != null ) {
-            save( mainPanel.getProject().getFile() );
+            save( mainPanel.getProject().getFile(), () -> {} );
         }
     }
 
-    private void saveAs()
+    private void saveAs() {
+        saveAs( () -> {} );
+    }
+
+    private void saveAs(Runnable whenSaved)
     {
         final JFileChooser chooser = new JFileChooser();
         chooser.setApproveButtonText( "Save" );
@@ -193,25 +872,39 @@ public class Main extends JFrame
         if ( result == JFileChooser.APPROVE_OPTION )
         {
             final File file = chooser.getSelectedFile();
-            save( file );
+            save( file, whenSaved );
         }
     }
 
-    private void save(File file)
+    /**
+     * Saves a copy of the project in the background, changes made after the
+     * copy was taken keep the project dirty.
+     *
+     * @param whenSaved called on the EDT after the project was saved successfully
+     */
+    private void save(File file, Runnable whenSaved)
     {
         final Project p = mainPanel.getProject();
-        try
-        {
-            p.setFile( file );
-            p.save();
-            configuration.addRecentFile( p.getFile() );
+        p.setFile( file );
+        final Project.SavePoint[] savePoint = { null };
+        submitWithCopy( "Saving " + file.getName(), p, () -> savePoint[0] = p.createSavePoint(), (snapshot, progress) -> {
+            snapshot.save();
+            return file;
+        }, f -> {
+            p.markSaved( savePoint[0] );
+            recentProjects.invalidate( f );
+            configuration.addRecentFile( f );
             refreshRecentFilesMenu();
-            setTitle( p.getName()+" - "+p.getFile().getAbsolutePath() );
-        }
-        catch( IOException e )
-        {
-            error("Failed to save "+ p.getFile(), e);
-        }
+            setTitle( p.getName()+" - "+f.getAbsolutePath() );
+            whenSaved.run();
+        }, t -> error( "Failed to save " + file, t ) );
+    }
+
+    // formats a copy of the project in the background
+    private void copyProjectToClipboard()
+    {
+        submitWithCopy( "Copying to clipboard", getProject(), () -> {}, (snapshot, progress) -> snapshot.toDataString(),
+            this::copyToClipboard, t -> error( "Failed to copy to clipboard", t ) );
     }
 
     private void copyToClipboard(String content) {
@@ -220,20 +913,29 @@ public class Main extends JFrame
         clip.setContents(strse1, strse1);
     }
 
-    public static void main(String[] args) throws InterruptedException, InvocationTargetException
+    // checks recent files and parses the most recent project while the UI is already visible
+    private void startBackgroundTasks()
     {
-        SwingUtilities.invokeAndWait( () -> {
-            try
-            {
-                new Main(Configuration.load());
-            }
-            catch( IOException e )
+        final List<File> files = List.copyOf( configuration.getRecentFiles() );
+        tasks.submit( "Checking recent files", TaskService.Priority.BACKGROUND, progress -> {
+            final List<File> unreadable = Configuration.findUnreadable( files );
+            files.stream().filter( f -> ! unreadable.contains( f ) ).findFirst().ifPresent( recentProjects::prefetch );
+            return unreadable;
+        }, unreadable -> {
+            if ( ! unreadable.isEmpty() )
             {
-                throw new RuntimeException( e );
+                configuration.removeRecentFiles( unreadable );
+                refreshRecentFilesMenu();
             }
         } );
     }
 
+    public static void main(String[] args) throws IOException
+    {
+        final Configuration configuration = Configuration.load();
+        SwingUtilities.invokeLater( () -> new Main( configuration ).startBackgroundTasks() );
+    }
+
     private Project getProject() {
         return mainPanel.getProject();
     }
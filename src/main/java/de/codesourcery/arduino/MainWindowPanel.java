@@ -5,18 +5,30 @@ import java.awt.Graphics;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.Toolkit;
 import java.awt.event.InputEvent;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import javax.swing.JComponent;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
+import javax.swing.SwingWorker;
 import javax.swing.Timer;
 import org.apache.commons.lang3.Validate;
 import de.codesourcery.arduino.events.CurrentImageChangedEvent;
+import de.codesourcery.arduino.jfr.AnimationTickEvent;
+import de.codesourcery.arduino.jfr.PaintEvent;
 
 final class MainWindowPanel extends JPanel
 {
@@ -31,15 +43,68 @@ final class MainWindowPanel extends JPanel
         SET,CLEAR
     }
 
+    // what dragging on the canvas does
+    public enum Tool {
+        PEN, FILL, LINE, RECTANGLE, ELLIPSE
+    }
+
+    // max. number of differing pixels for frames to count as similar
+    public static final int DEFAULT_SIMILARITY = 2;
+
     private final ImageSelectionPanel imageSelectionPanel;
+    private final FrameScrubber scrubber;
 
     private float dx, dy, x0, y0;
 
+    // brightness level painted with the left mouse button, clamped to the project's maximum
+    private int brushLevel = Integer.MAX_VALUE;
+
     private boolean animate;
     private boolean renderPreviousFrameOutline = true;
 
     private Timer animationTimer;
 
+    // playback state, the filmstrip is only updated when playback stops
+    private List<Image> animationFrames;
+    private SpriteAtlas.Snapshot animationSnapshot;
+    private int animationFrame;
+
+    private SpriteAtlas atlas;
+    private SwingWorker<SpriteAtlas,Void> atlasWorker;
+    private AtlasRequest atlasRequest;
+
+    private record AtlasRequest(SpriteAtlas.Snapshot snapshot, int width, int height) {}
+
+    private static final Color SELECTION = new Color( 255, 255, 0, 80 );
+    private static final Color SHAPE_PREVIEW = new Color( 255, 0, 0, 140 );
+
+    // selected pixels of the current frame or null
+    private Selection selection;
+    // where a selection drag started, null while not dragging
+    private Point selectionStart;
+    private boolean maskedSelection;
+
+    private Clip clip;
+    // frame position the clip was copied from
+    private Point clipOrigin;
+    // pixel under the mouse, paste target
+    private Point mousePosition;
+
+    private Tool tool = Tool.PEN;
+    // start pixel and level of the line/rectangle/ellipse being dragged
+    private Point shapeStart;
+    private int shapeLevel;
+    // pixels the shape will cover when the mouse is released
+    private Selection shapePreview;
+
+    // upper bound for the results of a pattern search
+    public static final int MAX_MATCHES = 100_000;
+
+    // result of the last pattern search
+    private Clip searchPattern;
+    private List<PatternSearch.Match> matches = List.of();
+    private int currentMatch = -1;
+
     private final JPanel renderPanel = new JPanel()
     {
 
@@ -74,9 +139,19 @@ final class MainWindowPanel extends JPanel
                 {
                     if ( ! isAnimationRunning() )
                     {
-                        getMode( e ).ifPresent( m -> {
-                            update( e.getPoint(), m );
-                        } );
+                        if ( e.isShiftDown() ) {
+                            return;
+                        }
+                        final int level = paletteLevelAt( e.getPoint() );
+                        if ( level != -1 )
+                        {
+                            brushLevel = level;
+                            repaint();
+                            return;
+                        }
+                        if ( tool == Tool.PEN ) {
+                            getMode( e ).ifPresent( m -> update( e.getPoint(), m ) );
+                        }
                     } else {
                         stopAnimation();
                     }
@@ -87,6 +162,23 @@ final class MainWindowPanel extends JPanel
                 {
                     if ( ! isAnimationRunning() )
                     {
+                        // shift-drag selects a rectangle, with ctrl only its lit pixels
+                        if ( e.isShiftDown() && e.getButton() == MouseEvent.BUTTON1 )
+                        {
+                            selectionStart = clampToFrame( e.getPoint() );
+                            maskedSelection = e.isControlDown();
+                            updateSelection( selectionStart );
+                            return;
+                        }
+                        if ( tool != Tool.PEN )
+                        {
+                            final Optional<Mode> m = getMode( e );
+                            final Optional<Point> p = viewToModel( e.getPoint() );
+                            if ( m.isPresent() && p.isPresent() ) {
+                                startTool( p.get(), m.get() == Mode.SET ? getBrushLevel() : 0 );
+                            }
+                            return;
+                        }
                         if ( mode == null )
                         {
                             getMode( e ).ifPresent( m -> mode = m );
@@ -101,6 +193,16 @@ final class MainWindowPanel extends JPanel
                 {
                     if ( ! isAnimationRunning() )
                     {
+                        if ( selectionStart != null )
+                        {
+                            selectionStart = null;
+                            return;
+                        }
+                        if ( shapeStart != null )
+                        {
+                            finishShape();
+                            return;
+                        }
                         if ( mode != null )
                         {
                             getMode( e ).ifPresent( m -> {
@@ -120,8 +222,8 @@ final class MainWindowPanel extends JPanel
                     if ( mode != null )
                     {
                         viewToModel( mousePosition ).ifPresent( p -> {
-                            if ( imageSelectionPanel.getSelectedImage().set( p, mode == Mode.SET ) ) {
-                                imageSelectionPanel.imageChanged( imageSelectionPanel.getSelectedImage() );
+                            if ( getEditTarget().setLevel( p.x, p.y, mode == Mode.SET ? getBrushLevel() : 0 ) ) {
+                                editFinished();
                             }
                             System.out.println( "========================" );
                             System.out.println( imageSelectionPanel.getProject().toDataString() );
@@ -135,7 +237,8 @@ final class MainWindowPanel extends JPanel
                     int x = (int) ((p.x - x0) / dx);
                     int y = (int) ((p.y - y0) / dy);
                     Optional<Point> result;
-                    if ( x >= 0 && y >= 0 && x < 8 && y < 8 )
+                    final Image image = imageSelectionPanel.getSelectedImage();
+                    if ( x >= 0 && y >= 0 && x < image.getWidth() && y < image.getHeight() )
                     {
                         result = Optional.of( new Point( x, y ) );
                     }
@@ -147,10 +250,43 @@ final class MainWindowPanel extends JPanel
                     return result;
                 }
 
+                // nearest pixel of the frame
+                private Point clampToFrame(Point p)
+                {
+                    final Image image = imageSelectionPanel.getSelectedImage();
+                    final int x = (int) Math.floor( ( p.x - x0 ) / dx );
+                    final int y = (int) Math.floor( ( p.y - y0 ) / dy );
+                    return new Point( Math.clamp( x, 0, image.getWidth() - 1 ), Math.clamp( y, 0, image.getHeight() - 1 ) );
+                }
+
+                private void updateSelection(Point end)
+                {
+                    final Image image = imageSelectionPanel.getSelectedImage();
+                    final Rectangle r = new Rectangle( selectionStart );
+                    r.add( end );
+                    r.width++;
+                    r.height++;
+                    final Selection rect = Selection.rectangle( image.getWidth(), image.getHeight(), r );
+                    selection = maskedSelection ? rect.litPixels( getEditTarget() ) : rect;
+                    repaint();
+                }
+
+                @Override
+                public void mouseMoved(MouseEvent e)
+                {
+                    mousePosition = isAnimationRunning() ? null : clampToFrame( e.getPoint() );
+                }
+
                 @Override
                 public void mouseDragged(MouseEvent e)
                 {
-                    update( e.getPoint(), mode );
+                    if ( selectionStart != null ) {
+                        updateSelection( clampToFrame( e.getPoint() ) );
+                    } else if ( shapeStart != null ) {
+                        updateShape( clampToFrame( e.getPoint() ) );
+                    } else {
+                        update( e.getPoint(), mode );
+                    }
                 }
             };
             addMouseListener( listener );
@@ -164,31 +300,142 @@ final class MainWindowPanel extends JPanel
         @Override
         protected void paintComponent(Graphics g)
         {
+            final PaintEvent event = new PaintEvent();
+            event.begin();
             super.paintComponent( g );
 
             g.setColor( Color.BLACK );
             g.fillRect( 0, 0, getWidth(), getHeight() );
 
-            dx = getWidth() * 0.9f / 8;
-            dy = getHeight() * 0.9f / 8;
+            // square pixels so chained modules keep their aspect ratio
+            final DisplayLayout layout = getProject().getLayout();
+            // leave room for the brightness palette
+            final int columns = layout.getWidth() + ( getProject().getBitsPerPixel() > 1 ? 2 : 0 );
+            dx = dy = Math.min( getWidth() * 0.9f / columns, getHeight() * 0.9f / layout.getHeight() );
 
             x0 = getWidth() * 0.02f;
             y0 = getHeight() * 0.02f;
 
+            if ( isAnimationRunning() ) {
+                paintAnimationFrame( g );
+            } else {
+                paintCurrentImage( g );
+                paintSelection( g );
+                paintShapePreview( g );
+            }
+            paintGrid( g );
+            if ( getProject().getBitsPerPixel() > 1 ) {
+                paintPalette( g );
+            }
+            if ( ! isAnimationRunning() ) {
+                paintLayerInfo( g );
+                paintMatchInfo( g );
+            }
+            g.setColor( Color.RED );
+
+            event.end();
+            if ( event.shouldCommit() )
+            {
+                final Rectangle clip = g.getClipBounds();
+                event.component = PaintEvent.CANVAS;
+                event.paintedFrames = 1;
+                event.totalFrames = getProject().getImages().size();
+                event.clipWidth = clip != null ? clip.width : getWidth();
+                event.clipHeight = clip != null ? clip.height : getHeight();
+                event.commit();
+            }
+        }
+
+        private void paintSelection(Graphics g)
+        {
+            if ( selection == null || selection.isEmpty() ) {
+                return;
+            }
+            g.setColor( SELECTION );
+            for ( int x = 0; x < selection.getWidth(); x++ )
+            {
+                for ( int y = 0; y < selection.getHeight(); y++ )
+                {
+                    if ( selection.contains( x, y ) ) {
+                        g.fillRect( round( x0 + x * dx ), round( y0 + y * dy ), round( dx ), round( dy ) );
+                    }
+                }
+            }
+            final Rectangle bounds = selection.getBounds();
+            g.setColor( Color.YELLOW );
+            g.drawRect( round( x0 + bounds.x * dx ), round( y0 + bounds.y * dy ), round( bounds.width * dx ), round( bounds.height * dy ) );
+        }
+
+        private void paintShapePreview(Graphics g)
+        {
+            if ( shapePreview == null ) {
+                return;
+            }
+            g.setColor( SHAPE_PREVIEW );
+            for ( int x = 0; x < shapePreview.getWidth(); x++ )
+            {
+                for ( int y = 0; y < shapePreview.getHeight(); y++ )
+                {
+                    if ( shapePreview.contains( x, y ) ) {
+                        g.fillRect( round( x0 + x * dx ), round( y0 + y * dy ), round( dx ), round( dy ) );
+                    }
+                }
+            }
+        }
+
+        private void paintLayerInfo(Graphics g)
+        {
+            final LayerStack layers = getProject().getLayers( imageSelectionPanel.getSelectedImage() );
+            if ( layers != null )
+            {
+                g.setColor( Color.WHITE );
+                g.drawString( "Layer " + ( layers.getActiveIndex() + 1 ) + "/" + layers.getLayerCount() + ": " + layers.getActiveLayer(),
+                    round( x0 ), getHeight() - g.getFontMetrics().getDescent() - 2 );
+            }
+        }
+
+        private void paintMatchInfo(Graphics g)
+        {
+            if ( ! matches.isEmpty() )
+            {
+                g.setColor( Color.WHITE );
+                final String more = matches.size() == MAX_MATCHES ? "+" : "";
+                g.drawString( "Match " + ( currentMatch + 1 ) + "/" + matches.size() + more + " (F3 / shift+F3)",
+                    round( x0 ), g.getFontMetrics().getAscent() + 2 );
+            }
+        }
+
+        // one swatch per brightness level to the right of the canvas
+        private void paintPalette(Graphics g)
+        {
+            final Image image = imageSelectionPanel.getSelectedImage();
+            final Rectangle r = new Rectangle();
+            for ( int level = 0; level <= image.getMaxLevel(); level++ )
+            {
+                getSwatchBounds( level, r );
+                g.setColor( image.getColor( level ) );
+                g.fillRect( r.x, r.y, r.width, r.height );
+                g.setColor( level == getBrushLevel() ? Color.RED : Color.DARK_GRAY );
+                g.drawRect( r.x, r.y, r.width, r.height );
+            }
+        }
+
+        private void paintCurrentImage(Graphics g)
+        {
             final Image currentImage = imageSelectionPanel.getSelectedImage();
             final Optional<Image> previous = imageSelectionPanel.getProject().getPreviousImage( currentImage );
             float px, py;
-            for ( int y = 0; y < 8; y++ )
+            for ( int y = 0; y < currentImage.getHeight(); y++ )
             {
                 py = y0 + y * dy;
-                for ( int x = 0; x < 8; x++ )
+                for ( int x = 0; x < currentImage.getWidth(); x++ )
                 {
                     px = x0 + x * dx;
-                    final boolean pixelSet = currentImage.isSet( x, y );
+                    final int level = currentImage.getLevel( x, y );
                     Color c = Color.BLACK;
-                    if ( pixelSet)
+                    if ( level != 0 )
                     {
-                        c = Color.WHITE;
+                        c = currentImage.getColor( level );
                     } else {
                         if ( renderPreviousFrameOutline && previous.isPresent() ) {
                             if ( previous.get().isSet(x,y) ) {
@@ -200,20 +447,55 @@ final class MainWindowPanel extends JPanel
                     g.fillRect( round(px), round(py), round(dx), round(dy) );
                 }
             }
+        }
+
+        private void paintAnimationFrame(Graphics g)
+        {
+            final int width = round( animationSnapshot.getWidth() * dx );
+            final int height = round( animationSnapshot.getHeight() * dy );
+            if ( atlas != null )
+            {
+                atlas.draw( g, animationFrame, round( x0 ), round( y0 ), width, height );
+                if ( ! atlas.isDisplayScale( width, height ) ) {
+                    requestAtlas( width, height );
+                }
+                return;
+            }
+            requestAtlas( width, height );
 
-            // draw grid
-            g.setColor( Color.WHITE );
-            for ( int y = 0; y <= 8; y++ )
+            // atlas not ready yet
+            float px, py;
+            for ( int y = 0; y < animationSnapshot.getHeight(); y++ )
             {
                 py = y0 + y * dy;
-                g.drawLine( round(x0), round(py), round(x0 + 8 * dx), round(py) );
+                for ( int x = 0; x < animationSnapshot.getWidth(); x++ )
+                {
+                    px = x0 + x * dx;
+                    g.setColor( new Color( animationSnapshot.getColor( animationFrame, x, y ) ) );
+                    g.fillRect( round(px), round(py), round(dx), round(dy) );
+                }
+            }
+        }
+
+        // module boundaries are drawn in a different color
+        private void paintGrid(Graphics g)
+        {
+            final DisplayLayout layout = getProject().getLayout();
+            final int w = layout.getWidth();
+            final int h = layout.getHeight();
+            float px, py;
+            for ( int y = 0; y <= h; y++ )
+            {
+                py = y0 + y * dy;
+                g.setColor( y % DisplayLayout.MODULE_SIZE == 0 && y > 0 && y < h ? Color.YELLOW : Color.WHITE );
+                g.drawLine( round(x0), round(py), round(x0 + w * dx), round(py) );
             }
-            for ( int x = 0; x <= 8; x++ )
+            for ( int x = 0; x <= w; x++ )
             {
                 px = x0 + x * dx;
-                g.drawLine( round(px), round(y0), round(px), round(y0 + 8 * dy) );
+                g.setColor( x % DisplayLayout.MODULE_SIZE == 0 && x > 0 && x < w ? Color.YELLOW : Color.WHITE );
+                g.drawLine( round(px), round(y0), round(px), round(y0 + h * dy) );
             }
-            g.setColor( Color.RED );
         }
     };
 
@@ -226,13 +508,39 @@ final class MainWindowPanel extends JPanel
         @Override
         public void keyReleased(KeyEvent e)
         {
-            if ( e.getKeyCode() == KeyEvent.VK_DELETE ) {
+            if ( e.getKeyCode() == KeyEvent.VK_ESCAPE ) {
+                imageSelectionPanel.setHighlightedImages( List.of() );
+                clearMatches();
+                clearSelection();
+            } else if ( e.getKeyCode() == KeyEvent.VK_F3 ) {
+                if ( e.isShiftDown() ) {
+                    previousMatch();
+                } else {
+                    nextMatch();
+                }
+            } else if ( isControl( e ) && e.getKeyCode() == KeyEvent.VK_C ) {
+                copySelection();
+            } else if ( isControl( e ) && e.getKeyCode() == KeyEvent.VK_V ) {
+                paste();
+            } else if ( e.getKeyCode() == KeyEvent.VK_DELETE ) {
                 imageSelectionPanel.deleteImage(  imageSelectionPanel.getSelectedImage() );
                 renderPanel.repaint();
-            } else if ( e.getKeyCode() == KeyEvent.VK_LEFT ) {
-                imageSelectionPanel.selectPreviousImage();
-            } else if ( e.getKeyCode() == KeyEvent.VK_RIGHT ) {
-                imageSelectionPanel.selectNextImage();
+            }
+        }
+
+        // navigation repeats while the key is held down, so it happens on key press
+        @Override
+        public void keyPressed(KeyEvent e)
+        {
+            switch ( e.getKeyCode() )
+            {
+                case KeyEvent.VK_LEFT -> scrubber.step( -1 );
+                case KeyEvent.VK_RIGHT -> scrubber.step( 1 );
+                case KeyEvent.VK_PAGE_UP -> scrubber.jumpBy( -imageSelectionPanel.getVisibleFrameCount() );
+                case KeyEvent.VK_PAGE_DOWN -> scrubber.jumpBy( imageSelectionPanel.getVisibleFrameCount() );
+                case KeyEvent.VK_HOME -> scrubber.jumpTo( 0 );
+                case KeyEvent.VK_END -> scrubber.jumpTo( getProject().getImages().size() - 1 );
+                default -> {}
             }
         }
 
@@ -245,20 +553,24 @@ final class MainWindowPanel extends JPanel
             }
             if ( e.getKeyChar() == 'p') {
                 startAnimation();
+            } else if ( e.getKeyChar() == 's' ) {
+                selectSimilar( DEFAULT_SIMILARITY );
             } else if ( e.getKeyChar() == 'd' ) {
                 imageSelectionPanel.duplicateImage();
             } else if ( e.getKeyChar() == 'n' ) {
                 imageSelectionPanel.newImage();
             } else if ( e.getKeyChar() == 'c' ) {
-                if ( imageSelectionPanel.getSelectedImage().clear() ) {
-                    imageSelectionPanel.repaint();
-                    renderPanel.repaint();
+                if ( getEditTarget().clear() ) {
+                    editFinished();
                 }
             } else if ( e.getKeyChar() == 'f' ) {
-                if ( imageSelectionPanel.getSelectedImage().fill() ) {
-                    imageSelectionPanel.repaint();
-                    renderPanel.repaint();
+                if ( getEditTarget().fill() ) {
+                    editFinished();
                 }
+            } else if ( e.getKeyChar() == 'l' ) {
+                selectNextLayer();
+            } else if ( e.getKeyChar() >= '1' && e.getKeyChar() < '1' + Tool.values().length ) {
+                setTool( Tool.values()[e.getKeyChar() - '1'] );
             }
         }
     };
@@ -267,6 +579,7 @@ final class MainWindowPanel extends JPanel
     {
         Validate.notNull( p, "project must not be null" );
         imageSelectionPanel = new ImageSelectionPanel( p );
+        scrubber = new FrameScrubber( () -> getProject().getImages().size(), imageSelectionPanel::getSelectedIndex, imageSelectionPanel::setSelectedIndex );
         setFocusable( true );
         imageSelectionPanel.addKeyListener( keyAdapter );
 
@@ -297,8 +610,400 @@ final class MainWindowPanel extends JPanel
         add( new JScrollPane( imageSelectionPanel , JScrollPane.VERTICAL_SCROLLBAR_NEVER, JScrollPane.HORIZONTAL_SCROLLBAR_ALWAYS ), cnstr );
     }
 
+    // for painting parts of the editor on their own, e.g. in PaintBenchmark
+    JComponent getCanvas() {
+        return renderPanel;
+    }
+
+    ImageSelectionPanel getFilmstrip() {
+        return imageSelectionPanel;
+    }
+
+    // pixels the editor changes, the active layer if the current frame has layers
+    private Image getEditTarget()
+    {
+        final Image frame = imageSelectionPanel.getSelectedImage();
+        final LayerStack layers = getProject().getLayers( frame );
+        return layers == null ? frame : layers.getActiveLayer().getImage();
+    }
+
+    public Tool getTool() {
+        return tool;
+    }
+
+    public void setTool(Tool tool)
+    {
+        Validate.notNull( tool, "tool must not be null" );
+        this.tool = tool;
+        shapeStart = null;
+        shapePreview = null;
+        renderPanel.repaint();
+    }
+
+    // flood fill is applied right away, other shapes follow the mouse until it is released
+    private void startTool(Point p, int level)
+    {
+        if ( tool == Tool.FILL )
+        {
+            final Image target = getEditTarget();
+            if ( Shapes.draw( target, Shapes.floodFill( target, p.x, p.y ), level ) ) {
+                editFinished();
+            }
+            return;
+        }
+        shapeStart = p;
+        shapeLevel = level;
+        updateShape( p );
+    }
+
+    private void updateShape(Point end)
+    {
+        final Image frame = imageSelectionPanel.getSelectedImage();
+        final Rectangle bounds = new Rectangle( shapeStart );
+        bounds.add( end );
+        bounds.width++;
+        bounds.height++;
+        shapePreview = switch ( tool )
+        {
+            case LINE -> Shapes.line( frame.getWidth(), frame.getHeight(), shapeStart.x, shapeStart.y, end.x, end.y );
+            case RECTANGLE -> Shapes.rectangle( frame.getWidth(), frame.getHeight(), bounds );
+            case ELLIPSE -> Shapes.ellipse( frame.getWidth(), frame.getHeight(), bounds );
+            case PEN, FILL -> throw new IllegalStateException( "Not a shape tool: " + tool );
+        };
+        renderPanel.repaint();
+    }
+
+    // draws the dragged shape as a single edit
+    private void finishShape()
+    {
+        final Selection shape = shapePreview;
+        shapeStart = null;
+        shapePreview = null;
+        if ( shape != null && Shapes.draw( getEditTarget(), shape, shapeLevel ) ) {
+            editFinished();
+        } else {
+            renderPanel.repaint();
+        }
+    }
+
+    // recomposites the current frame after its pixels or layers changed
+    private void editFinished()
+    {
+        final Image frame = imageSelectionPanel.getSelectedImage();
+        final LayerStack layers = getProject().getLayers( frame );
+        if ( layers != null ) {
+            layers.update();
+        }
+        imageSelectionPanel.imageChanged( frame );
+        imageSelectionPanel.repaint();
+        renderPanel.repaint();
+    }
+
+    // layers of the current frame, created on demand
+    private LayerStack getOrCreateLayers() {
+        return getProject().createLayers( imageSelectionPanel.getSelectedImage() );
+    }
+
+    public void addLayer()
+    {
+        final LayerStack layers = getOrCreateLayers();
+        layers.addLayer( "Layer " + ( layers.getLayerCount() + 1 ), Layer.BlendMode.OR );
+        editFinished();
+    }
+
+    // removing the last layer turns the frame back into a plain one
+    public void removeActiveLayer()
+    {
+        final LayerStack layers = getProject().getLayers( imageSelectionPanel.getSelectedImage() );
+        if ( layers != null )
+        {
+            if ( layers.getLayerCount() == 1 ) {
+                getProject().removeLayers( layers.getFrame() );
+            } else {
+                layers.removeLayer( layers.getActiveIndex() );
+            }
+            editFinished();
+        }
+    }
+
+    public void selectNextLayer()
+    {
+        final LayerStack layers = getProject().getLayers( imageSelectionPanel.getSelectedImage() );
+        if ( layers != null )
+        {
+            layers.setActiveIndex( ( layers.getActiveIndex() + 1 ) % layers.getLayerCount() );
+            renderPanel.repaint();
+        }
+    }
+
+    public Layer getActiveLayer()
+    {
+        final LayerStack layers = getProject().getLayers( imageSelectionPanel.getSelectedImage() );
+        return layers == null ? null : layers.getActiveLayer();
+    }
+
+    public void setActiveBlendMode(Layer.BlendMode mode)
+    {
+        getOrCreateLayers().getActiveLayer().setMode( mode );
+        editFinished();
+    }
+
+    public void toggleActiveLayerVisibility()
+    {
+        final Layer layer = getActiveLayer();
+        if ( layer != null )
+        {
+            layer.setVisible( ! layer.isVisible() );
+            editFinished();
+        }
+    }
+
+    // merges the layers of the current frame into the frame
+    public void mergeLayers()
+    {
+        getProject().removeLayers( imageSelectionPanel.getSelectedImage() );
+        editFinished();
+    }
+
+    public void clearSelection()
+    {
+        selection = null;
+        renderPanel.repaint();
+    }
+
+    // restricts the selection to the pixels lit in the current frame
+    public void selectLitPixels()
+    {
+        if ( selection != null )
+        {
+            selection = selection.litPixels( getEditTarget() );
+            renderPanel.repaint();
+        }
+    }
+
+    public boolean copySelection()
+    {
+        if ( selection == null || selection.isEmpty() ) {
+            return false;
+        }
+        clip = Clip.copy( getEditTarget(), selection );
+        clipOrigin = selection.getBounds().getLocation();
+        return true;
+    }
+
+    // whether there is a clip that fits the current project
+    public boolean hasClip() {
+        return clip != null && clip.getBitsPerPixel() == getProject().getBitsPerPixel();
+    }
+
+    /**
+     * Searches all frames for the copied pixels, highlights the frames
+     * containing them and selects the first match.
+     *
+     * @return number of matches or -1 if nothing was copied
+     */
+    public int findClip()
+    {
+        if ( ! hasClip() ) {
+            return -1;
+        }
+        getProject().flattenLayers();
+        searchPattern = clip;
+        matches = PatternSearch.find( getProject().getImages(), clip, MAX_MATCHES );
+        currentMatch = -1;
+        imageSelectionPanel.setHighlightedImages( matches.stream().map( PatternSearch.Match::frame ).distinct().toList() );
+        if ( ! nextMatch() ) {
+            renderPanel.repaint();
+        }
+        return matches.size();
+    }
+
+    public List<PatternSearch.Match> getMatches() {
+        return matches;
+    }
+
+    public boolean nextMatch() {
+        return showMatch( currentMatch + 1 );
+    }
+
+    public boolean previousMatch() {
+        return showMatch( currentMatch - 1 );
+    }
+
+    // selects the frame of a match and the matched pixels, wraps around at both ends
+    private boolean showMatch(int idx)
+    {
+        if ( matches.isEmpty() ) {
+            return false;
+        }
+        currentMatch = Math.floorMod( idx, matches.size() );
+        final PatternSearch.Match match = matches.get( currentMatch );
+        if ( getProject().getImages().indexOf( match.frame() ) == -1 ) {
+            // frame was deleted since the search
+            return false;
+        }
+        imageSelectionPanel.setSelectedImage( match.frame() );
+        final Image frame = match.frame();
+        selection = Selection.rectangle( frame.getWidth(), frame.getHeight(),
+            new Rectangle( match.x(), match.y(), searchPattern.getWidth(), searchPattern.getHeight() ) );
+        renderPanel.repaint();
+        return true;
+    }
+
+    public void clearMatches()
+    {
+        matches = List.of();
+        currentMatch = -1;
+        searchPattern = null;
+        renderPanel.repaint();
+    }
+
+    /**
+     * Replaces all matches of the last search with the copied pixels: the
+     * matched pixels of all matches are turned off, then the clip is pasted
+     * at each match position. Layered frames are changed through their
+     * active layer.
+     *
+     * @return number of frames that changed, -1 if there are no matches or nothing fitting was copied
+     */
+    public int replaceMatches()
+    {
+        if ( matches.isEmpty() || ! hasClip() ) {
+            return -1;
+        }
+        final Clip pattern = searchPattern;
+        final Clip replacement = clip;
+        final Map<Image,List<PatternSearch.Match>> byFrame = new IdentityHashMap<>();
+        matches.forEach( m -> byFrame.computeIfAbsent( m.frame(), k -> new ArrayList<>() ).add( m ) );
+        final Set<Image> frames = Collections.newSetFromMap( new IdentityHashMap<>() );
+        frames.addAll( getProject().getImages() );
+        // frame -> image to change
+        final List<Map.Entry<Image,Image>> targets = new ArrayList<>();
+        for ( final Image frame : byFrame.keySet() )
+        {
+            if ( frames.contains( frame ) )
+            {
+                final LayerStack layers = getProject().getLayers( frame );
+                targets.add( Map.entry( frame, layers == null ? frame : layers.getActiveLayer().getImage() ) );
+            }
+        }
+        final int changed = (int) targets.parallelStream().filter( e -> {
+            // erase all matches first, otherwise erasing an overlapping match would clobber a pasted clip
+            boolean result = false;
+            for ( final PatternSearch.Match m : byFrame.get( e.getKey() ) ) {
+                result |= pattern.erase( e.getValue(), m.x(), m.y() );
+            }
+            for ( final PatternSearch.Match m : byFrame.get( e.getKey() ) ) {
+                result |= replacement.paste( e.getValue(), m.x(), m.y() );
+            }
+            return result;
+        } ).count();
+        getProject().flattenLayers();
+        clearMatches();
+        imageSelectionPanel.setHighlightedImages( List.of() );
+        imageSelectionPanel.imageChanged( imageSelectionPanel.getSelectedImage() );
+        imageSelectionPanel.repaint();
+        clearSelection();
+        return changed;
+    }
+
+    // frame selected in the filmstrip
+    public Image getCurrentFrame() {
+        return imageSelectionPanel.getSelectedImage();
+    }
+
+    // the last copied pixels or null
+    public Clip getClip() {
+        return hasClip() ? clip : null;
+    }
+
+    // position the clip was copied from
+    public Point getClipOrigin() {
+        return new Point( clipOrigin );
+    }
+
+    // pastes into the current frame with the clip's top-left corner at the mouse position
+    public void paste()
+    {
+        if ( hasClip() )
+        {
+            final Point p = mousePosition != null ? mousePosition : clipOrigin;
+            if ( clip.paste( getEditTarget(), p.x, p.y ) ) {
+                editFinished();
+            }
+        }
+    }
+
+    /**
+     * Pastes the clip into a range of frames, in parallel.
+     *
+     * @param first index of the first frame
+     * @param last index of the last frame (inclusive)
+     * @return number of frames that changed
+     */
+    public int pasteIntoFrames(int first, int last, int x, int y)
+    {
+        Validate.validState( hasClip(), "Nothing copied" );
+        final List<Image> frames = getProject().getImages();
+        Validate.isTrue( first >= 0 && first <= last && last < frames.size(), "Invalid frame range %d..%d", first, last );
+        final List<Image> targets = new ArrayList<>( last - first + 1 );
+        for ( final Image frame : frames.subList( first, last + 1 ) )
+        {
+            final LayerStack layers = getProject().getLayers( frame );
+            targets.add( layers == null ? frame : layers.getActiveLayer().getImage() );
+        }
+        final int changed = clip.paste( targets, x, y );
+        if ( changed > 0 )
+        {
+            getProject().flattenLayers();
+            imageSelectionPanel.imageChanged( imageSelectionPanel.getSelectedImage() );
+            imageSelectionPanel.repaint();
+            renderPanel.repaint();
+        }
+        return changed;
+    }
+
+    private int getBrushLevel() {
+        return Math.min( brushLevel, imageSelectionPanel.getSelectedImage().getMaxLevel() );
+    }
+
+    private void getSwatchBounds(int level, Rectangle r)
+    {
+        final DisplayLayout layout = getProject().getLayout();
+        final int levels = imageSelectionPanel.getSelectedImage().getMaxLevel() + 1;
+        final float size = Math.min( dy, layout.getHeight() * dy / levels );
+        r.setBounds( Math.round( x0 + ( layout.getWidth() + 1 ) * dx ), Math.round( y0 + level * size ),
+            Math.round( size ), Math.round( size ) );
+    }
+
+    // brightness level of the palette swatch at the given position or -1
+    private int paletteLevelAt(Point p)
+    {
+        if ( getProject().getBitsPerPixel() > 1 )
+        {
+            final Rectangle r = new Rectangle();
+            for ( int level = 0; level <= imageSelectionPanel.getSelectedImage().getMaxLevel(); level++ )
+            {
+                getSwatchBounds( level, r );
+                if ( r.contains( p ) ) {
+                    return level;
+                }
+            }
+        }
+        return -1;
+    }
+
     public void setProject(Project project) {
+        stopAnimation();
+        selection = null;
+        shapeStart = null;
+        shapePreview = null;
+        clearMatches();
+        final Project previous = getProject();
         imageSelectionPanel.setProject( project );
+        if ( previous != project ) {
+            previous.dispose();
+        }
         renderPanel.repaint();
     }
 
@@ -306,33 +1011,155 @@ final class MainWindowPanel extends JPanel
         return imageSelectionPanel.getProject();
     }
 
-    private void startAnimation() {
+    // highlights all frames that differ from the current one in at most maxDistance pixels
+    public int selectSimilar(int maxDistance) {
+        final Image current = imageSelectionPanel.getSelectedImage();
+        final List<Image> similar = SimilarityIndex.of( getProject().snapshot() ).findSimilar( current, maxDistance )
+            .stream().map( SimilarityIndex.Match::frame ).filter( img -> img != current ).toList();
+        imageSelectionPanel.setHighlightedImages( similar );
+        return similar.size();
+    }
+
+    public int mergeNearDuplicates(int maxDistance) {
+        getProject().flattenLayers();
+        final Map<Image,Image> duplicates = SimilarityIndex.findNearDuplicates( getProject().getImages(), maxDistance );
+        duplicates.forEach( (frame, representative) -> {
+            // flattenLayers() would bring back the old pixels of a layered frame
+            getProject().removeLayers( frame );
+            frame.copyFrom( representative );
+        } );
+        final int changed = duplicates.size();
+        if ( changed > 0 )
+        {
+            imageSelectionPanel.repaint();
+            renderPanel.repaint();
+        }
+        return changed;
+    }
+
+    public void addImages(List<Image> images) {
+        Validate.isTrue( images.stream().allMatch( getProject().getLayout()::fits ), "Frames do not match the display layout" );
+        if ( ! images.isEmpty() )
+        {
+            final int bits = getProject().getBitsPerPixel();
+            final List<Image> converted = images.stream().map( img -> img.getBitsPerPixel() == bits ? img : img.convert( bits ) ).toList();
+            getProject().addAll( converted );
+            imageSelectionPanel.setSelectedImage( converted.getFirst() );
+        }
+    }
+
+    // copy of the frame currently visible on the canvas
+    public byte[] getDisplayedFrameData() {
+        final Image frame = isAnimationRunning() ? animationFrames.get( animationFrame ) : imageSelectionPanel.getSelectedImage();
+        return getProject().toExportBytes( frame );
+    }
+
+    void startAnimation() {
         if ( animate ) {
             stopAnimation();
         }
         animate = true;
         renderPreviousFrameOutline = false;
+
+        animationFrames = getProject().getImages();
+        animationFrame = Math.max( 0, animationFrames.indexOf( imageSelectionPanel.getSelectedImage() ) );
+        animationSnapshot = SpriteAtlas.Snapshot.of( animationFrames );
+        if ( atlas != null && ! atlas.getSnapshot().equals( animationSnapshot ) ) {
+            atlas = null;
+        }
+
         final int millis = imageSelectionPanel.getProject().getAnimationSpeedMillis();
+        // when the next tick is due, to tell how late the timer fired
+        final long[] due = { System.nanoTime() + millis * 1_000_000L };
         animationTimer = new Timer(millis, ev -> {
-            final Image img = getProject().getNextImage( imageSelectionPanel.getSelectedImage() );
-            imageSelectionPanel.setSelectedImage( img );
-            imageSelectionPanel.repaint();
-            renderPanel.repaint();
+            final AnimationTickEvent event = new AnimationTickEvent();
+            event.begin();
+            final long now = System.nanoTime();
+            final long lateness = now - due[0];
+            due[0] = now + millis * 1_000_000L;
+            showNextAnimationFrame();
             Toolkit.getDefaultToolkit().sync();
+            event.end();
+            if ( event.shouldCommit() )
+            {
+                event.frame = animationFrame;
+                event.periodMillis = millis;
+                event.latenessNanos = lateness;
+                event.commit();
+            }
         });
         animationTimer.start();
     }
 
-    private boolean isAnimationRunning() {
+    // one tick of playback
+    void showNextAnimationFrame()
+    {
+        animationFrame = ( animationFrame + 1 ) % animationSnapshot.getFrameCount();
+        renderPanel.repaint();
+    }
+
+    private void requestAtlas(int width, int height)
+    {
+        final AtlasRequest request = new AtlasRequest( animationSnapshot, width, height );
+        if ( request.equals( atlasRequest ) ) {
+            return;
+        }
+        if ( atlasWorker != null ) {
+            atlasWorker.cancel( true );
+        }
+        atlasRequest = request;
+        atlasWorker = new SwingWorker<>()
+        {
+            @Override
+            protected SpriteAtlas doInBackground()
+            {
+                return SpriteAtlas.create( request.snapshot(), request.width(), request.height() );
+            }
+
+            @Override
+            protected void done()
+            {
+                if ( isCancelled() ) {
+                    return;
+                }
+                try
+                {
+                    final SpriteAtlas result = get();
+                    if ( result != null && request.snapshot().equals( animationSnapshot ) )
+                    {
+                        atlas = result;
+                        renderPanel.repaint();
+                    }
+                }
+                catch( InterruptedException | ExecutionException e )
+                {
+                    e.printStackTrace();
+                }
+            }
+        };
+        atlasWorker.execute();
+    }
+
+    boolean isAnimationRunning() {
         return animate;
     }
 
-    private void stopAnimation() {
+    void stopAnimation() {
         if ( animate )
         {
             animate = false;
             renderPreviousFrameOutline = true;
             animationTimer.stop();
+            if ( atlasWorker != null && ! atlasWorker.isDone() )
+            {
+                atlasWorker.cancel( true );
+                atlasRequest = null;
+            }
+            final Image current = animationFrames.get( animationFrame );
+            animationFrames = null;
+            if ( getProject().getImages().contains( current ) ) {
+                imageSelectionPanel.setSelectedImage( current );
+            }
             renderPanel.repaint();
         }
     }
@@ -0,0 +1,140 @@
+package de.codesourcery.arduino;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Generates the frames of a text scrolling from right to left.
+ *
+ * The text is rendered once into a strip of pixel columns packed exactly
+ * like the words of a frame in a {@link FrameStore}. Each frame is then a
+ * window into that strip, so producing a word of a frame takes two shifts
+ * and an OR instead of drawing any pixels.
+ *
+ * Frames are handed to a {@link FrameSink} one by one, only the strip is
+ * kept in memory no matter how long the text is.
+ */
+public final class MarqueeGenerator
+{
+    @FunctionalInterface
+    public interface FrameSink
+    {
+        /**
+         * @param words words of the frame as laid out by the generator's
+         *              store, the array is reused for the next frame
+         */
+        void accept(long[] words) throws IOException;
+    }
+
+    private final BitmapFont font;
+    private final FrameStore store;
+    private int spacing = 1;
+    private int step = 1;
+    private int yOffset;
+
+    public MarqueeGenerator(BitmapFont font, FrameStore store)
+    {
+        Validate.notNull( font, "font must not be null" );
+        Validate.notNull( store, "store must not be null" );
+        Validate.isTrue( font.getHeight() <= store.height, "Font is higher than the frame" );
+        this.font = font;
+        this.store = store;
+        this.yOffset = ( store.height - font.getHeight() ) / 2;
+    }
+
+    // blank columns between glyphs
+    public MarqueeGenerator setSpacing(int spacing)
+    {
+        Validate.isTrue( spacing >= 0, "spacing must be >= 0" );
+        this.spacing = spacing;
+        return this;
+    }
+
+    // columns scrolled per frame
+    public MarqueeGenerator setStep(int step)
+    {
+        Validate.isTrue( step > 0, "step must be > 0" );
+        this.step = step;
+        return this;
+    }
+
+    // row of the glyphs' top row, text is centered vertically by default
+    public MarqueeGenerator setYOffset(int yOffset)
+    {
+        Validate.inclusiveBetween( 0, store.height - font.getHeight(), yOffset, "text does not fit at y offset %d", yOffset );
+        this.yOffset = yOffset;
+        return this;
+    }
+
+    // text enters at the right edge and the last frame has it just left the screen
+    public int getFrameCount(String text)
+    {
+        return ( font.getWidth( text, spacing ) + store.width + step - 1 ) / step;
+    }
+
+    /**
+     * Packs the text into words, with a blank frame width in front of it
+     * and behind it plus one extra word so windows never run off the end.
+     */
+    private long[] createStrip(String text)
+    {
+        final int columns = store.width + font.getWidth( text, spacing ) + store.width;
+        final long[] strip = new long[( columns + store.columnsPerWord - 1 ) / store.columnsPerWord + 1];
+        int x = store.width;
+        for ( int i = 0; i < text.length(); i++ )
+        {
+            if ( i > 0 ) {
+                x += spacing;
+            }
+            for ( final long column : font.getGlyph( text.charAt( i ) ) )
+            {
+                strip[x / store.columnsPerWord] |= ( column << yOffset ) << ( x % store.columnsPerWord ) * store.bitsPerColumn;
+                x++;
+            }
+        }
+        return strip;
+    }
+
+    public void generate(String text, FrameSink sink) throws IOException
+    {
+        Validate.notNull( text, "text must not be null" );
+        Validate.notNull( sink, "sink must not be null" );
+
+        final long[] strip = createStrip( text );
+        final long[] words = new long[store.wordsPerFrame];
+        final int frames = getFrameCount( text );
+        for ( int frame = 0, offset = 0; frame < frames; frame++, offset += step )
+        {
+            final int first = offset / store.columnsPerWord;
+            final int shift = ( offset % store.columnsPerWord ) * store.bitsPerColumn;
+            for ( int i = 0; i < words.length; i++ )
+            {
+                final long word = shift == 0 ? strip[first + i] : strip[first + i] >>> shift | strip[first + i + 1] << 64 - shift;
+                words[i] = word & store.getValidMask( i );
+            }
+            sink.accept( words );
+        }
+    }
+
+    // all frames as images, only sensible for short texts
+    public List<Image> generate(String text)
+    {
+        final List<Image> result = new ArrayList<>( getFrameCount( text ) );
+        try
+        {
+            generate( text, words -> {
+                final Image image = new Image( store );
+                for ( int i = 0; i < words.length; i++ ) {
+                    image.setWord( i, words[i] );
+                }
+                result.add( image );
+            } );
+        }
+        catch( IOException e ) {
+            throw new IllegalStateException( "Cannot happen", e );
+        }
+        return result;
+    }
+}
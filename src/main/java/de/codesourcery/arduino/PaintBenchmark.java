@@ -0,0 +1,313 @@
+package de.codesourcery.arduino;
+
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.function.Consumer;
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.RepaintManager;
+import javax.swing.SwingUtilities;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Measures how fast the editor paints, headless and without opening a
+ * window.
+ *
+ * For synthetic projects with every combination of frame count and
+ * display layout this lays out a {@link MainWindowPanel}, paints it and its
+ * filmstrip into offscreen images on the event dispatch thread and
+ * measures
+ * <ul>
+ *   <li>window: painting the whole editor</li>
+ *   <li>filmstrip: painting the visible part of the {@link ImageSelectionPanel}</li>
+ *   <li>scroll: selecting the next frame, then painting filmstrip and canvas</li>
+ *   <li>playback: one animation tick, then painting the canvas</li>
+ * </ul>
+ * Each reports paint time percentiles, bytes allocated per operation and
+ * operations per second. Results are also written as CSV with one line per
+ * project and measurement, so how paint times scale with the number of
+ * frames can be compared between builds.
+ *
+ * Usage: PaintBenchmark [--frames 10,100,1000,10000] [--layouts 1x1,4x1,4x4] [--bits 1]
+ *                       [--size 1280x800] [--warmup 50] [--iterations 200] [--out paint-benchmark.csv]
+ */
+public final class PaintBenchmark
+{
+    private static final String HEADER = "layout;width;height;bits;frames;metric;iterations;p50_us;p90_us;p99_us;max_us;mean_us;alloc_bytes;ops_per_s";
+
+    // time for asynchronously rendered thumbnails and sprite atlases to arrive after warming up
+    private static final long SETTLE_MILLIS = 250;
+
+    private final int warmup;
+    private final int iterations;
+    private final int width;
+    private final int height;
+    private final com.sun.management.ThreadMXBean threads;
+
+    private MainWindowPanel panel;
+
+    public PaintBenchmark(int width, int height, int warmup, int iterations)
+    {
+        this.width = width;
+        this.height = height;
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.threads = ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean t && t.isThreadAllocatedMemorySupported() ? t : null;
+    }
+
+    // timings of one measurement, in nanoseconds
+    public record Result(DisplayLayout layout, int bitsPerPixel, int frames, String metric, long[] nanos, long allocatedBytes)
+    {
+        public long percentile(int p) {
+            return nanos[Math.min( nanos.length - 1, (int) ( (long) nanos.length * p / 100 ) )];
+        }
+
+        public double meanNanos() {
+            return Arrays.stream( nanos ).average().orElse( 0 );
+        }
+
+        // -1 if the JVM cannot tell
+        public long allocatedBytesPerOp() {
+            return allocatedBytes < 0 ? -1 : allocatedBytes / nanos.length;
+        }
+
+        public double opsPerSecond() {
+            return nanos.length * 1_000_000_000d / Arrays.stream( nanos ).sum();
+        }
+
+        public String toCsv()
+        {
+            return String.format( Locale.ROOT, "%dx%d;%d;%d;%d;%d;%s;%d;%.1f;%.1f;%.1f;%.1f;%.1f;%d;%.1f",
+                layout.getModulesX(), layout.getModulesY(), layout.getWidth(), layout.getHeight(), bitsPerPixel, frames, metric, nanos.length,
+                percentile( 50 ) / 1000d, percentile( 90 ) / 1000d, percentile( 99 ) / 1000d, nanos[nanos.length - 1] / 1000d,
+                meanNanos() / 1000d, allocatedBytesPerOp(), opsPerSecond() );
+        }
+    }
+
+    // frames with random pixels, the same ones on every run
+    public static Project createProject(DisplayLayout layout, int bitsPerPixel, int frames)
+    {
+        final Random rnd = new Random( frames * 31L + layout.getWidth() * 7L + layout.getHeight() );
+        final FrameStore store = layout.getStore();
+        final List<Image> images = new ArrayList<>( frames );
+        for ( int i = 0; i < frames; i++ )
+        {
+            final Image image = new Image( store, bitsPerPixel );
+            for ( int p = 0; p < bitsPerPixel; p++ )
+            {
+                for ( int w = 0; w < store.wordsPerFrame; w++ ) {
+                    image.getPlane( p ).setWord( w, rnd.nextLong() & store.getValidMask( w ) );
+                }
+            }
+            image.setDirty( false );
+            images.add( image );
+        }
+        final Project result = new Project( "benchmark", null, layout, images );
+        // playback is driven by the benchmark, not the timer
+        result.setAnimationSpeedMillis( Integer.MAX_VALUE );
+        return result;
+    }
+
+    public List<Result> run(DisplayLayout layout, int bitsPerPixel, int frames) throws InterruptedException
+    {
+        final Project project = createProject( layout, bitsPerPixel, frames );
+        onEdt( () -> {
+            if ( panel == null )
+            {
+                panel = new MainWindowPanel( project );
+                RepaintManager.currentManager( panel ).setDoubleBufferingEnabled( false );
+            } else {
+                panel.setProject( project );
+            }
+            panel.setSize( width, height );
+            layout( panel );
+        } );
+
+        final List<Result> result = new ArrayList<>();
+        final BufferedImage window = new BufferedImage( width, height, BufferedImage.TYPE_INT_RGB );
+        result.add( measure( layout, bitsPerPixel, frames, "window", () -> paint( panel, window ) ) );
+
+        final BufferedImage filmstrip = image( panel.getFilmstrip().getParent() );
+        final BufferedImage canvas = image( panel.getCanvas() );
+        result.add( measure( layout, bitsPerPixel, frames, "filmstrip", () -> paintVisible( panel.getFilmstrip(), filmstrip ) ) );
+
+        final int[] index = { 0 };
+        result.add( measure( layout, bitsPerPixel, frames, "scroll", () -> {
+            index[0] = ( index[0] + 1 ) % frames;
+            panel.getFilmstrip().setSelectedIndex( index[0] );
+            paintVisible( panel.getFilmstrip(), filmstrip );
+            paint( panel.getCanvas(), canvas );
+        } ) );
+
+        onEdt( panel::startAnimation );
+        try
+        {
+            result.add( measure( layout, bitsPerPixel, frames, "playback", () -> {
+                panel.showNextAnimationFrame();
+                paint( panel.getCanvas(), canvas );
+            } ) );
+        }
+        finally {
+            onEdt( panel::stopAnimation );
+        }
+        return result;
+    }
+
+    // validate() does nothing without a native peer, so lay out by hand
+    private static void layout(Container c)
+    {
+        c.doLayout();
+        for ( final Component child : c.getComponents() )
+        {
+            if ( child instanceof Container container ) {
+                layout( container );
+            }
+        }
+    }
+
+    private static BufferedImage image(Component c) {
+        return new BufferedImage( Math.max( 1, c.getWidth() ), Math.max( 1, c.getHeight() ), BufferedImage.TYPE_INT_RGB );
+    }
+
+    private static void paint(JComponent c, BufferedImage target)
+    {
+        final Graphics2D g = target.createGraphics();
+        try {
+            c.paint( g );
+        } finally {
+            g.dispose();
+        }
+    }
+
+    // only the part shown by the enclosing viewport, like Swing would
+    private static void paintVisible(JComponent c, BufferedImage target)
+    {
+        final Rectangle view = ( (JViewport) c.getParent() ).getViewRect();
+        final Graphics2D g = target.createGraphics();
+        try
+        {
+            g.translate( -view.x, -view.y );
+            g.clipRect( view.x, view.y, view.width, view.height );
+            c.paint( g );
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private Result measure(DisplayLayout layout, int bitsPerPixel, int frames, String metric, Runnable op) throws InterruptedException
+    {
+        for ( int i = 0; i < warmup; i++ ) {
+            onEdt( op );
+        }
+        Thread.sleep( SETTLE_MILLIS );
+
+        final long[] nanos = new long[iterations];
+        final long[] allocated = { 0 };
+        for ( int i = 0; i < iterations; i++ )
+        {
+            final int n = i;
+            onEdt( () -> {
+                final long bytes = threads != null ? threads.getCurrentThreadAllocatedBytes() : 0;
+                final long start = System.nanoTime();
+                op.run();
+                nanos[n] = System.nanoTime() - start;
+                allocated[0] += threads != null ? threads.getCurrentThreadAllocatedBytes() - bytes : 0;
+            } );
+        }
+        Arrays.sort( nanos );
+        return new Result( layout, bitsPerPixel, frames, metric, nanos, threads != null ? allocated[0] : -1 );
+    }
+
+    private static void onEdt(Runnable r) throws InterruptedException
+    {
+        try {
+            SwingUtilities.invokeAndWait( r );
+        }
+        catch( InvocationTargetException e ) {
+            throw new RuntimeException( e.getCause() );
+        }
+    }
+
+    private static void usage()
+    {
+        System.err.println( "Usage: PaintBenchmark [--frames 10,100,1000,10000] [--layouts 1x1,4x1,4x4] [--bits 1]" );
+        System.err.println( "                      [--size 1280x800] [--warmup 50] [--iterations 200] [--out paint-benchmark.csv]" );
+        System.exit( 1 );
+    }
+
+    private static int[] parseInts(String s, char separator) {
+        return Arrays.stream( StringUtils.split( s, separator ) ).mapToInt( v -> Integer.parseInt( v.trim() ) ).toArray();
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        System.setProperty( "java.awt.headless", "true" );
+
+        int[] frameCounts = { 10, 100, 1000, 10000 };
+        List<DisplayLayout> layouts = List.of( DisplayLayout.of( 1, 1 ), DisplayLayout.of( 4, 1 ), DisplayLayout.of( 4, 4 ) );
+        int bits = 1, warmup = 50, iterations = 200;
+        int[] size = { 1280, 800 };
+        File out = new File( "paint-benchmark.csv" );
+
+        for ( int i = 0; i < args.length; i++ )
+        {
+            final boolean hasValue = i + 1 < args.length;
+            switch ( args[i] )
+            {
+                case "--frames" -> { if ( ! hasValue ) usage(); frameCounts = parseInts( args[++i], ',' ); }
+                case "--layouts" -> {
+                    if ( ! hasValue ) usage();
+                    layouts = Arrays.stream( StringUtils.split( args[++i], ',' ) )
+                        .map( l -> parseInts( l, 'x' ) )
+                        .map( l -> DisplayLayout.of( l[0], l[1] ) )
+                        .toList();
+                }
+                case "--bits" -> { if ( ! hasValue ) usage(); bits = Integer.parseInt( args[++i] ); }
+                case "--size" -> { if ( ! hasValue ) usage(); size = parseInts( args[++i], 'x' ); }
+                case "--warmup" -> { if ( ! hasValue ) usage(); warmup = Integer.parseInt( args[++i] ); }
+                case "--iterations" -> { if ( ! hasValue ) usage(); iterations = Integer.parseInt( args[++i] ); }
+                case "--out" -> { if ( ! hasValue ) usage(); out = new File( args[++i] ); }
+                default -> usage();
+            }
+        }
+        if ( size.length != 2 || iterations <= 0 || warmup < 0 ) {
+            usage();
+        }
+
+        final PaintBenchmark benchmark = new PaintBenchmark( size[0], size[1], warmup, iterations );
+        try ( PrintWriter csv = new PrintWriter( new FileWriter( out ) ) )
+        {
+            csv.println( HEADER );
+            System.out.println( HEADER );
+            for ( final DisplayLayout layout : layouts )
+            {
+                for ( final int frames : frameCounts )
+                {
+                    final Consumer<Result> print = r -> {
+                        csv.println( r.toCsv() );
+                        System.out.println( r.toCsv() );
+                    };
+                    benchmark.run( layout, bits, frames ).forEach( print );
+                    csv.flush();
+                }
+            }
+        }
+        System.out.println( "Results written to " + out.getAbsolutePath() );
+        // Swing and thumbnail threads would keep the JVM alive
+        System.exit( 0 );
+    }
+}
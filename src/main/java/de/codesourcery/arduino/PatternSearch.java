@@ -0,0 +1,99 @@
+package de.codesourcery.arduino;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Finds every position at which a pattern occurs in a list of frames.
+ *
+ * The pattern is a {@link Clip}, only its selected pixels have to match,
+ * at every brightness level. Matching is bit-parallel: for each column
+ * offset a single word holds one candidate bit per row offset, and every
+ * selected pattern pixel clears the candidates it rules out with one shift
+ * and one AND. Frames are searched in parallel.
+ */
+public final class PatternSearch
+{
+    // top-left corner of the pattern in a frame
+    public record Match(int frameIndex, Image frame, int x, int y) {}
+
+    private PatternSearch() {
+    }
+
+    /**
+     * @param maxMatches search stops once this many matches were found,
+     *                   the matches returned are then the ones in the first frames
+     * @return matches ordered by frame, then column, then row
+     */
+    public static List<Match> find(List<Image> frames, Clip pattern, int maxMatches)
+    {
+        Validate.notNull( frames, "frames must not be null" );
+        Validate.notNull( pattern, "pattern must not be null" );
+        Validate.isTrue( ! pattern.isEmpty(), "pattern must not be empty" );
+        Validate.isTrue( maxMatches > 0, "max. matches must be > 0" );
+        Validate.isTrue( frames.stream().allMatch( f -> f.getBitsPerPixel() == pattern.getBitsPerPixel() ),
+            "All frames need %d bits per pixel", pattern.getBitsPerPixel() );
+
+        final List<List<Match>> perFrame = IntStream.range( 0, frames.size() ).parallel()
+            .mapToObj( i -> find( i, frames.get( i ), pattern, maxMatches ) )
+            .toList();
+        final List<Match> result = new ArrayList<>();
+        for ( final List<Match> matches : perFrame )
+        {
+            result.addAll( matches.subList( 0, Math.min( matches.size(), maxMatches - result.size() ) ) );
+            if ( result.size() == maxMatches ) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static List<Match> find(int frameIndex, Image frame, Clip pattern, int maxMatches)
+    {
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+        if ( pattern.getWidth() > width || pattern.getHeight() > height ) {
+            return List.of();
+        }
+        final int planes = pattern.getBitsPerPixel();
+        final long[][] columns = new long[planes][width];
+        for ( int p = 0; p < planes; p++ )
+        {
+            final Image plane = frame.getPlane( p );
+            for ( int x = 0; x < width; x++ ) {
+                columns[p][x] = plane.getColumn( x );
+            }
+        }
+
+        final List<Match> result = new ArrayList<>();
+        // one bit per row the pattern's top row can be at
+        final long rowOffsets = Selection.rowMask( height - pattern.getHeight() + 1 );
+        for ( int x = 0; x + pattern.getWidth() <= width && result.size() < maxMatches; x++ )
+        {
+            long candidates = rowOffsets;
+            for ( int cx = 0; cx < pattern.getWidth() && candidates != 0; cx++ )
+            {
+                long rows = pattern.getMask( cx );
+                while ( rows != 0 && candidates != 0 )
+                {
+                    final int r = Long.numberOfTrailingZeros( rows );
+                    rows &= rows - 1;
+                    for ( int p = 0; p < planes; p++ )
+                    {
+                        // bit y: pixel (x + cx, y + r) of the frame
+                        final long shifted = columns[p][x + cx] >>> r;
+                        candidates &= ( pattern.getPlaneColumn( p, cx ) >>> r & 1 ) != 0 ? shifted : ~shifted;
+                    }
+                }
+            }
+            while ( candidates != 0 )
+            {
+                result.add( new Match( frameIndex, frame, x, Long.numberOfTrailingZeros( candidates ) ) );
+                candidates &= candidates - 1;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,551 @@
+package de.codesourcery.arduino;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Serves rendered previews of the project files in a directory over HTTP.
+ *
+ * <pre>
+ * GET /                              index of all files
+ * GET /&lt;file&gt;/animation.gif          animated GIF
+ * GET /&lt;file&gt;/sheet.png[?columns=n]  contact sheet
+ * GET /&lt;file&gt;/frames/&lt;n&gt;.png        single frame
+ * </pre>
+ *
+ * Rendered images are cached by a hash of the project file's content, which
+ * also serves as ETag, so clients revalidating an unchanged file get a 304
+ * without anything being loaded or rendered. Files are only re-hashed when
+ * their size or modification time changed. Concurrent requests for the
+ * same image wait for a single render, each request runs on its own
+ * virtual thread.
+ */
+public final class PreviewHttpServer implements AutoCloseable
+{
+    private static final int DEFAULT_COLUMNS = 16;
+
+    // loaded projects kept around for rendering further frames
+    private static final int PROJECT_CACHE_SIZE = 4;
+
+    private record FileState(long lastModified, long size, String hash) {}
+
+    // thrown when a file changed between hashing and loading it
+    private static final class FileChangedException extends IOException
+    {
+        FileChangedException(Path file) {
+            super( "File changed while loading: " + file );
+        }
+    }
+
+    /**
+     * A loaded project shared by concurrent renders. Evicted projects are
+     * disposed once the last render using them finished.
+     */
+    private static final class Loaded
+    {
+        final Project project;
+        int users;
+        boolean evicted;
+
+        Loaded(Project project) {
+            this.project = project;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Renderer
+    {
+        void render(Project project, ImageOutputStream out) throws IOException;
+    }
+
+    private final Path directory;
+    private final AnimationExporter exporter;
+    private final long maxCachedBytes;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final Map<Path,FileState> fileStates = new ConcurrentHashMap<>();
+
+    // guarded by projects
+    private final Map<String,Loaded> projects = new LinkedHashMap<>( 16, 0.75f, true );
+
+    // keyed by ETag, guarded by rendered
+    private final Map<String,CompletableFuture<byte[]>> rendered = new LinkedHashMap<>( 16, 0.75f, true );
+    private long cachedBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong notModified = new AtomicLong();
+
+    /**
+     * @param port port on the loopback interface, 0 picks a free one
+     * @param pixelSize size of one LED in the rendered images
+     * @param maxCachedBytes upper bound for the rendered images kept in memory
+     */
+    public PreviewHttpServer(Path directory, int port, int pixelSize, long maxCachedBytes) throws IOException
+    {
+        Validate.notNull( directory, "directory must not be null" );
+        Validate.isTrue( Files.isDirectory( directory ), "Not a directory: %s", directory );
+        Validate.isTrue( maxCachedBytes > 0, "maxCachedBytes must be > 0" );
+        this.directory = directory.toAbsolutePath().normalize();
+        this.exporter = new AnimationExporter( pixelSize );
+        this.maxCachedBytes = maxCachedBytes;
+        this.server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), port ), 0 );
+        server.setExecutor( executor );
+        server.createContext( "/", this::handle );
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public long getCacheHits() {
+        return hits.get();
+    }
+
+    public long getCacheMisses() {
+        return misses.get();
+    }
+
+    public long getNotModifiedCount() {
+        return notModified.get();
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop( 0 );
+        executor.shutdownNow();
+        synchronized ( projects )
+        {
+            projects.values().forEach( this::evict );
+            projects.clear();
+        }
+    }
+
+    private void handle(HttpExchange exchange)
+    {
+        try
+        {
+            dispatch( exchange );
+        }
+        catch( IndexOutOfBoundsException e ) {
+            sendError( exchange, 404, e.getMessage() );
+        }
+        catch( IllegalArgumentException e ) {
+            sendError( exchange, 400, e.getMessage() );
+        }
+        catch( IOException | RuntimeException e ) {
+            sendError( exchange, 500, e.getMessage() );
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private void dispatch(HttpExchange exchange) throws IOException
+    {
+        final String method = exchange.getRequestMethod();
+        if ( ! method.equals( "GET" ) && ! method.equals( "HEAD" ) )
+        {
+            exchange.getResponseHeaders().set( "Allow", "GET, HEAD" );
+            sendError( exchange, 405, "Method not allowed" );
+            return;
+        }
+        final String path = exchange.getRequestURI().getPath();
+        if ( path.equals( "/" ) )
+        {
+            send( exchange, "text/html; charset=utf-8", null, index().getBytes( StandardCharsets.UTF_8 ) );
+            return;
+        }
+        // /<file>/<resource>
+        final int slash = path.indexOf( '/', 1 );
+        final Path file = slash == -1 ? null : resolve( path.substring( 1, slash ) );
+        if ( file == null )
+        {
+            sendError( exchange, 404, "Not found" );
+            return;
+        }
+        final String resource = path.substring( slash + 1 );
+        if ( resource.equals( "animation.gif" ) ) {
+            serve( exchange, file, "gif", "image/gif",
+                (project, out) -> exporter.writeGif( project.getImages(), project.getAnimationSpeedMillis(), out ) );
+        }
+        else if ( resource.equals( "sheet.png" ) )
+        {
+            final int columns = parseColumns( exchange.getRequestURI().getRawQuery() );
+            serve( exchange, file, "sheet-" + columns, "image/png",
+                (project, out) -> exporter.writeContactSheet( project.getImages(), columns, out ) );
+        }
+        else if ( resource.startsWith( "frames/" ) && resource.endsWith( ".png" ) )
+        {
+            final int index;
+            try {
+                index = Integer.parseInt( resource.substring( 7, resource.length() - 4 ) );
+            } catch( NumberFormatException e ) {
+                sendError( exchange, 404, "Not found" );
+                return;
+            }
+            serve( exchange, file, "frame-" + index, "image/png", (project, out) -> {
+                final List<Image> frames = project.getImages();
+                if ( index < 0 || index >= frames.size() ) {
+                    throw new IndexOutOfBoundsException( "No frame " + index + ", project has " + frames.size() );
+                }
+                exporter.writePng( frames.get( index ), out );
+            } );
+        }
+        else {
+            sendError( exchange, 404, "Not found" );
+        }
+    }
+
+    private void serve(HttpExchange exchange, Path file, String variant, String contentType, Renderer renderer) throws IOException
+    {
+        // a file rewritten while we load it is simply hashed and loaded again
+        for ( int attempt = 0; ; attempt++ )
+        {
+            final String etag = '"' + hash( file ) + '-' + variant + '"';
+            if ( matches( exchange.getRequestHeaders().getFirst( "If-None-Match" ), etag ) )
+            {
+                notModified.incrementAndGet();
+                exchange.getResponseHeaders().set( "ETag", etag );
+                exchange.sendResponseHeaders( 304, -1 );
+                return;
+            }
+            try
+            {
+                send( exchange, contentType, etag, getOrRender( etag, file, renderer ) );
+                return;
+            }
+            catch( FileChangedException e )
+            {
+                if ( attempt == 2 ) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag)
+    {
+        if ( ifNoneMatch == null ) {
+            return false;
+        }
+        for ( final String candidate : StringUtils.split( ifNoneMatch, ',' ) )
+        {
+            final String tag = StringUtils.removeStart( candidate.trim(), "W/" );
+            if ( tag.equals( "*" ) || tag.equals( etag ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ETags look like "<content hash>-<variant>"
+    private byte[] getOrRender(String etag, Path file, Renderer renderer) throws IOException
+    {
+        final CompletableFuture<byte[]> future;
+        final boolean owner;
+        synchronized ( rendered )
+        {
+            final CompletableFuture<byte[]> existing = rendered.get( etag );
+            owner = existing == null;
+            if ( owner )
+            {
+                future = new CompletableFuture<>();
+                rendered.put( etag, future );
+            } else {
+                future = existing;
+            }
+        }
+        if ( ! owner )
+        {
+            hits.incrementAndGet();
+            try {
+                return future.join();
+            }
+            catch( CompletionException e )
+            {
+                if ( e.getCause() instanceof RuntimeException r ) {
+                    throw r;
+                }
+                throw e.getCause() instanceof IOException io ? io : new IOException( e.getCause() );
+            }
+        }
+
+        misses.incrementAndGet();
+        try
+        {
+            final String hash = etag.substring( 1, etag.indexOf( '-' ) );
+            final Loaded loaded = acquire( file, hash );
+            final byte[] data;
+            try
+            {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try ( ImageOutputStream out = new MemoryCacheImageOutputStream( bytes ) ) {
+                    renderer.render( loaded.project, out );
+                }
+                data = bytes.toByteArray();
+            }
+            finally {
+                release( loaded );
+            }
+            future.complete( data );
+            synchronized ( rendered )
+            {
+                cachedBytes += data.length;
+                trimCache( etag );
+            }
+            return data;
+        }
+        catch( IOException | RuntimeException e )
+        {
+            // failures are not cached
+            synchronized ( rendered ) {
+                rendered.remove( etag, future );
+            }
+            future.completeExceptionally( e );
+            throw e;
+        }
+    }
+
+    // evicts the least recently used images until the cache fits, the image just added always stays
+    private void trimCache(String keep)
+    {
+        for ( final Iterator<Map.Entry<String,CompletableFuture<byte[]>>> it = rendered.entrySet().iterator();
+              it.hasNext() && cachedBytes > maxCachedBytes; )
+        {
+            final Map.Entry<String,CompletableFuture<byte[]>> e = it.next();
+            if ( ! e.getKey().equals( keep ) && e.getValue().isDone() && ! e.getValue().isCompletedExceptionally() )
+            {
+                cachedBytes -= e.getValue().join().length;
+                it.remove();
+            }
+        }
+    }
+
+    private Loaded acquire(Path file, String hash) throws IOException
+    {
+        synchronized ( projects )
+        {
+            final Loaded existing = projects.get( hash );
+            if ( existing != null )
+            {
+                existing.users++;
+                return existing;
+            }
+        }
+        final byte[] content = Files.readAllBytes( file );
+        if ( ! hash.equals( hash( content ) ) )
+        {
+            fileStates.remove( file );
+            throw new FileChangedException( file );
+        }
+        final Project project = Project.load( file.toFile(), new ByteArrayInputStream( content ) );
+        synchronized ( projects )
+        {
+            // another request may have loaded the same content meanwhile
+            Loaded loaded = projects.get( hash );
+            if ( loaded == null )
+            {
+                loaded = new Loaded( project );
+                projects.put( hash, loaded );
+                if ( projects.size() > PROJECT_CACHE_SIZE )
+                {
+                    final Iterator<Loaded> it = projects.values().iterator();
+                    evict( it.next() );
+                    it.remove();
+                }
+            } else {
+                project.dispose();
+            }
+            loaded.users++;
+            return loaded;
+        }
+    }
+
+    private void release(Loaded loaded)
+    {
+        synchronized ( projects )
+        {
+            loaded.users--;
+            if ( loaded.evicted && loaded.users == 0 ) {
+                loaded.project.dispose();
+            }
+        }
+    }
+
+    // caller must hold the lock on projects
+    private void evict(Loaded loaded)
+    {
+        loaded.evicted = true;
+        if ( loaded.users == 0 ) {
+            loaded.project.dispose();
+        }
+    }
+
+    private String hash(Path file) throws IOException
+    {
+        final BasicFileAttributes attrs = Files.readAttributes( file, BasicFileAttributes.class );
+        final long lastModified = attrs.lastModifiedTime().toMillis();
+        final FileState state = fileStates.get( file );
+        if ( state != null && state.lastModified() == lastModified && state.size() == attrs.size() ) {
+            return state.hash();
+        }
+        final String hash = hash( Files.readAllBytes( file ) );
+        fileStates.put( file, new FileState( lastModified, attrs.size(), hash ) );
+        return hash;
+    }
+
+    private static String hash(byte[] content)
+    {
+        try
+        {
+            final byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( content );
+            // 128 bits are plenty to tell file versions apart
+            return HexFormat.of().formatHex( digest, 0, 16 );
+        }
+        catch( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( "SHA-256 not available", e );
+        }
+    }
+
+    // file name from the URL, null if it does not name a regular file directly inside the directory
+    private Path resolve(String name)
+    {
+        if ( name.isEmpty() || name.startsWith( "." ) || name.contains( "/" ) || name.contains( "\\" ) ) {
+            return null;
+        }
+        final Path file = directory.resolve( name ).normalize();
+        return file.getParent().equals( directory ) && Files.isRegularFile( file ) ? file : null;
+    }
+
+    private static int parseColumns(String query)
+    {
+        if ( query != null )
+        {
+            for ( final String param : StringUtils.split( query, '&' ) )
+            {
+                if ( param.startsWith( "columns=" ) )
+                {
+                    final int columns = Integer.parseInt( param.substring( 8 ) );
+                    Validate.inclusiveBetween( 1, 256, columns, "columns must be in range 1..256" );
+                    return columns;
+                }
+            }
+        }
+        return DEFAULT_COLUMNS;
+    }
+
+    private String index() throws IOException
+    {
+        final List<String> names = new ArrayList<>();
+        try ( Stream<Path> files = Files.list( directory ) )
+        {
+            files.filter( Files::isRegularFile )
+                .map( p -> p.getFileName().toString() )
+                .filter( n -> ! n.startsWith( "." ) )
+                .sorted()
+                .forEach( names::add );
+        }
+        final StringBuilder html = new StringBuilder( "<!DOCTYPE html>\n<html><head><title>Projects</title></head><body>\n<ul>\n" );
+        for ( final String name : names )
+        {
+            final String url = "/" + URLEncoder.encode( name, StandardCharsets.UTF_8 ).replace( "+", "%20" );
+            html.append( "<li>" ).append( escape( name ) )
+                .append( " <a href=\"" ).append( url ).append( "/animation.gif\">animation</a>" )
+                .append( " <a href=\"" ).append( url ).append( "/sheet.png\">sheet</a>" )
+                .append( " <a href=\"" ).append( url ).append( "/frames/0.png\">first frame</a></li>\n" );
+        }
+        return html.append( "</ul>\n</body></html>\n" ).toString();
+    }
+
+    private static String escape(String s) {
+        return s.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( ">", "&gt;" ).replace( "\"", "&quot;" );
+    }
+
+    private static void send(HttpExchange exchange, String contentType, String etag, byte[] body) throws IOException
+    {
+        exchange.getResponseHeaders().set( "Content-Type", contentType );
+        if ( etag != null )
+        {
+            exchange.getResponseHeaders().set( "ETag", etag );
+            // clients may keep the image but have to revalidate, which is cheap
+            exchange.getResponseHeaders().set( "Cache-Control", "no-cache" );
+        }
+        if ( exchange.getRequestMethod().equals( "HEAD" ) )
+        {
+            exchange.getResponseHeaders().set( "Content-Length", Integer.toString( body.length ) );
+            exchange.sendResponseHeaders( 200, -1 );
+            return;
+        }
+        exchange.sendResponseHeaders( 200, body.length );
+        try ( OutputStream out = exchange.getResponseBody() ) {
+            out.write( body );
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message)
+    {
+        try
+        {
+            final byte[] body = ( message == null ? "Error" : message ).getBytes( StandardCharsets.UTF_8 );
+            exchange.getResponseHeaders().set( "Content-Type", "text/plain; charset=utf-8" );
+            exchange.sendResponseHeaders( status, body.length );
+            try ( OutputStream out = exchange.getResponseBody() ) {
+                out.write( body );
+            }
+        }
+        catch( IOException e ) {
+            // response already started or client gone
+        }
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        if ( args.length < 1 || args.length > 3 )
+        {
+            System.err.println( "Usage: PreviewHttpServer <directory> [port] [pixel size]" );
+            System.exit( 1 );
+        }
+        final int port = args.length > 1 ? Integer.parseInt( args[1] ) : 8080;
+        final int pixelSize = args.length > 2 ? Integer.parseInt( args[2] ) : 8;
+        final PreviewHttpServer server = new PreviewHttpServer( Path.of( args[0] ), port, pixelSize, 256 * 1024 * 1024 );
+        server.start();
+        System.out.println( "Serving " + server.directory + " on http://localhost:" + server.getPort() + "/" );
+    }
+}
@@ -0,0 +1,106 @@
+package de.codesourcery.arduino;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Wire format of the live preview stream.
+ *
+ * <pre>
+ * message := MAGIC type:u8 sequence:u16 frameLength:u16 body
+ * FULL    := frameLength bytes
+ * DELTA   := count:u16 ( index:u16 value:u8 ){count}
+ * </pre>
+ *
+ * All values are big-endian. Frame bytes are what the device shifts out, as
+ * laid out by {@link Project#toExportBytes(Image)}: the column bytes of a
+ * single module by default, registers times modules for chained layouts.
+ */
+final class PreviewProtocol
+{
+    static final int MAGIC = 0xa5;
+
+    static final int TYPE_FULL = 1;
+    static final int TYPE_DELTA = 2;
+
+    private static final int HEADER_SIZE = 6;
+
+    private PreviewProtocol() {
+    }
+
+    // previous is the frame last sent or null if the receiver state is unknown
+    static ByteBuffer encode(int sequence, byte[] previous, byte[] current)
+    {
+        Validate.isTrue( current.length <= 0xffff, "frame too large" );
+        int changed = 0;
+        if ( previous != null && previous.length == current.length )
+        {
+            for ( int i = 0; i < current.length; i++ )
+            {
+                if ( previous[i] != current[i] ) {
+                    changed++;
+                }
+            }
+        } else {
+            changed = current.length;
+        }
+
+        final int deltaSize = 2 + changed * 3;
+        final boolean full = changed == current.length || deltaSize >= current.length;
+        final ByteBuffer buffer = ByteBuffer.allocate( HEADER_SIZE + ( full ? current.length : deltaSize ) );
+        buffer.put( (byte) MAGIC );
+        buffer.put( (byte) ( full ? TYPE_FULL : TYPE_DELTA ) );
+        buffer.putShort( (short) sequence );
+        buffer.putShort( (short) current.length );
+        if ( full )
+        {
+            buffer.put( current );
+        }
+        else
+        {
+            buffer.putShort( (short) changed );
+            for ( int i = 0; i < current.length; i++ )
+            {
+                if ( previous[i] != current[i] )
+                {
+                    buffer.putShort( (short) i );
+                    buffer.put( current[i] );
+                }
+            }
+        }
+        return buffer.flip();
+    }
+
+    // applies the next message to the receiver's current frame (may be null), throws EOFException at end of stream
+    static byte[] decode(DataInputStream in, byte[] frame) throws IOException
+    {
+        final int magic = in.readUnsignedByte();
+        if ( magic != MAGIC ) {
+            throw new IOException( "Bad magic 0x" + Integer.toHexString( magic ) );
+        }
+        final int type = in.readUnsignedByte();
+        in.readUnsignedShort(); // sequence
+        final int length = in.readUnsignedShort();
+        final byte[] result = frame != null && frame.length == length ? Arrays.copyOf( frame, length ) : new byte[length];
+        switch ( type )
+        {
+            case TYPE_FULL -> in.readFully( result );
+            case TYPE_DELTA -> {
+                final int count = in.readUnsignedShort();
+                for ( int i = 0; i < count; i++ )
+                {
+                    final int idx = in.readUnsignedShort();
+                    if ( idx >= length ) {
+                        throw new IOException( "Column " + idx + " out of range" );
+                    }
+                    result[idx] = in.readByte();
+                }
+            }
+            default -> throw new IOException( "Unknown message type " + type );
+        }
+        return result;
+    }
+}
@@ -0,0 +1,177 @@
+package de.codesourcery.arduino;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Local stand-in for a display device, rebuilds the frames sent by
+ * {@link PreviewStreamer}.
+ */
+final class PreviewReceiver implements AutoCloseable
+{
+    private final ServerSocketChannel server;
+    private final List<byte[]> frames = new ArrayList<>();
+    private final Consumer<byte[]> listener;
+    private final boolean keepFrames;
+    private final Thread receiver;
+
+    private PreviewReceiver(ServerSocketChannel server, Consumer<byte[]> listener, boolean keepFrames)
+    {
+        this.server = server;
+        this.listener = listener;
+        this.keepFrames = keepFrames;
+        this.receiver = Thread.ofVirtual().name( "preview-receiver" ).start( this::acceptLoop );
+    }
+
+    // port 0 picks a free port
+    public static PreviewReceiver listen(int port) throws IOException
+    {
+        return listen( port, frame -> {}, true );
+    }
+
+    public static PreviewReceiver listen(int port, Consumer<byte[]> listener, boolean keepFrames) throws IOException
+    {
+        Validate.notNull( listener, "listener must not be null" );
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind( new InetSocketAddress( InetAddress.getLoopbackAddress(), port ) );
+        return new PreviewReceiver( server, listener, keepFrames );
+    }
+
+    public int getPort() throws IOException
+    {
+        return ( (InetSocketAddress) server.getLocalAddress() ).getPort();
+    }
+
+    private void acceptLoop()
+    {
+        while ( server.isOpen() )
+        {
+            try ( SocketChannel client = server.accept() )
+            {
+                final DataInputStream in = new DataInputStream( new BufferedInputStream( Channels.newInputStream( client ) ) );
+                byte[] frame = null;
+                while ( true )
+                {
+                    frame = PreviewProtocol.decode( in, frame );
+                    if ( keepFrames )
+                    {
+                        synchronized ( frames ) {
+                            frames.add( frame );
+                        }
+                    }
+                    listener.accept( frame );
+                }
+            }
+            catch( EOFException e ) {
+                // sender disconnected, wait for the next one
+            }
+            catch( IOException e )
+            {
+                if ( server.isOpen() ) {
+                    System.err.println( "Preview receiver: " + e.getMessage() );
+                }
+            }
+        }
+    }
+
+    public List<byte[]> getFrames()
+    {
+        synchronized ( frames ) {
+            return new ArrayList<>( frames );
+        }
+    }
+
+    /**
+     * True if every received frame matches the project's frames in order, frames
+     * coalesced by the sender may be missing. Frames are compared as
+     * {@link Project#toExportBytes(Image)} lays them out for the device.
+     */
+    public boolean matches(Project project)
+    {
+        final List<Image> images = project.getImages();
+        int idx = 0;
+        for ( final byte[] frame : getFrames() )
+        {
+            while ( idx < images.size() && ! Arrays.equals( project.toExportBytes( images.get( idx ) ), frame ) ) {
+                idx++;
+            }
+            if ( idx == images.size() ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        server.close();
+        receiver.interrupt();
+    }
+
+    private static void usage()
+    {
+        System.err.println( "Usage: PreviewReceiver [--layout \"4x1 chain=0,1,2,3 rotation=R0,R0,R0,R0\"] [--export \"ROW_MAJOR MSB_FIRST R0\"] [port]" );
+        System.exit( 1 );
+    }
+
+    // prints received frames, decoded with the project's layout and export options (default 1x1 and its default options)
+    public static void main(String[] args) throws Exception
+    {
+        int port = 7219;
+        DisplayLayout layout = DisplayLayout.SINGLE;
+        ExportOptions options = null;
+        for ( int i = 0; i < args.length; i++ )
+        {
+            final boolean hasValue = i + 1 < args.length;
+            switch ( args[i] )
+            {
+                case "--layout" -> { if ( ! hasValue ) usage(); layout = DisplayLayout.fromDataString( args[++i] ); }
+                case "--export" -> { if ( ! hasValue ) usage(); options = ExportOptions.fromDataString( args[++i] ); }
+                default -> {
+                    if ( args[i].startsWith( "-" ) ) {
+                        usage();
+                    }
+                    port = Integer.parseInt( args[i] );
+                }
+            }
+        }
+        final DisplayLayout displayLayout = layout;
+        final ExportOptions exportOptions = options != null ? options : ExportOptions.defaults( layout );
+        // only used by the receiver thread
+        final Image image = new Image( layout.getStore() );
+        try ( PreviewReceiver r = listen( port, frame -> {
+            if ( frame.length != displayLayout.getBytesPerFrame() )
+            {
+                System.out.println( "Received " + frame.length + " bytes, expected " + displayLayout.getBytesPerFrame() + " for layout " + displayLayout );
+                return;
+            }
+            displayLayout.fromBytes( frame, 0, exportOptions, image );
+            final StringBuilder b = new StringBuilder();
+            for ( int y = 0; y < image.getHeight(); y++ )
+            {
+                for ( int x = 0; x < image.getWidth(); x++ ) {
+                    b.append( image.isSet( x, y ) ? '#' : '.' );
+                }
+                b.append( '\n' );
+            }
+            System.out.println( b );
+        }, false ) )
+        {
+            System.out.println( "Listening on localhost:" + r.getPort() );
+            r.receiver.join();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package de.codesourcery.arduino;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Supplier;
+import javax.swing.Timer;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Pushes the frame currently shown in the editor to a display endpoint.
+ *
+ * The frame is sampled once per tick on the EDT and handed to a writer
+ * thread through a single-slot mailbox. If the endpoint cannot keep up,
+ * newer frames replace older ones that have not been sent yet so the
+ * device always catches up with the latest state.
+ */
+final class PreviewStreamer implements AutoCloseable
+{
+    private static final int TICK_MILLIS = 16;
+
+    public record Stats(long framesSent, long framesCoalesced, long bytesSent, double bytesPerSecond,
+                        double avgLatencyMillis, double maxLatencyMillis)
+    {
+        @Override
+        public String toString()
+        {
+            return "%d frames sent, %d coalesced, %d bytes (%.1f bytes/s), latency avg %.2f ms / max %.2f ms".formatted(
+                framesSent, framesCoalesced, bytesSent, bytesPerSecond, avgLatencyMillis, maxLatencyMillis );
+        }
+    }
+
+    private record Pending(byte[] frame, long timestamp) {}
+
+    private final String endpointName;
+    private final WritableByteChannel channel;
+    private final Supplier<byte[]> frameSupplier;
+    private final Timer timer;
+    private final Thread writer;
+    private final long startTime = System.nanoTime();
+
+    private final Object lock = new Object();
+    private Pending pending;
+    private volatile boolean closed;
+    private volatile IOException failure;
+
+    // last frame handed to the writer, only accessed on the EDT
+    private byte[] lastOffered;
+
+    // statistics, guarded by lock
+    private long framesSent;
+    private long framesCoalesced;
+    private long bytesSent;
+    private long totalLatencyNanos;
+    private long maxLatencyNanos;
+
+    private PreviewStreamer(String endpointName, WritableByteChannel channel, Supplier<byte[]> frameSupplier)
+    {
+        Validate.notNull( channel, "channel must not be null" );
+        Validate.notNull( frameSupplier, "frameSupplier must not be null" );
+        this.endpointName = endpointName;
+        this.channel = channel;
+        this.frameSupplier = frameSupplier;
+        this.writer = Thread.ofVirtual().name( "preview-writer" ).unstarted( this::writeLoop );
+        this.timer = new Timer( TICK_MILLIS, ev -> tick() );
+    }
+
+    public static PreviewStreamer connect(String host, int port, Supplier<byte[]> frameSupplier) throws IOException
+    {
+        final SocketChannel channel = SocketChannel.open( new InetSocketAddress( host, port ) );
+        channel.socket().setTcpNoDelay( true );
+        return start( new PreviewStreamer( host + ":" + port, channel, frameSupplier ) );
+    }
+
+    // serial devices or the slave side of a pty
+    public static PreviewStreamer open(Path device, Supplier<byte[]> frameSupplier) throws IOException
+    {
+        final FileChannel channel = FileChannel.open( device, StandardOpenOption.WRITE );
+        return start( new PreviewStreamer( device.toString(), channel, frameSupplier ) );
+    }
+
+    private static PreviewStreamer start(PreviewStreamer streamer)
+    {
+        streamer.writer.start();
+        streamer.timer.start();
+        return streamer;
+    }
+
+    public String getEndpointName()
+    {
+        return endpointName;
+    }
+
+    private void tick()
+    {
+        if ( failure != null )
+        {
+            timer.stop();
+            return;
+        }
+        final byte[] frame = frameSupplier.get();
+        if ( frame == null || Arrays.equals( frame, lastOffered ) ) {
+            return;
+        }
+        lastOffered = frame;
+        synchronized ( lock )
+        {
+            if ( pending != null ) {
+                framesCoalesced++;
+            }
+            pending = new Pending( frame, System.nanoTime() );
+            lock.notifyAll();
+        }
+    }
+
+    private void writeLoop()
+    {
+        byte[] lastSent = null;
+        int sequence = 0;
+        try
+        {
+            while ( true )
+            {
+                final Pending next;
+                synchronized ( lock )
+                {
+                    while ( pending == null && ! closed ) {
+                        lock.wait();
+                    }
+                    if ( closed ) {
+                        return;
+                    }
+                    next = pending;
+                    pending = null;
+                }
+                final ByteBuffer msg = PreviewProtocol.encode( sequence++, lastSent, next.frame() );
+                final int size = msg.remaining();
+                while ( msg.hasRemaining() ) {
+                    channel.write( msg );
+                }
+                lastSent = next.frame();
+
+                final long latency = System.nanoTime() - next.timestamp();
+                synchronized ( lock )
+                {
+                    framesSent++;
+                    bytesSent += size;
+                    totalLatencyNanos += latency;
+                    maxLatencyNanos = Math.max( maxLatencyNanos, latency );
+                }
+            }
+        }
+        catch( IOException e )
+        {
+            if ( ! closed )
+            {
+                System.err.println( "Streaming to " + endpointName + " failed: " + e.getMessage() );
+                failure = e;
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isFailed()
+    {
+        return failure != null;
+    }
+
+    public Stats getStats()
+    {
+        synchronized ( lock )
+        {
+            final double seconds = ( System.nanoTime() - startTime ) / 1_000_000_000d;
+            final double avgLatency = framesSent == 0 ? 0 : totalLatencyNanos / (double) framesSent / 1_000_000d;
+            return new Stats( framesSent, framesCoalesced, bytesSent, bytesSent / seconds, avgLatency, maxLatencyNanos / 1_000_000d );
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        timer.stop();
+        synchronized ( lock )
+        {
+            closed = true;
+            lock.notifyAll();
+        }
+        channel.close();
+    }
+}
@@ -4,35 +4,198 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.stream.Collectors;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
+import de.codesourcery.arduino.jfr.ParseFramesEvent;
+import de.codesourcery.arduino.jfr.ProjectLoadEvent;
+import de.codesourcery.arduino.jfr.ProjectSaveEvent;
 
 public class Project
 {
     private File file;
-    private List<Image> images = new ArrayList<>();
+    // replaced on every change, readers on other threads use snapshot()
+    private volatile FrameSequence<Image> images;
     private String name;
     private boolean isDirty;
+    // incremented by every change not tracked by the frames themselves
+    private int modCount;
     private int animationSpeedMillis = 16;
+    private final DisplayLayout layout;
+    private final int bitsPerPixel;
+    // null means the default for the layout
+    private ExportOptions exportOptions;
+    // layers of the frames that have any, keyed by frame
+    private final Map<Image,LayerStack> layers = new IdentityHashMap<>();
+    // sprite animation synthesized on demand, null if the project has none
+    private Timeline timeline;
+    private int savedTimelineVersion;
 
     public Project(String name, File file) {
-        this( name, file, new ArrayList<>( List.of( new Image() ) ) );
+        this( name, file, DisplayLayout.SINGLE );
     }
 
-    public Project(String name, File file, List<Image> images)
+    public Project(String name, File file, DisplayLayout layout) {
+        this( name, file, layout, 1 );
+    }
+
+    public Project(String name, File file, DisplayLayout layout, int bitsPerPixel) {
+        this( name, file, layout, new ArrayList<>( List.of( new Image( layout.getStore(), bitsPerPixel ) ) ) );
+    }
+
+    public Project(String name, File file, List<Image> images) {
+        this( name, file, DisplayLayout.SINGLE, images );
+    }
+
+    public Project(String name, File file, DisplayLayout layout, List<Image> images)
     {
+        Validate.notNull( layout, "layout must not be null" );
+        Validate.isTrue( images.stream().allMatch( layout::fits ), "All frames must be %dx%d", layout.getWidth(), layout.getHeight() );
+        this.bitsPerPixel = images.isEmpty() ? 1 : images.getFirst().getBitsPerPixel();
+        Validate.isTrue( images.stream().allMatch( img -> img.getBitsPerPixel() == bitsPerPixel ), "All frames must have %d bits per pixel", bitsPerPixel );
         this.file = file;
         this.name = name;
-        this.images = images;
+        this.layout = layout;
+        this.images = FrameSequence.of( images );
+    }
+
+    public DisplayLayout getLayout() {
+        return layout;
+    }
+
+    public int getBitsPerPixel() {
+        return bitsPerPixel;
+    }
+
+    // blank frame matching this project's layout and brightness levels
+    public Image createImage() {
+        return new Image( layout.getStore(), bitsPerPixel );
+    }
+
+    private boolean fits(Image image) {
+        return layout.fits( image ) && image.getBitsPerPixel() == bitsPerPixel;
+    }
+
+    // copy of this project with a different number of brightness levels, see Image#convert(int), layers are flattened, the timeline is dropped
+    public Project withBitsPerPixel(int newBitsPerPixel)
+    {
+        flattenLayers();
+        final List<Image> copies = new ArrayList<>( images.size() );
+        images.forEach( img -> copies.add( img.convert( newBitsPerPixel ) ) );
+        final Project result = new Project( name, file, layout, copies );
+        result.animationSpeedMillis = animationSpeedMillis;
+        result.exportOptions = exportOptions;
+        result.isDirty = true;
+        return result;
+    }
+
+    /**
+     * Returns a copy of this project using a different display layout.
+     *
+     * Pixels are copied to the same canvas position, anything outside the
+     * new canvas is cut off. Layers are flattened, the timeline is dropped.
+     */
+    public Project withLayout(DisplayLayout newLayout)
+    {
+        Validate.notNull( newLayout, "layout must not be null" );
+        flattenLayers();
+        final FrameStore store = newLayout.getStore();
+        final int width = Math.min( layout.getWidth(), newLayout.getWidth() );
+        final List<Image> copies = new ArrayList<>( images.size() );
+        for ( final Image image : images )
+        {
+            final Image copy = new Image( store, bitsPerPixel );
+            for ( int p = 0; p < bitsPerPixel; p++ )
+            {
+                for ( int x = 0; x < width; x++ ) {
+                    copy.getPlane( p ).setColumn( x, image.getPlane( p ).getColumn( x ) );
+                }
+            }
+            copies.add( copy );
+        }
+        final Project result = new Project( name, file, newLayout, copies );
+        result.animationSpeedMillis = animationSpeedMillis;
+        result.exportOptions = exportOptions;
+        result.isDirty = true;
+        return result;
+    }
+
+    private void modified()
+    {
+        isDirty = true;
+        modCount++;
+    }
+
+    /**
+     * What a project looked like when a copy of it was taken to be saved in
+     * the background, see {@link #markSaved(SavePoint)}.
+     */
+    public final class SavePoint
+    {
+        private final int modCount = Project.this.modCount;
+        private final int timelineVersion = timeline == null ? 0 : timeline.getVersion();
+        private final Map<Image,Integer> versions = new IdentityHashMap<>();
+        private final Map<Layer,Long> stamps = new IdentityHashMap<>();
+
+        private SavePoint()
+        {
+            images.forEach( img -> versions.put( img, img.getVersion() ) );
+            layers.values().forEach( stack -> stack.getLayers().forEach( layer -> stamps.put( layer, layer.getStamp() ) ) );
+        }
+
+        private boolean isUnchanged(Image frame)
+        {
+            final Integer version = versions.get( frame );
+            return version != null && version == frame.getVersion();
+        }
+
+        private boolean isUnchanged(Layer layer)
+        {
+            final Long stamp = stamps.get( layer );
+            return stamp != null && stamp == layer.getStamp();
+        }
+    }
+
+    // call right after createCopy(), so layers are already flattened
+    public SavePoint createSavePoint() {
+        return new SavePoint();
+    }
+
+    /**
+     * Clears the dirty flags of everything that did not change since the
+     * save point was created, after a copy taken at that point was saved.
+     */
+    public void markSaved(SavePoint point)
+    {
+        Validate.notNull( point, "save point must not be null" );
+        images.forEach( img -> {
+            if ( point.isUnchanged( img ) ) {
+                img.setDirty( false );
+            }
+        } );
+        layers.values().forEach( stack -> stack.getLayers().forEach( layer -> {
+            if ( point.isUnchanged( layer ) ) {
+                layer.getImage().setDirty( false );
+            }
+        } ) );
+        if ( modCount == point.modCount )
+        {
+            isDirty = false;
+            if ( timeline != null && timeline.getVersion() == point.timelineVersion ) {
+                savedTimelineVersion = point.timelineVersion;
+            }
+        }
     }
 
     public boolean isDirty() {
-        return isDirty || images.stream().anyMatch( Image::isDirty );
+        return isDirty || ( timeline != null && timeline.getVersion() != savedTimelineVersion ) || getImages().stream().anyMatch( Image::isDirty ) || layers.values().stream().anyMatch( LayerStack::isDirty );
     }
 
     public void add(Image image) {
@@ -40,67 +203,307 @@ public class Project
     }
 
     public void add(int idx, Image image) {
-        images.add(idx, image);
-        isDirty = true;
+        Validate.isTrue( fits( image ), "Frame does not match the display layout or brightness levels" );
+        images = images.insert( idx, image );
+        modified();
+    }
+
+    public void addAll(List<Image> newImages) {
+        Validate.notNull( newImages, "images must not be null" );
+        Validate.isTrue( newImages.stream().allMatch( this::fits ), "Frames do not match the display layout or brightness levels" );
+        images = images.appendAll( newImages );
+        modified();
     }
 
     public Image getFirstImage() {
-        return images.getFirst();
+        return images.get( 0 );
     }
 
     public void delete(Image image) {
-        images.remove(image);
-        if ( images.isEmpty() ) {
-            images.add( new Image() );
+        final int idx = images.indexOf( image );
+        if ( idx != -1 ) {
+            delete( idx );
         }
-        isDirty = true;
+    }
+
+    public void delete(int idx) {
+        final LayerStack stack = layers.remove( images.get( idx ) );
+        if ( stack != null ) {
+            stack.release();
+        }
+        FrameSequence<Image> result = images.remove( idx );
+        if ( result.isEmpty() ) {
+            result = result.append( createImage() );
+        }
+        images = result;
+        modified();
+    }
+
+    /**
+     * Copies of frames taken on a background thread while the project may
+     * still be edited, see {@link #createCopy(FrameCopies)}.
+     */
+    public static final class FrameCopies
+    {
+        private final Map<Image,Image> copies = new IdentityHashMap<>();
+        private final Map<Image,Integer> versions = new IdentityHashMap<>();
+
+        private FrameCopies() {
+        }
+
+        /**
+         * Copies the frames, may be called on any thread. Frames that change
+         * while being copied are copied again by createCopy().
+         */
+        public static FrameCopies of(Iterable<Image> frames, CancellationToken token)
+        {
+            Validate.notNull( frames, "frames must not be null" );
+            Validate.notNull( token, "token must not be null" );
+            final FrameCopies result = new FrameCopies();
+            try
+            {
+                for ( final Image frame : frames )
+                {
+                    token.throwIfCancelled();
+                    result.versions.put( frame, frame.getVersion() );
+                    result.copies.put( frame, frame.createCopy() );
+                }
+            }
+            catch( RuntimeException e )
+            {
+                result.release();
+                throw e;
+            }
+            return result;
+        }
+
+        // copy of a frame that did not change since it was taken, null otherwise. Called on the EDT,
+        // compares the pixels too as the copying thread may have seen a new version with old pixels
+        private Image take(Image frame)
+        {
+            final Integer version = versions.get( frame );
+            if ( version == null || version != frame.getVersion() ) {
+                return null;
+            }
+            final Image copy = copies.get( frame );
+            return copy.contentEquals( frame ) ? copies.remove( frame ) : null;
+        }
+
+        // returns the copies not used by createCopy() to the store
+        public void release()
+        {
+            copies.values().forEach( Image::release );
+            copies.clear();
+        }
+    }
+
+    public Project createCopy() {
+        return createCopy( new FrameCopies() );
+    }
+
+    /**
+     * Like {@link #createCopy()} but reuses the frame copies that are still
+     * current, so only frames changed since they were taken are copied here.
+     * Copies that were not used are released.
+     */
+    public Project createCopy(FrameCopies frameCopies)
+    {
+        Validate.notNull( frameCopies, "frameCopies must not be null" );
+        flattenLayers();
+        final List<Image> copies = new ArrayList<>( images.size() );
+        try
+        {
+            images.forEach( img -> {
+                final Image copy = frameCopies.take( img );
+                copies.add( copy != null ? copy : img.createCopy() );
+            } );
+        }
+        finally {
+            frameCopies.release();
+        }
+        final Project result = new Project( name, file, layout, copies );
+        result.animationSpeedMillis = animationSpeedMillis;
+        result.exportOptions = exportOptions;
+        for ( int i = 0; i < copies.size(); i++ )
+        {
+            final LayerStack stack = layers.get( images.get( i ) );
+            if ( stack != null ) {
+                result.layers.put( copies.get( i ), stack.createCopy( copies.get( i ) ) );
+            }
+        }
+        if ( timeline != null )
+        {
+            result.timeline = timeline.createCopy();
+            result.savedTimelineVersion = result.timeline.getVersion();
+        }
+        return result;
+    }
+
+    // returns the frames to their store, the project must not be used afterwards
+    public void dispose()
+    {
+        layers.values().forEach( LayerStack::release );
+        layers.clear();
+        if ( timeline != null )
+        {
+            timeline.dispose();
+            timeline = null;
+        }
+        images.forEach( Image::release );
+        images = FrameSequence.empty();
+    }
+
+    public Timeline getTimeline() {
+        return timeline;
+    }
+
+    // replaces the timeline, the previous one is disposed
+    public void setTimeline(Timeline timeline)
+    {
+        if ( timeline == this.timeline ) {
+            return;
+        }
+        Validate.isTrue( timeline == null || ( timeline.getStore() == layout.getStore() && timeline.getBitsPerPixel() == bitsPerPixel ),
+            "Timeline does not match the display layout or brightness levels" );
+        if ( this.timeline != null ) {
+            this.timeline.dispose();
+        }
+        this.timeline = timeline;
+        modified();
+    }
+
+    // layers of a frame or null if it has none
+    public LayerStack getLayers(Image frame) {
+        return layers.get( frame );
+    }
+
+    // turns a frame into a layered one, its current pixels become the bottom layer
+    public LayerStack createLayers(Image frame)
+    {
+        Validate.isTrue( images.indexOf( frame ) != -1, "Frame is not part of this project" );
+        return layers.computeIfAbsent( frame, LayerStack::new );
+    }
+
+    // merges all layers of a frame into the frame itself
+    public void removeLayers(Image frame)
+    {
+        final LayerStack stack = layers.remove( frame );
+        if ( stack != null )
+        {
+            stack.update();
+            stack.release();
+            modified();
+        }
+    }
+
+    /**
+     * Brings the composites of all layered frames up to date, in parallel.
+     *
+     * @return number of frames whose pixels changed
+     */
+    public int flattenLayers()
+    {
+        final List<LayerStack> stale = layers.values().stream().filter( LayerStack::isStale ).toList();
+        return (int) stale.parallelStream().filter( LayerStack::update ).count();
     }
 
     public void setName(String name)
     {
         Validate.notBlank( name, "name must not be null or blank");
         this.name = name;
+        modified();
     }
 
     public void save() throws IOException
     {
+        final ProjectSaveEvent event = new ProjectSaveEvent();
+        event.begin();
         final Properties props = new Properties();
         props.setProperty( "name", name );
-        for ( int i = 0; i < images.size(); i++ )
+        props.setProperty( "layout", layout.toDataString() );
+        if ( exportOptions != null ) {
+            props.setProperty( "export", exportOptions.toDataString() );
+        }
+        flattenLayers();
+        final FrameSequence<Image> frames = images;
+        int i = 0;
+        for ( final Image image : frames )
         {
-            final Image image = images.get( i );
-            props.setProperty( "image." + i, image.toDataString() );
+            final LayerStack stack = layers.get( image );
+            if ( stack != null )
+            {
+                for ( int j = 0; j < stack.getLayerCount(); j++ )
+                {
+                    final Layer layer = stack.getLayer( j );
+                    props.setProperty( "image." + i + ".layer." + j, layer.toDataString() );
+                    props.setProperty( "image." + i + ".layer." + j + ".data", layer.getImage().toDataString() );
+                }
+            }
+            props.setProperty( "image." + i++, image.toDataString() );
         }
         props.setProperty( "animationSpeed", Integer.toString( animationSpeedMillis ) );
+        if ( timeline != null ) {
+            timeline.store( props, "timeline." );
+        }
 
         try ( FileWriter writer = new FileWriter( file ) )
         {
             props.store( writer, "Automatically generated, do not alter." );
         }
-        images.forEach( img -> img.setDirty( false ) );
+        frames.forEach( img -> img.setDirty( false ) );
+        layers.values().forEach( stack -> stack.setDirty( false ) );
         isDirty = false;
+        if ( timeline != null ) {
+            savedTimelineVersion = timeline.getVersion();
+        }
+
+        event.end();
+        if ( event.shouldCommit() )
+        {
+            event.file = file.getPath();
+            event.frameCount = frames.size();
+            event.commit();
+        }
     }
 
     public static Project load(File file) throws IOException
     {
         Validate.notNull( file, "file must not be null" );
 
-        final Properties props = new Properties();
         try( FileInputStream reader = new FileInputStream( file ) )
         {
-            props.load( reader );
+            return load( file, reader );
         }
+    }
+
+    // reads the project stored in file from an already opened stream, the stream is not closed
+    static Project load(File file, InputStream in) throws IOException
+    {
+        Validate.notNull( file, "file must not be null" );
+        Validate.notNull( in, "in must not be null" );
+
+        final ProjectLoadEvent event = new ProjectLoadEvent();
+        event.begin();
+        final Properties props = new Properties();
+        props.load( in );
         final String name = props.getProperty( "name" );
         if ( StringUtils.isBlank(name) ) {
             throw new IOException( "Not a valid file" );
         }
-        final List<Image> images = new ArrayList<>();
-        final Project result = new Project( name, file, images );
-
-        String speed = props.getProperty( "animationSpeed" );
-        if ( StringUtils.isNotBlank( speed ) ) {
-            result.setAnimationSpeedMillis( Integer.parseInt( speed ) );
+        final String layoutString = props.getProperty( "layout" );
+        final DisplayLayout layout;
+        try
+        {
+            layout = StringUtils.isBlank( layoutString ) ? DisplayLayout.SINGLE : DisplayLayout.fromDataString( layoutString );
+        }
+        catch( IllegalArgumentException e ) {
+            throw new IOException( "Invalid display layout: " + layoutString, e );
         }
+        final FrameStore store = layout.getStore();
+        final List<Image> images = new ArrayList<>();
+        final ParseFramesEvent parse = new ParseFramesEvent();
+        parse.begin();
+        long characters = 0;
         int imgIndex = 0;
         while ( true ) {
             final String key = "image." + imgIndex;
@@ -108,12 +511,88 @@ public class Project
             {
                 break;
             }
-            images.add( Image.fromDataString( props.getProperty( key ) ) );
+            final String data = props.getProperty( key );
+            characters += data.length();
+            images.add( Image.fromDataString( data, store ) );
             imgIndex++;
         }
-        if ( result.getImages().isEmpty() ) {
+        parse.end();
+        if ( parse.shouldCommit() )
+        {
+            parse.frameCount = images.size();
+            parse.characters = characters;
+            parse.commit();
+        }
+        if ( images.isEmpty() ) {
             throw new IllegalStateException( "Project without images?" );
         }
+        final Project result = new Project( name, file, layout, images );
+        for ( int i = 0; i < images.size(); i++ )
+        {
+            final List<Layer> frameLayers = new ArrayList<>();
+            for ( int j = 0; props.containsKey( "image." + i + ".layer." + j ); j++ )
+            {
+                final String key = "image." + i + ".layer." + j;
+                final String data = props.getProperty( key + ".data" );
+                if ( data == null ) {
+                    throw new IOException( "Missing pixels of layer " + key );
+                }
+                try
+                {
+                    final Image pixels = Image.fromDataString( data, store );
+                    frameLayers.add( Layer.fromDataString( props.getProperty( key ), pixels ) );
+                }
+                catch( IllegalArgumentException e ) {
+                    throw new IOException( "Invalid layer: " + key, e );
+                }
+            }
+            if ( ! frameLayers.isEmpty() )
+            {
+                final Image frame = images.get( i );
+                final LayerStack stack;
+                try {
+                    stack = new LayerStack( frame, frameLayers );
+                } catch( IllegalArgumentException e ) {
+                    throw new IOException( "Layers of frame " + i + " do not match the frame", e );
+                }
+                stack.update();
+                frame.setDirty( false );
+                result.layers.put( frame, stack );
+            }
+        }
+        final String export = props.getProperty( "export" );
+        if ( StringUtils.isNotBlank( export ) )
+        {
+            try {
+                result.exportOptions = ExportOptions.fromDataString( export );
+            }
+            catch( IllegalArgumentException e ) {
+                throw new IOException( "Invalid export options: " + export, e );
+            }
+        }
+
+        result.timeline = Timeline.load( props, "timeline.", store, result.bitsPerPixel );
+        if ( result.timeline != null ) {
+            result.savedTimelineVersion = result.timeline.getVersion();
+        }
+
+        String speed = props.getProperty( "animationSpeed" );
+        if ( StringUtils.isNotBlank( speed ) ) {
+            final int millis = Integer.parseInt( speed );
+            if ( millis <= 0 ) {
+                throw new IOException( "Invalid animation speed: " + speed );
+            }
+            // not setAnimationSpeedMillis(), a freshly loaded project is unchanged
+            result.animationSpeedMillis = millis;
+        }
+
+        event.end();
+        if ( event.shouldCommit() )
+        {
+            event.file = file.getPath();
+            event.frameCount = images.size();
+            event.commit();
+        }
         return result;
     }
 
@@ -133,17 +612,98 @@ public class Project
         this.file = file;
     }
 
+    // bytes the MCU needs to show a frame, in SPI shift-out order of the layout
+    public byte[] toExportBytes(Image frame) {
+        final LayerStack stack = layers.get( frame );
+        if ( stack != null ) {
+            stack.update();
+        }
+        return layout.toBytes( frame, getExportOptions() );
+    }
+
+    public ExportOptions getExportOptions() {
+        return exportOptions != null ? exportOptions : ExportOptions.defaults( layout );
+    }
+
+    public void setExportOptions(ExportOptions options)
+    {
+        Validate.notNull( options, "options must not be null" );
+        if ( ! options.equals( getExportOptions() ) )
+        {
+            this.exportOptions = options;
+            modified();
+        }
+    }
+
     public String toDataString() {
-        final String data = images.stream().map( x -> "{" + x.toDataString() + "}" ).collect( Collectors.joining( ",\n" ) );
-        final int height = getFirstImage().getHeight();
+        flattenLayers();
+        final List<Image> frames = getImages();
+        if ( ! layout.isSingleModule() || bitsPerPixel > 1 || ! getExportOptions().equals( ExportOptions.COLUMNS_LSB_FIRST ) ) {
+            return toRegisterDataString( frames );
+        }
+        final String data = frames.stream().map( x -> "{" + x.toDataString() + "}" ).collect( Collectors.joining( ",\n" ) );
+        final int height = frames.getFirst().getHeight();
         return """
     const uint8_t data[%d][%d] = {
         %s
     };
-    """.formatted(images.size(), height, data);
+    """.formatted(frames.size(), height, data);
+    }
+
+    /**
+     * data[frame][register] for single modules, data[frame][register][chain position, far end first] otherwise.
+     *
+     * Frames with more than one bit per pixel get an additional dimension
+     * for the bit planes, LSB first. A refresh loop doing binary code
+     * modulation shows plane k for 2^k ticks, blitting it like a 1-bit frame.
+     */
+    private String toRegisterDataString(List<Image> frames)
+    {
+        final int modules = layout.getModuleCount();
+        final ExportOptions options = getExportOptions();
+        final StringBuilder data = new StringBuilder();
+        final byte[] bytes = new byte[layout.getBytesPerFrame()];
+        for ( int i = 0; i < frames.size(); i++ )
+        {
+            data.append( i == 0 ? "{" : ",\n    {" );
+            for ( int p = 0; p < bitsPerPixel; p++ )
+            {
+                layout.toBytes( frames.get( i ).getPlane( p ), options, bytes, 0 );
+                data.append( p == 0 ? "" : ", " ).append( bitsPerPixel > 1 ? "{" : "" );
+                for ( int register = 0; register < DisplayLayout.MODULE_SIZE; register++ )
+                {
+                    data.append( register == 0 ? "" : ", " ).append( modules > 1 ? "{" : "" );
+                    for ( int m = 0; m < modules; m++ )
+                    {
+                        if ( m > 0 ) {
+                            data.append( ", " );
+                        }
+                        data.append( "0x" ).append( Integer.toHexString( bytes[register * modules + m] & 0xff ) );
+                    }
+                    data.append( modules > 1 ? "}" : "" );
+                }
+                data.append( bitsPerPixel > 1 ? "}" : "" );
+            }
+            data.append( "}" );
+        }
+        final String planes = bitsPerPixel > 1 ? "[%d]".formatted( bitsPerPixel ) : "";
+        final String dimensions = modules > 1 ? "[%d][%d]".formatted( DisplayLayout.MODULE_SIZE, modules ) : "[%d]".formatted( DisplayLayout.MODULE_SIZE );
+        final String comment = bitsPerPixel > 1 ? ", %d bit planes (LSB first, show plane k for 2^k ticks)".formatted( bitsPerPixel ) : "";
+        return """
+    // layout %s, export %s%s
+    const uint8_t data[%d]%s%s = {
+        %s
+    };
+    """.formatted( layout.toDataString(), options.toDataString(), comment, frames.size(), planes, dimensions, data );
     }
 
+    // read-only view of the current frames, does not reflect later changes
     public List<Image> getImages()
+    {
+        return images.asList();
+    }
+
+    public FrameSequence<Image> snapshot()
     {
         return images;
     }
@@ -153,7 +713,7 @@ public class Project
         if ( nextIdx < images.size() ) {
             return images.get( nextIdx );
         }
-        return images.getFirst();
+        return images.get( 0 );
     }
 
     public Optional<Image> getPreviousImage(Image current) {
@@ -172,6 +732,10 @@ public class Project
     public void setAnimationSpeedMillis(int animationSpeedMillis)
     {
         Validate.isTrue( animationSpeedMillis > 0 );
-        this.animationSpeedMillis = animationSpeedMillis;
+        if ( this.animationSpeedMillis != animationSpeedMillis )
+        {
+            this.animationSpeedMillis = animationSpeedMillis;
+            modified();
+        }
     }
 }
\ No newline at end of file
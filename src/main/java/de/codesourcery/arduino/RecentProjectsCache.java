@@ -0,0 +1,124 @@
+package de.codesourcery.arduino;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Small LRU cache of parsed project files.
+ *
+ * Projects are parsed on virtual threads and callers always receive a
+ * private copy, so editing a project never changes the cached version.
+ * Entries are discarded when the file's size or modification time changed.
+ */
+final class RecentProjectsCache
+{
+    private record Entry(long lastModified, long length, CompletableFuture<Project> project)
+    {
+        boolean isCurrent(File file) {
+            return file.lastModified() == lastModified && file.length() == length;
+        }
+
+        void dispose() {
+            project.thenAccept( Project::dispose );
+        }
+    }
+
+    private final Map<File,Entry> entries;
+
+    public RecentProjectsCache(int capacity)
+    {
+        Validate.isTrue( capacity > 0, "capacity must be > 0" );
+        this.entries = new LinkedHashMap<>( 16, 0.75f, true )
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<File,Entry> eldest)
+            {
+                if ( size() > capacity )
+                {
+                    eldest.getValue().dispose();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // starts parsing the file in the background unless it is already cached
+    public void prefetch(File file)
+    {
+        Validate.notNull( file, "file must not be null" );
+        entry( file );
+    }
+
+    public Project load(File file) throws IOException
+    {
+        Validate.notNull( file, "file must not be null" );
+        while ( true )
+        {
+            final Entry entry = entry( file );
+            final Project project;
+            try
+            {
+                project = entry.project().join();
+            }
+            catch( CompletionException e )
+            {
+                invalidate( file );
+                if ( e.getCause() instanceof UncheckedIOException io ) {
+                    throw io.getCause();
+                }
+                throw e;
+            }
+            synchronized ( this )
+            {
+                // copy while holding the lock so the entry cannot be disposed concurrently
+                if ( entries.get( file ) == entry ) {
+                    return project.createCopy();
+                }
+            }
+        }
+    }
+
+    public synchronized void invalidate(File file)
+    {
+        final Entry entry = entries.remove( file );
+        if ( entry != null ) {
+            entry.dispose();
+        }
+    }
+
+    private synchronized Entry entry(File file)
+    {
+        Entry entry = entries.get( file );
+        if ( entry == null || ! entry.isCurrent( file ) )
+        {
+            if ( entry != null ) {
+                entry.dispose();
+            }
+            final CompletableFuture<Project> future = new CompletableFuture<>();
+            entry = new Entry( file.lastModified(), file.length(), future );
+            entries.put( file, entry );
+            Thread.ofVirtual().name( "load-" + file.getName() ).start( () -> {
+                try
+                {
+                    future.complete( Project.load( file ) );
+                }
+                catch( IOException e )
+                {
+                    future.completeExceptionally( new UncheckedIOException( e ) );
+                }
+                catch( RuntimeException e )
+                {
+                    future.completeExceptionally( e );
+                }
+            } );
+        }
+        return entry;
+    }
+}
@@ -0,0 +1,109 @@
+package de.codesourcery.arduino;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Set of selected pixels of a frame.
+ *
+ * Stored like a frame column: one row mask per column with row 0 in the
+ * least significant bit. A selection is either a rectangle or any subset
+ * of it, for example only the lit pixels inside a rectangle.
+ */
+public final class Selection
+{
+    private final int width;
+    private final int height;
+    private final long[] columns;
+
+    private Selection(int width, int height, long[] columns)
+    {
+        this.width = width;
+        this.height = height;
+        this.columns = columns;
+    }
+
+    // takes ownership of the columns
+    static Selection of(int width, int height, long[] columns)
+    {
+        Validate.isTrue( columns.length == width, "Expected %d columns", width );
+        return new Selection( width, height, columns );
+    }
+
+    // rectangle clipped to the frame size, may be empty
+    public static Selection rectangle(int frameWidth, int frameHeight, Rectangle r)
+    {
+        Validate.notNull( r, "rectangle must not be null" );
+        final long[] columns = new long[frameWidth];
+        final int x0 = Math.max( 0, r.x );
+        final int x1 = Math.min( frameWidth, r.x + r.width );
+        final int y0 = Math.max( 0, r.y );
+        final int y1 = Math.min( frameHeight, r.y + r.height );
+        if ( x1 > x0 && y1 > y0 ) {
+            Arrays.fill( columns, x0, x1, rowMask( y1 - y0 ) << y0 );
+        }
+        return new Selection( frameWidth, frameHeight, columns );
+    }
+
+    // the pixels of this selection that are lit in the given frame
+    public Selection litPixels(Image frame)
+    {
+        Validate.isTrue( frame.getWidth() == width && frame.getHeight() == height, "Frame size does not match selection" );
+        final long[] result = new long[width];
+        for ( int x = 0; x < width; x++ )
+        {
+            if ( columns[x] != 0 ) {
+                result[x] = columns[x] & frame.getColumn( x );
+            }
+        }
+        return new Selection( width, height, result );
+    }
+
+    static long rowMask(int rows) {
+        return rows >= 64 ? -1L : ( 1L << rows ) - 1;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // selected rows of a column
+    public long getColumn(int x) {
+        return columns[x];
+    }
+
+    public boolean contains(int x, int y) {
+        return x >= 0 && x < width && y >= 0 && y < height && ( columns[x] & 1L << y ) != 0;
+    }
+
+    public boolean isEmpty() {
+        return Arrays.stream( columns ).allMatch( c -> c == 0 );
+    }
+
+    // smallest rectangle containing all selected pixels, empty if nothing is selected
+    public Rectangle getBounds()
+    {
+        int minX = width, maxX = -1;
+        long rows = 0;
+        for ( int x = 0; x < width; x++ )
+        {
+            if ( columns[x] != 0 )
+            {
+                minX = Math.min( minX, x );
+                maxX = x;
+                rows |= columns[x];
+            }
+        }
+        if ( maxX == -1 ) {
+            return new Rectangle();
+        }
+        final int minY = Long.numberOfTrailingZeros( rows );
+        final int maxY = 63 - Long.numberOfLeadingZeros( rows );
+        return new Rectangle( minX, minY, maxX - minX + 1, maxY - minY + 1 );
+    }
+}
@@ -0,0 +1,270 @@
+package de.codesourcery.arduino;
+
+import java.awt.Rectangle;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Pixels covered by the editor's drawing tools, as {@link Selection}s, and
+ * drawing them into a frame in one go.
+ *
+ * Flood fill works on whole words of the frame's {@link FrameStore}: the
+ * region to fill is a bitboard of all pixels with the seed pixel's level,
+ * and the fill grows through it with occluded Kogge-Stone shifts (1, 2, 4,
+ * ... rows or columns at a time) instead of visiting pixels one by one. An
+ * 8x8 frame is a single word and fills in a few dozen word operations.
+ */
+public final class Shapes
+{
+    private Shapes() {
+    }
+
+    // Bresenham line including both end points
+    public static Selection line(int width, int height, int x0, int y0, int x1, int y1)
+    {
+        final long[] columns = new long[width];
+        final int dx = Math.abs( x1 - x0 ), sx = x0 < x1 ? 1 : -1;
+        final int dy = -Math.abs( y1 - y0 ), sy = y0 < y1 ? 1 : -1;
+        int err = dx + dy;
+        while ( true )
+        {
+            plot( columns, height, x0, y0 );
+            if ( x0 == x1 && y0 == y1 ) {
+                break;
+            }
+            final int e2 = 2 * err;
+            if ( e2 >= dy ) {
+                err += dy;
+                x0 += sx;
+            }
+            if ( e2 <= dx ) {
+                err += dx;
+                y0 += sy;
+            }
+        }
+        return Selection.of( width, height, columns );
+    }
+
+    private static void plot(long[] columns, int height, int x, int y)
+    {
+        if ( x >= 0 && x < columns.length && y >= 0 && y < height ) {
+            columns[x] |= 1L << y;
+        }
+    }
+
+    // outline of a rectangle, bounds are inclusive of the last row and column
+    public static Selection rectangle(int width, int height, Rectangle bounds)
+    {
+        Validate.notNull( bounds, "bounds must not be null" );
+        final Selection outer = Selection.rectangle( width, height, bounds );
+        final Selection inner = Selection.rectangle( width, height,
+            new Rectangle( bounds.x + 1, bounds.y + 1, bounds.width - 2, bounds.height - 2 ) );
+        final long[] columns = new long[width];
+        for ( int x = 0; x < width; x++ ) {
+            columns[x] = outer.getColumn( x ) & ~inner.getColumn( x );
+        }
+        return Selection.of( width, height, columns );
+    }
+
+    // outline of the ellipse inscribed into the bounds (midpoint algorithm)
+    public static Selection ellipse(int width, int height, Rectangle bounds)
+    {
+        Validate.notNull( bounds, "bounds must not be null" );
+        final long[] columns = new long[width];
+        if ( bounds.width <= 0 || bounds.height <= 0 ) {
+            return Selection.of( width, height, columns );
+        }
+        // twice the center and radii, so even sizes stay exact
+        final int cx2 = 2 * bounds.x + bounds.width - 1;
+        final int cy2 = 2 * bounds.y + bounds.height - 1;
+        final long a = bounds.width - 1, b = bounds.height - 1;
+        if ( a == 0 || b == 0 ) {
+            return line( width, height, bounds.x, bounds.y, bounds.x + bounds.width - 1, bounds.y + bounds.height - 1 );
+        }
+        // walk the first quadrant in doubled coordinates and mirror it
+        for ( long x = a % 2, y = b; x <= a && y >= 0; )
+        {
+            plotSymmetric( columns, height, cx2, cy2, (int) x, (int) y );
+            // candidates: right, down, diagonal - take the one closest to the curve
+            final long right = error( x + 2, y, a, b );
+            final long down = error( x, y - 2, a, b );
+            final long diagonal = error( x + 2, y - 2, a, b );
+            if ( y - 2 < 0 ) {
+                x += 2;
+            } else if ( x + 2 > a ) {
+                y -= 2;
+            } else if ( diagonal <= right && diagonal <= down ) {
+                x += 2;
+                y -= 2;
+            } else if ( right < down ) {
+                x += 2;
+            } else {
+                y -= 2;
+            }
+        }
+        return Selection.of( width, height, columns );
+    }
+
+    // |x^2 b^2 + y^2 a^2 - a^2 b^2| for doubled coordinates and diameters
+    private static long error(long x, long y, long a, long b) {
+        return Math.abs( x * x * b * b + y * y * a * a - a * a * b * b );
+    }
+
+    private static void plotSymmetric(long[] columns, int height, int cx2, int cy2, int x, int y)
+    {
+        plot( columns, height, ( cx2 + x ) / 2, ( cy2 + y ) / 2 );
+        plot( columns, height, ( cx2 - x ) / 2, ( cy2 + y ) / 2 );
+        plot( columns, height, ( cx2 + x ) / 2, ( cy2 - y ) / 2 );
+        plot( columns, height, ( cx2 - x ) / 2, ( cy2 - y ) / 2 );
+    }
+
+    /**
+     * Pixels connected to (x,y) horizontally or vertically that have the same
+     * brightness level as (x,y).
+     */
+    public static Selection floodFill(Image frame, int x, int y)
+    {
+        Validate.isTrue( x >= 0 && x < frame.getWidth() && y >= 0 && y < frame.getHeight(), "(%d,%d) is outside the frame", x, y );
+        final FrameStore store = frame.getStore();
+        final int level = frame.getLevel( x, y );
+        final int words = store.wordsPerFrame;
+
+        // all pixels with the seed's level
+        final long[] region = new long[words];
+        for ( int i = 0; i < words; i++ )
+        {
+            long same = store.getValidMask( i );
+            for ( int p = 0; p < frame.getBitsPerPixel(); p++ )
+            {
+                final long plane = frame.getPlane( p ).getWord( i );
+                same &= ( level >>> p & 1 ) != 0 ? plane : ~plane;
+            }
+            region[i] = same;
+        }
+
+        final long[] fill = new long[words];
+        final int b = store.bitsPerColumn;
+        final int seedWord = x / store.columnsPerWord;
+        fill[seedWord] = 1L << ( x % store.columnsPerWord ) * b + y;
+
+        // rows 0..k-1 and rows b-k..b-1 of every column in a word, for blocking shifts that would wrap into the next column
+        final long[] topRows = new long[b];
+        final long[] bottomRows = new long[b];
+        for ( int k = 1; k < b; k <<= 1 )
+        {
+            for ( int c = 0; c < store.columnsPerWord; c++ )
+            {
+                topRows[k] |= Selection.rowMask( k ) << c * b;
+                bottomRows[k] |= Selection.rowMask( k ) << c * b + b - k;
+            }
+        }
+
+        final int lastColumn = ( store.columnsPerWord - 1 ) * b;
+        boolean changed = true;
+        // sweeps alternate between left-to-right and right-to-left so the fill crosses all words in either direction in one sweep
+        for ( boolean forward = true; changed; forward = ! forward )
+        {
+            changed = false;
+            for ( int j = 0; j < words; j++ )
+            {
+                final int i = forward ? j : words - 1 - j;
+                long g = fill[i];
+                // neighbouring columns in the adjacent words
+                if ( i > 0 ) {
+                    g |= ( fill[i - 1] >>> lastColumn ) & region[i];
+                }
+                if ( i + 1 < words ) {
+                    g |= ( fill[i + 1] << lastColumn ) & region[i];
+                }
+                if ( g == 0 ) {
+                    continue;
+                }
+                g = fillWord( g, region[i], store, topRows, bottomRows );
+                if ( g != fill[i] )
+                {
+                    fill[i] = g;
+                    changed = true;
+                }
+            }
+        }
+
+        final long[] columns = new long[frame.getWidth()];
+        final long rows = Selection.rowMask( b );
+        for ( int col = 0; col < columns.length; col++ ) {
+            columns[col] = fill[col / store.columnsPerWord] >>> ( col % store.columnsPerWord ) * b & rows;
+        }
+        return Selection.of( frame.getWidth(), frame.getHeight(), columns );
+    }
+
+    // grows g through the region within a single word until nothing changes
+    private static long fillWord(long g, long region, FrameStore store, long[] topRows, long[] bottomRows)
+    {
+        final int b = store.bitsPerColumn;
+        long previous;
+        do
+        {
+            previous = g;
+            // down and up within each column
+            long p = region;
+            long h = g;
+            for ( int k = 1; k < b; k <<= 1 )
+            {
+                h |= p & ( h << k & ~topRows[k] );
+                p &= p << k & ~topRows[k];
+            }
+            p = region;
+            for ( int k = 1; k < b; k <<= 1 )
+            {
+                h |= p & ( h >>> k & ~bottomRows[k] );
+                p &= p >>> k & ~bottomRows[k];
+            }
+            // right and left across the columns of the word
+            if ( store.columnsPerWord > 1 )
+            {
+                p = region;
+                for ( int k = b; k < 64; k <<= 1 )
+                {
+                    h |= p & ( h << k );
+                    p &= p << k;
+                }
+                p = region;
+                for ( int k = b; k < 64; k <<= 1 )
+                {
+                    h |= p & ( h >>> k );
+                    p &= p >>> k;
+                }
+            }
+            g = h;
+        } while ( g != previous );
+        return g;
+    }
+
+    /**
+     * Sets all pixels of the shape to a brightness level with one masked
+     * write per word and bit plane.
+     *
+     * @return whether any pixel changed
+     */
+    public static boolean draw(Image target, Selection shape, int level)
+    {
+        Validate.isTrue( target.getWidth() == shape.getWidth() && target.getHeight() == shape.getHeight(), "Shape does not match the frame size" );
+        Validate.inclusiveBetween( 0, target.getMaxLevel(), level, "level out of range: %d", level );
+        final FrameStore store = target.getStore();
+        final long[] masks = new long[store.wordsPerFrame];
+        for ( int x = 0; x < shape.getWidth(); x++ ) {
+            masks[x / store.columnsPerWord] |= shape.getColumn( x ) << ( x % store.columnsPerWord ) * store.bitsPerColumn;
+        }
+        boolean changed = false;
+        for ( int p = 0; p < target.getBitsPerPixel(); p++ )
+        {
+            final Image plane = target.getPlane( p );
+            final boolean on = ( level >>> p & 1 ) != 0;
+            for ( int i = 0; i < masks.length; i++ )
+            {
+                if ( masks[i] != 0 ) {
+                    changed |= plane.setWord( i, on ? plane.getWord( i ) | masks[i] : plane.getWord( i ) & ~masks[i] );
+                }
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,199 @@
+package de.codesourcery.arduino;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * BK-tree over frame contents using the Hamming distance (number of
+ * differing pixels, or of differing bit plane bits with more than one bit
+ * per pixel) as metric.
+ *
+ * Frames with identical content share a node. A query for all frames
+ * within distance k only descends into children whose edge distance lies
+ * in [d-k, d+k], which prunes most of the tree for small k.
+ */
+public final class SimilarityIndex
+{
+    private static final class Node
+    {
+        final long[] bits;
+        final List<Image> frames = new ArrayList<>( 1 );
+
+        int[] childDistances = new int[0];
+        Node[] children = new Node[0];
+
+        Node(long[] bits, Image frame)
+        {
+            this.bits = bits;
+            this.frames.add( frame );
+        }
+
+        Node child(int distance)
+        {
+            for ( int i = 0; i < childDistances.length; i++ )
+            {
+                if ( childDistances[i] == distance ) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        void addChild(int distance, Node child)
+        {
+            childDistances = Arrays.copyOf( childDistances, childDistances.length + 1 );
+            children = Arrays.copyOf( children, children.length + 1 );
+            childDistances[childDistances.length - 1] = distance;
+            children[children.length - 1] = child;
+        }
+    }
+
+    public record Match(Image frame, int distance) {}
+
+    private Node root;
+    private int size;
+
+    public static SimilarityIndex of(Iterable<Image> frames)
+    {
+        Validate.notNull( frames, "frames must not be null" );
+        final SimilarityIndex result = new SimilarityIndex();
+        frames.forEach( result::add );
+        return result;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public static int distance(long[] a, long[] b)
+    {
+        int result = 0;
+        for ( int i = 0; i < a.length; i++ ) {
+            result += Long.bitCount( a[i] ^ b[i] );
+        }
+        return result;
+    }
+
+    // words of all bit planes one after another, getWord() would OR the planes together
+    private static long[] bits(Image frame)
+    {
+        final int words = frame.getWordCount();
+        final long[] result = new long[words * frame.getBitsPerPixel()];
+        for ( int p = 0; p < frame.getBitsPerPixel(); p++ )
+        {
+            final Image plane = frame.getPlane( p );
+            for ( int i = 0; i < words; i++ ) {
+                result[p * words + i] = plane.getWord( i );
+            }
+        }
+        return result;
+    }
+
+    public void add(Image frame)
+    {
+        Validate.notNull( frame, "frame must not be null" );
+        final long[] bits = bits( frame );
+        size++;
+        if ( root == null ) {
+            root = new Node( bits, frame );
+            return;
+        }
+        Validate.isTrue( root.bits.length == bits.length, "All frames must have the same size" );
+        Node current = root;
+        while ( true )
+        {
+            final int d = distance( current.bits, bits );
+            if ( d == 0 ) {
+                current.frames.add( frame );
+                return;
+            }
+            final Node child = current.child( d );
+            if ( child == null ) {
+                current.addChild( d, new Node( bits, frame ) );
+                return;
+            }
+            current = child;
+        }
+    }
+
+    // all frames that differ from the given frame in at most maxDistance pixels, including identical ones
+    public List<Match> findSimilar(Image frame, int maxDistance)
+    {
+        Validate.notNull( frame, "frame must not be null" );
+        Validate.isTrue( maxDistance >= 0, "max. distance must be >= 0" );
+        final List<Match> result = new ArrayList<>();
+        if ( root == null ) {
+            return result;
+        }
+        final long[] bits = bits( frame );
+        final Deque<Node> stack = new ArrayDeque<>();
+        stack.push( root );
+        while ( ! stack.isEmpty() )
+        {
+            final Node n = stack.pop();
+            final int d = distance( n.bits, bits );
+            if ( d <= maxDistance ) {
+                n.frames.forEach( f -> result.add( new Match( f, d ) ) );
+            }
+            for ( int i = 0; i < n.childDistances.length; i++ )
+            {
+                if ( Math.abs( n.childDistances[i] - d ) <= maxDistance ) {
+                    stack.push( n.children[i] );
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces every frame that differs in at most maxDistance pixels from an
+     * earlier frame with that earlier frame's content.
+     *
+     * @return number of frames that were changed
+     * @see #findNearDuplicates(List, int)
+     */
+    public static int mergeNearDuplicates(List<Image> frames, int maxDistance)
+    {
+        final Map<Image,Image> duplicates = findNearDuplicates( frames, maxDistance );
+        duplicates.forEach( Image::copyFrom );
+        return duplicates.size();
+    }
+
+    /**
+     * Finds the frames that differ in at most maxDistance pixels from an
+     * earlier frame, without changing any of them.
+     *
+     * Frames are visited in order, each one either joins the closest
+     * representative found so far or becomes a new representative.
+     *
+     * @return frame -> representative whose content should replace it, only for frames that differ from it
+     */
+    public static Map<Image,Image> findNearDuplicates(List<Image> frames, int maxDistance)
+    {
+        Validate.notNull( frames, "frames must not be null" );
+        final SimilarityIndex representatives = new SimilarityIndex();
+        final Map<Image,Image> result = new IdentityHashMap<>();
+        for ( final Image frame : frames )
+        {
+            Match best = null;
+            for ( final Match m : representatives.findSimilar( frame, maxDistance ) )
+            {
+                if ( best == null || m.distance() < best.distance() ) {
+                    best = m;
+                }
+            }
+            if ( best == null ) {
+                representatives.add( frame );
+            } else if ( best.distance() > 0 ) {
+                result.put( frame, best.frame() );
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,227 @@
+package de.codesourcery.arduino;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * All frames of an animation, pre-rasterized into packed pages so that
+ * playback only needs to blit one cell per tick.
+ */
+final class SpriteAtlas
+{
+    private static final int MAX_PAGE_SIZE = 4096;
+
+    // upper bound for the sum of all page sizes, 64M pixels = 256 MB
+    private static final long MAX_PIXELS = 64L * 1024 * 1024;
+
+    private final Snapshot snapshot;
+    private final int cellWidth;
+    private final int cellHeight;
+    private final int columnsPerPage;
+    private final int cellsPerPage;
+    private final BufferedImage[] pages;
+
+    // copy of the frame bits of all bit planes taken on the EDT, safe to hand to a background thread
+    static final class Snapshot
+    {
+        private final int width;
+        private final int height;
+        private final int bitsPerColumn;
+        private final int columnsPerWord;
+        private final int wordsPerFrame;
+        private final int bitsPerPixel;
+        // ARGB color of each brightness level
+        private final int[] colors;
+        // planes of a frame one after another
+        private final long[] data;
+        private final int hash;
+
+        private Snapshot(FrameStore store, int[] colors, long[] data)
+        {
+            this.width = store.width;
+            this.height = store.height;
+            this.bitsPerColumn = store.bitsPerColumn;
+            this.columnsPerWord = store.columnsPerWord;
+            this.wordsPerFrame = store.wordsPerFrame;
+            this.bitsPerPixel = Integer.numberOfTrailingZeros( colors.length );
+            this.colors = colors;
+            this.data = data;
+            this.hash = ( Arrays.hashCode( data ) * 31 + width * 65 + height ) * 31 + bitsPerPixel;
+        }
+
+        static Snapshot of(List<Image> frames)
+        {
+            Validate.notEmpty( frames, "frames must not be null or empty" );
+            final Image first = frames.getFirst();
+            final FrameStore store = first.getStore();
+            final int bits = first.getBitsPerPixel();
+            final int[] colors = new int[first.getMaxLevel() + 1];
+            for ( int level = 0; level < colors.length; level++ ) {
+                colors[level] = first.getColor( level ).getRGB();
+            }
+            final long[] data = new long[frames.size() * bits * store.wordsPerFrame];
+            int ptr = 0;
+            for ( final Image image : frames )
+            {
+                for ( int p = 0; p < bits; p++ )
+                {
+                    final Image plane = image.getPlane( p );
+                    for ( int i = 0; i < store.wordsPerFrame; i++ ) {
+                        data[ptr++] = plane.getWord( i );
+                    }
+                }
+            }
+            return new Snapshot( store, colors, data );
+        }
+
+        int getFrameCount()
+        {
+            return data.length / ( wordsPerFrame * bitsPerPixel );
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        int getLevel(int frame, int x, int y)
+        {
+            final int shift = ( x % columnsPerWord ) * bitsPerColumn + y;
+            int ptr = frame * wordsPerFrame * bitsPerPixel + x / columnsPerWord;
+            int result = 0;
+            for ( int p = 0; p < bitsPerPixel; p++, ptr += wordsPerFrame ) {
+                result |= (int) ( data[ptr] >>> shift & 1 ) << p;
+            }
+            return result;
+        }
+
+        // ARGB, as Image.getColor() shows the level
+        int getColor(int frame, int x, int y) {
+            return colors[getLevel( frame, x, y )];
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            return obj instanceof Snapshot other && other.hash == hash && other.width == width
+                && other.height == height && other.bitsPerPixel == bitsPerPixel && Arrays.equals( other.data, data );
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+    }
+
+    private SpriteAtlas(Snapshot snapshot, int cellWidth, int cellHeight)
+    {
+        this.snapshot = snapshot;
+        this.cellWidth = cellWidth;
+        this.cellHeight = cellHeight;
+        this.columnsPerPage = Math.max( 1, MAX_PAGE_SIZE / cellWidth );
+        final int rowsPerPage = Math.max( 1, MAX_PAGE_SIZE / cellHeight );
+        this.cellsPerPage = columnsPerPage * rowsPerPage;
+        this.pages = new BufferedImage[( snapshot.getFrameCount() + cellsPerPage - 1 ) / cellsPerPage];
+    }
+
+    // returns null if even the smallest cell size would exceed the memory budget
+    static SpriteAtlas create(Snapshot snapshot, int width, int height)
+    {
+        Validate.notNull( snapshot, "snapshot must not be null" );
+
+        final int frameWidth = snapshot.getWidth();
+        final int frameHeight = snapshot.getHeight();
+        int cellWidth = Math.max( frameWidth, width );
+        int cellHeight = Math.max( frameHeight, height );
+        final long frameCount = snapshot.getFrameCount();
+        if ( frameCount * cellWidth * cellHeight > MAX_PIXELS )
+        {
+            // scale down, the blit will scale back up using nearest-neighbour
+            final double scale = Math.sqrt( MAX_PIXELS / (double) ( frameCount * cellWidth * cellHeight ) );
+            cellWidth = Math.max( frameWidth, (int) ( cellWidth * scale ) / frameWidth * frameWidth );
+            cellHeight = Math.max( frameHeight, (int) ( cellHeight * scale ) / frameHeight * frameHeight );
+            if ( frameCount * cellWidth * cellHeight > MAX_PIXELS ) {
+                return null;
+            }
+        }
+        final SpriteAtlas result = new SpriteAtlas( snapshot, cellWidth, cellHeight );
+        result.rasterize();
+        return result;
+    }
+
+    private void rasterize()
+    {
+        final int frameWidth = snapshot.getWidth();
+        final int frameHeight = snapshot.getHeight();
+        final int[] xOffsets = offsets( cellWidth, frameWidth );
+        final int[] yOffsets = offsets( cellHeight, frameHeight );
+        for ( int page = 0; page < pages.length; page++ )
+        {
+            final int firstFrame = page * cellsPerPage;
+            final int framesOnPage = Math.min( cellsPerPage, snapshot.getFrameCount() - firstFrame );
+            final int columns = Math.min( columnsPerPage, framesOnPage );
+            final int rows = ( framesOnPage + columnsPerPage - 1 ) / columnsPerPage;
+            final BufferedImage img = new BufferedImage( columns * cellWidth, rows * cellHeight, BufferedImage.TYPE_INT_RGB );
+            final int[] pixels = ( (DataBufferInt) img.getRaster().getDataBuffer() ).getData();
+            final int scanline = img.getWidth();
+            for ( int i = 0; i < framesOnPage; i++ )
+            {
+                final int cellX = ( i % columnsPerPage ) * cellWidth;
+                final int cellY = ( i / columnsPerPage ) * cellHeight;
+                final int frame = firstFrame + i;
+                for ( int y = 0; y < frameHeight; y++ )
+                {
+                    for ( int py = yOffsets[y]; py < yOffsets[y + 1]; py++ )
+                    {
+                        int ptr = ( cellY + py ) * scanline + cellX;
+                        for ( int x = 0; x < frameWidth; x++ )
+                        {
+                            final int color = snapshot.getColor( frame, x, y );
+                            final int end = ptr + xOffsets[x + 1] - xOffsets[x];
+                            Arrays.fill( pixels, ptr, end, color );
+                            ptr = end;
+                        }
+                    }
+                }
+            }
+            pages[page] = img;
+        }
+    }
+
+    private static int[] offsets(int size, int pixels)
+    {
+        final int[] result = new int[pixels + 1];
+        for ( int i = 0; i <= pixels; i++ )
+        {
+            result[i] = Math.round( i * size / (float) pixels );
+        }
+        return result;
+    }
+
+    Snapshot getSnapshot()
+    {
+        return snapshot;
+    }
+
+    boolean isDisplayScale(int width, int height)
+    {
+        return cellWidth == Math.max( snapshot.getWidth(), width ) && cellHeight == Math.max( snapshot.getHeight(), height );
+    }
+
+    void draw(Graphics g, int frame, int x, int y, int width, int height)
+    {
+        final BufferedImage page = pages[frame / cellsPerPage];
+        final int idx = frame % cellsPerPage;
+        final int sx = ( idx % columnsPerPage ) * cellWidth;
+        final int sy = ( idx / columnsPerPage ) * cellHeight;
+        g.drawImage( page, x, y, x + width, y + height, sx, sy, sx + cellWidth, sy + cellHeight, null );
+    }
+}
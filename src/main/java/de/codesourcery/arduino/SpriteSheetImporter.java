@@ -0,0 +1,266 @@
+package de.codesourcery.arduino;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.IntStream;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import org.apache.commons.lang3.Validate;
+import org.w3c.dom.Node;
+
+/**
+ * Splits sprite sheets and animated GIFs into cells the size of a frame
+ * (8x8 unless a different store is given) and converts each cell into a
+ * frame.
+ *
+ * Cells are read in row-major order, incomplete cells at the right and
+ * bottom edge are ignored. Pixel data is read straight from the source
+ * raster and all cells of an image are converted in parallel.
+ */
+public final class SpriteSheetImporter
+{
+    private static final int[][] BAYER_8X8 = {
+        { 0, 32,  8, 40,  2, 34, 10, 42},
+        {48, 16, 56, 24, 50, 18, 58, 26},
+        {12, 44,  4, 36, 14, 46,  6, 38},
+        {60, 28, 52, 20, 62, 30, 54, 22},
+        { 3, 35, 11, 43,  1, 33,  9, 41},
+        {51, 19, 59, 27, 49, 17, 57, 25},
+        {15, 47,  7, 39, 13, 45,  5, 37},
+        {63, 31, 55, 23, 61, 29, 53, 21}
+    };
+
+    public enum Conversion {
+        THRESHOLD,
+        DITHER
+    }
+
+    private final Conversion conversion;
+    private final int threshold;
+    private final FrameStore store;
+
+    public SpriteSheetImporter(Conversion conversion) {
+        this( conversion, 128 );
+    }
+
+    public SpriteSheetImporter(Conversion conversion, int threshold) {
+        this( conversion, threshold, FrameStore.of( 8, 8 ) );
+    }
+
+    public SpriteSheetImporter(Conversion conversion, int threshold, FrameStore store)
+    {
+        Validate.notNull( conversion, "conversion must not be null" );
+        Validate.inclusiveBetween( 0, 255, threshold, "threshold must be in range 0..255" );
+        Validate.notNull( store, "store must not be null" );
+        this.conversion = conversion;
+        this.threshold = threshold;
+        this.store = store;
+    }
+
+    public List<Image> importFile(File file) throws IOException
+    {
+        Validate.notNull( file, "file must not be null" );
+
+        try ( ImageInputStream in = ImageIO.createImageInputStream( file ) )
+        {
+            if ( in == null ) {
+                throw new IOException( "Failed to open " + file );
+            }
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders( in );
+            if ( ! readers.hasNext() ) {
+                throw new IOException( "Unsupported image format: " + file );
+            }
+            final ImageReader reader = readers.next();
+            try
+            {
+                reader.setInput( in, false );
+                if ( "gif".equalsIgnoreCase( reader.getFormatName() ) ) {
+                    return importGif( reader );
+                }
+                return importSheet( reader.read( 0 ) );
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+    }
+
+    public List<Image> importSheet(BufferedImage sheet)
+    {
+        Validate.notNull( sheet, "sheet must not be null" );
+
+        final Raster raster = sheet.getRaster();
+        final ColorModel colorModel = sheet.getColorModel();
+        final int[] lut = colorModel instanceof IndexColorModel icm ? luminanceTable( icm ) : null;
+
+        final int columns = sheet.getWidth() / store.width;
+        final int rows = sheet.getHeight() / store.height;
+        final Image[] result = new Image[columns * rows];
+        IntStream.range( 0, result.length ).parallel().forEach( cell -> {
+            final int x = ( cell % columns ) * store.width;
+            final int y = ( cell / columns ) * store.height;
+            result[cell] = convert( luminance( raster, colorModel, lut, x, y ) );
+        } );
+        return Arrays.asList( result );
+    }
+
+    // animated GIFs may consist of partial frames that need to be composited first
+    private List<Image> importGif(ImageReader reader) throws IOException
+    {
+        final int frameCount = reader.getNumImages( true );
+        BufferedImage canvas = null;
+        final List<Image> result = new ArrayList<>();
+        for ( int i = 0; i < frameCount; i++ )
+        {
+            final BufferedImage frame = reader.read( i );
+            final IIOMetadataNode root = (IIOMetadataNode) reader.getImageMetadata( i ).getAsTree( "javax_imageio_gif_image_1.0" );
+            final IIOMetadataNode descriptor = child( root, "ImageDescriptor" );
+            final IIOMetadataNode control = child( root, "GraphicControlExtension" );
+            final int left = descriptor == null ? 0 : Integer.parseInt( descriptor.getAttribute( "imageLeftPosition" ) );
+            final int top = descriptor == null ? 0 : Integer.parseInt( descriptor.getAttribute( "imageTopPosition" ) );
+            final String disposal = control == null ? "none" : control.getAttribute( "disposalMethod" );
+
+            if ( canvas == null ) {
+                canvas = createCanvas( reader.getStreamMetadata(), frame, left, top );
+            }
+            final BufferedImage previous = "restoreToPrevious".equals( disposal ) ? copy( canvas ) : null;
+
+            final Graphics2D gfx = canvas.createGraphics();
+            gfx.drawImage( frame, left, top, null );
+            gfx.dispose();
+
+            result.addAll( importSheet( canvas ) );
+
+            if ( "restoreToBackgroundColor".equals( disposal ) )
+            {
+                final Graphics2D g = canvas.createGraphics();
+                g.setComposite( AlphaComposite.Clear );
+                g.fillRect( left, top, frame.getWidth(), frame.getHeight() );
+                g.dispose();
+            }
+            else if ( previous != null )
+            {
+                canvas = previous;
+            }
+        }
+        return result;
+    }
+
+    private static BufferedImage createCanvas(IIOMetadata streamMetadata, BufferedImage firstFrame, int left, int top)
+    {
+        int width = firstFrame.getWidth() + left;
+        int height = firstFrame.getHeight() + top;
+        if ( streamMetadata != null )
+        {
+            final IIOMetadataNode root = (IIOMetadataNode) streamMetadata.getAsTree( "javax_imageio_gif_stream_1.0" );
+            final IIOMetadataNode screen = child( root, "LogicalScreenDescriptor" );
+            if ( screen != null )
+            {
+                width = Math.max( width, Integer.parseInt( screen.getAttribute( "logicalScreenWidth" ) ) );
+                height = Math.max( height, Integer.parseInt( screen.getAttribute( "logicalScreenHeight" ) ) );
+            }
+        }
+        return new BufferedImage( width, height, BufferedImage.TYPE_INT_ARGB );
+    }
+
+    private static BufferedImage copy(BufferedImage img)
+    {
+        final BufferedImage result = new BufferedImage( img.getWidth(), img.getHeight(), img.getType() );
+        result.setData( img.getRaster() );
+        return result;
+    }
+
+    private static IIOMetadataNode child(IIOMetadataNode parent, String name)
+    {
+        for ( Node n = parent.getFirstChild(); n != null; n = n.getNextSibling() )
+        {
+            if ( name.equals( n.getNodeName() ) ) {
+                return (IIOMetadataNode) n;
+            }
+        }
+        return null;
+    }
+
+    // luminance 0..255 of every palette entry, fully transparent entries are black
+    private static int[] luminanceTable(IndexColorModel cm)
+    {
+        final int[] result = new int[cm.getMapSize()];
+        for ( int i = 0; i < result.length; i++ )
+        {
+            result[i] = cm.getAlpha( i ) < 128 ? 0 : luminance( cm.getRed( i ), cm.getGreen( i ), cm.getBlue( i ) );
+        }
+        return result;
+    }
+
+    private static int luminance(int r, int g, int b) {
+        return ( r * 77 + g * 150 + b * 29 ) >> 8;
+    }
+
+    // luminance of one cell, row-major
+    private int[] luminance(Raster raster, ColorModel cm, int[] lut, int x0, int y0)
+    {
+        final int pixels = store.width * store.height;
+        final int bands = raster.getNumBands();
+        final int[] samples = raster.getPixels( x0, y0, store.width, store.height, (int[]) null );
+        final int[] result = new int[pixels];
+        if ( lut != null )
+        {
+            for ( int i = 0; i < pixels; i++ ) {
+                result[i] = lut[samples[i]];
+            }
+            return result;
+        }
+
+        // scale samples with more or less than 8 bits to 0..255
+        final int shift = cm.getComponentSize( 0 ) - 8;
+        final boolean hasAlpha = cm.hasAlpha();
+        for ( int i = 0, ptr = 0; i < pixels; i++, ptr += bands )
+        {
+            final int value = switch ( bands )
+            {
+                case 1, 2 -> scale( samples[ptr], shift );
+                default -> luminance( scale( samples[ptr], shift ), scale( samples[ptr + 1], shift ), scale( samples[ptr + 2], shift ) );
+            };
+            final boolean transparent = hasAlpha && scale( samples[ptr + bands - 1], shift ) < 128;
+            result[i] = transparent ? 0 : value;
+        }
+        return result;
+    }
+
+    private static int scale(int sample, int shift) {
+        return shift >= 0 ? sample >> shift : sample << -shift;
+    }
+
+    private Image convert(int[] luminance)
+    {
+        final Image result = new Image( store );
+        for ( int x = 0; x < store.width; x++ )
+        {
+            long column = 0;
+            for ( int y = 0; y < store.height; y++ )
+            {
+                final int limit = conversion == Conversion.DITHER ? BAYER_8X8[y & 7][x & 7] * 4 + 2 : threshold;
+                if ( luminance[y * store.width + x] > limit ) {
+                    column |= 1L << y;
+                }
+            }
+            result.setColumn( x, column );
+        }
+        result.setDirty( false );
+        return result;
+    }
+}
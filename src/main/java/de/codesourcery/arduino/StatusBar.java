@@ -0,0 +1,73 @@
+package de.codesourcery.arduino;
+
+import java.awt.FlowLayout;
+import java.util.List;
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JProgressBar;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Shows the first running task of a {@link TaskService} with its progress and
+ * a button to cancel it, plus the number of tasks waiting behind it. While
+ * no task runs it shows the last message.
+ */
+final class StatusBar extends JPanel
+{
+    private final JLabel label = new JLabel( "Ready" );
+    private final JProgressBar progress = new JProgressBar( 0, 1000 );
+    private final JButton cancel = new JButton( "Cancel" );
+    private final JLabel queued = new JLabel();
+
+    private CancellationToken current;
+    private String message = "Ready";
+
+    public StatusBar(TaskService tasks)
+    {
+        super( new FlowLayout( FlowLayout.LEFT, 5, 2 ) );
+        Validate.notNull( tasks, "tasks must not be null" );
+        setBorder( BorderFactory.createEtchedBorder() );
+        add( label );
+        add( progress );
+        add( cancel );
+        add( queued );
+        cancel.addActionListener( ev -> {
+            if ( current != null ) {
+                current.cancel();
+            }
+        } );
+        update( List.of() );
+        tasks.addStatusListener( this::update );
+    }
+
+    // shown while no task runs, must be called on the EDT
+    public void showMessage(String message)
+    {
+        Validate.notBlank( message, "message must not be null or blank" );
+        this.message = message;
+        if ( current == null ) {
+            label.setText( message );
+        }
+    }
+
+    private void update(List<TaskService.Status> status)
+    {
+        final TaskService.Status first = status.isEmpty() ? null : status.getFirst();
+        current = first == null ? null : first.token();
+        if ( first == null ) {
+            label.setText( message );
+        } else {
+            label.setText( first.running() ? first.name() : first.name() + " (waiting)" );
+        }
+        progress.setVisible( first != null );
+        cancel.setVisible( first != null );
+        if ( first != null )
+        {
+            progress.setIndeterminate( first.fraction() < 0 );
+            progress.setValue( first.fraction() < 0 ? 0 : (int) Math.round( first.fraction() * 1000 ) );
+        }
+        queued.setText( status.size() > 1 ? "+" + ( status.size() - 1 ) + " queued" : "" );
+    }
+}
@@ -0,0 +1,289 @@
+package de.codesourcery.arduino;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import javax.swing.SwingUtilities;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Runs long operations off the event dispatch thread.
+ *
+ * Tasks wait in one queue ordered by priority, then by submission order,
+ * and each runs on its own virtual thread. At most {@code parallelism}
+ * tasks run at the same time, so a burst of background work cannot delay
+ * an interactive task by more than the time it takes one of them to finish.
+ *
+ * Every task gets a {@link CancellationToken} and may report progress.
+ * Results, failures and status changes are delivered on the event dispatch
+ * thread, progress updates arriving faster than the EDT handles them are
+ * coalesced.
+ */
+public final class TaskService
+{
+    public enum Priority
+    {
+        // the user is waiting for the result
+        INTERACTIVE,
+        // user-initiated but the editor stays usable meanwhile (export, save)
+        NORMAL,
+        // nobody is waiting (prefetching, autosave)
+        BACKGROUND
+    }
+
+    @FunctionalInterface
+    public interface Task<T>
+    {
+        T run(Progress progress) throws Exception;
+    }
+
+    public interface Progress
+    {
+        CancellationToken getToken();
+
+        // total < 0 if unknown
+        void update(long done, long total);
+    }
+
+    /**
+     * @param fraction progress between 0 and 1 or -1 if unknown
+     */
+    public record Status(String name, Priority priority, boolean running, double fraction, CancellationToken token) {}
+
+    public record Handle<T>(String name, CancellationToken token, CompletableFuture<T> result)
+    {
+        public void cancel() {
+            token.cancel();
+        }
+    }
+
+    private final class Job<T> implements Progress
+    {
+        final String name;
+        final Priority priority;
+        final long sequence = sequences.incrementAndGet();
+        final Task<T> task;
+        final Runnable onFinished;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        final CancellationToken token = new CancellationToken( this::cancelled );
+        volatile boolean running;
+        volatile long done;
+        volatile long total = -1;
+
+        Job(String name, Priority priority, Task<T> task, Runnable onFinished)
+        {
+            this.name = name;
+            this.priority = priority;
+            this.task = task;
+            this.onFinished = onFinished;
+        }
+
+        @Override
+        public CancellationToken getToken() {
+            return token;
+        }
+
+        @Override
+        public void update(long done, long total)
+        {
+            this.done = done;
+            this.total = total;
+            publish();
+        }
+
+        // queued jobs are dropped right away, running ones when they next check the token
+        private void cancelled()
+        {
+            if ( queue.remove( this ) ) {
+                finish();
+            }
+            future.cancel( false );
+        }
+
+        void run()
+        {
+            if ( token.isCancelled() ) {
+                finish();
+                return;
+            }
+            running = true;
+            publish();
+            try
+            {
+                final T result = task.run( this );
+                token.throwIfCancelled();
+                future.complete( result );
+            }
+            catch( Throwable t )
+            {
+                if ( token.isCancelled() ) {
+                    future.cancel( false );
+                } else {
+                    future.completeExceptionally( t );
+                }
+            }
+            finally {
+                finish();
+            }
+        }
+
+        private void finish()
+        {
+            try {
+                onFinished.run();
+            }
+            finally
+            {
+                jobs.remove( this );
+                publish();
+            }
+        }
+
+        Status getStatus()
+        {
+            final long t = total;
+            final double fraction = t > 0 ? Math.min( 1, done / (double) t ) : -1;
+            return new Status( name, priority, running, fraction, token );
+        }
+    }
+
+    private static final Comparator<Job<?>> ORDER = Comparator.<Job<?>,Priority>comparing( j -> j.priority )
+        .thenComparingLong( j -> j.sequence );
+
+    private final AtomicLong sequences = new AtomicLong();
+    private final PriorityBlockingQueue<Job<?>> queue = new PriorityBlockingQueue<>( 16, ORDER );
+    // queued and running
+    private final Set<Job<?>> jobs = ConcurrentHashMap.newKeySet();
+    private final Semaphore permits;
+    private final Thread dispatcher;
+
+    // only accessed on the EDT
+    private final List<Consumer<List<Status>>> listeners = new ArrayList<>();
+    private final AtomicBoolean publishPending = new AtomicBoolean();
+
+    public TaskService() {
+        this( Math.max( 2, Runtime.getRuntime().availableProcessors() ) );
+    }
+
+    public TaskService(int parallelism)
+    {
+        Validate.isTrue( parallelism > 0, "parallelism must be > 0" );
+        this.permits = new Semaphore( parallelism );
+        this.dispatcher = Thread.ofPlatform().daemon().name( "task-dispatcher" ).start( this::dispatch );
+    }
+
+    private void dispatch()
+    {
+        try
+        {
+            while ( true )
+            {
+                permits.acquire();
+                final Job<?> job = queue.take();
+                Thread.ofVirtual().name( "task-" + job.name ).start( () -> {
+                    try {
+                        job.run();
+                    } finally {
+                        permits.release();
+                    }
+                } );
+            }
+        }
+        catch( InterruptedException e ) {
+            // shut down
+        }
+    }
+
+    /**
+     * Queues a task.
+     *
+     * @param onSuccess called on the EDT with the result unless the task was cancelled
+     * @param onFailure called on the EDT with the cause unless the task was cancelled
+     */
+    public <T> Handle<T> submit(String name, Priority priority, Task<T> task, Consumer<? super T> onSuccess, Consumer<Throwable> onFailure) {
+        return submit( name, priority, task, onSuccess, onFailure, () -> {} );
+    }
+
+    /**
+     * Queues a task that uses resources which must be released however it ends.
+     *
+     * @param onFinished called exactly once after the task has run or, when cancelled
+     *                   while still queued, was dropped; on the thread that ran or cancelled it
+     */
+    public <T> Handle<T> submit(String name, Priority priority, Task<T> task, Consumer<? super T> onSuccess, Consumer<Throwable> onFailure,
+                                Runnable onFinished)
+    {
+        Validate.notBlank( name, "name must not be null or blank" );
+        Validate.notNull( priority, "priority must not be null" );
+        Validate.notNull( task, "task must not be null" );
+        Validate.notNull( onSuccess, "onSuccess must not be null" );
+        Validate.notNull( onFailure, "onFailure must not be null" );
+        Validate.notNull( onFinished, "onFinished must not be null" );
+        Validate.validState( dispatcher.isAlive(), "Task service has been shut down" );
+
+        final Job<T> job = new Job<>( name, priority, task, onFinished );
+        job.future.whenComplete( (result, error) -> SwingUtilities.invokeLater( () -> {
+            if ( job.token.isCancelled() || error instanceof CancellationException ) {
+                return;
+            }
+            if ( error != null ) {
+                onFailure.accept( error instanceof CompletionException && error.getCause() != null ? error.getCause() : error );
+            } else {
+                onSuccess.accept( result );
+            }
+        } ) );
+        jobs.add( job );
+        queue.add( job );
+        publish();
+        return new Handle<>( name, job.token, job.future );
+    }
+
+    public <T> Handle<T> submit(String name, Priority priority, Task<T> task, Consumer<? super T> onSuccess) {
+        return submit( name, priority, task, onSuccess, Throwable::printStackTrace );
+    }
+
+    // queued and running tasks, running ones first, then in the order they will run
+    public List<Status> getStatus()
+    {
+        return jobs.stream()
+            .sorted( Comparator.<Job<?>,Boolean>comparing( j -> ! j.running ).thenComparing( ORDER ) )
+            .map( Job::getStatus )
+            .toList();
+    }
+
+    // listener is called on the EDT whenever a task is queued, starts, makes progress or finishes
+    public void addStatusListener(Consumer<List<Status>> listener)
+    {
+        Validate.notNull( listener, "listener must not be null" );
+        listeners.add( listener );
+    }
+
+    private void publish()
+    {
+        if ( publishPending.compareAndSet( false, true ) )
+        {
+            SwingUtilities.invokeLater( () -> {
+                publishPending.set( false );
+                final List<Status> status = getStatus();
+                listeners.forEach( l -> l.accept( status ) );
+            } );
+        }
+    }
+
+    // cancels all tasks, running ones are not waited for
+    public void shutdown()
+    {
+        dispatcher.interrupt();
+        List.copyOf( jobs ).forEach( j -> j.token.cancel() );
+    }
+}
@@ -0,0 +1,186 @@
+package de.codesourcery.arduino;
+
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import javax.swing.SwingUtilities;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Rasterizes frame thumbnails on background threads.
+ *
+ * All methods must be called on the EDT. Finished thumbnails are handed to
+ * the listener on the EDT as well, so the cache and the pending requests
+ * are only ever touched by a single thread. A cached thumbnail is current
+ * as long as the frame's version did not change.
+ */
+final class ThumbnailRenderer
+{
+    private static final int ON = 0xffffff;
+    private static final int OFF = 0x000000;
+
+    private record Thumbnail(int version, BufferedImage image) {}
+
+    private record Request(int version, Future<?> future) {}
+
+    private final Map<Image,Thumbnail> cache;
+    private final Map<Image,Request> pending = new IdentityHashMap<>();
+    private final Consumer<Image> listener;
+    private final ExecutorService workers;
+    // bumped by clear() so late results for dropped requests are ignored
+    private int generation;
+
+    public ThumbnailRenderer(int capacity, Consumer<Image> listener)
+    {
+        Validate.isTrue( capacity > 0, "capacity must be > 0" );
+        Validate.notNull( listener, "listener must not be null" );
+        this.listener = listener;
+        // frames have identity semantics, so plain hashCode/equals is fine here
+        this.cache = new LinkedHashMap<>( 16, 0.75f, true )
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Image,Thumbnail> eldest) {
+                return size() > capacity;
+            }
+        };
+        final AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool( Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 ), r -> {
+            final Thread t = new Thread( r, "thumbnail-" + count.incrementAndGet() );
+            t.setDaemon( true );
+            t.setPriority( Thread.NORM_PRIORITY - 1 );
+            return t;
+        } );
+    }
+
+    /**
+     * Returns the latest thumbnail of a frame, possibly outdated.
+     *
+     * @return thumbnail or <code>null</code> if none was rendered yet
+     * @see #isCurrent(Image)
+     */
+    public BufferedImage get(Image frame)
+    {
+        final Thumbnail t = cache.get( frame );
+        return t == null ? null : t.image();
+    }
+
+    public boolean isCurrent(Image frame)
+    {
+        final Thumbnail t = cache.get( frame );
+        return t != null && t.version() == frame.getVersion();
+    }
+
+    /**
+     * Makes sure up-to-date thumbnails of the given frames get rendered and
+     * cancels all pending requests for frames not in the list.
+     *
+     * Frames are queued in list order, so callers should pass the visible
+     * ones first.
+     */
+    public void retain(List<Image> frames)
+    {
+        final Set<Image> wanted = Collections.newSetFromMap( new IdentityHashMap<>() );
+        wanted.addAll( frames );
+        for ( final var it = pending.entrySet().iterator(); it.hasNext(); )
+        {
+            final Map.Entry<Image,Request> e = it.next();
+            if ( ! wanted.contains( e.getKey() ) || e.getValue().version() != e.getKey().getVersion() )
+            {
+                e.getValue().future().cancel( false );
+                it.remove();
+            }
+        }
+        for ( final Image frame : frames )
+        {
+            if ( ! pending.containsKey( frame ) && ! isCurrent( frame ) ) {
+                submit( frame );
+            }
+        }
+    }
+
+    private void submit(Image frame)
+    {
+        final int version = frame.getVersion();
+        final int gen = generation;
+        final Future<?> future = workers.submit( () -> {
+            final BufferedImage image = render( frame );
+            SwingUtilities.invokeLater( () -> {
+                if ( gen == generation ) {
+                    published( frame, version, image );
+                }
+            } );
+        } );
+        pending.put( frame, new Request( version, future ) );
+    }
+
+    private void published(Image frame, int version, BufferedImage image)
+    {
+        final Request r = pending.get( frame );
+        if ( r != null && r.version() == version ) {
+            pending.remove( frame );
+        }
+        // pixels may have changed while rendering, the next paint will request a new one
+        final Thumbnail existing = cache.get( frame );
+        if ( existing == null || existing.version() != frame.getVersion() )
+        {
+            cache.put( frame, new Thumbnail( version, image ) );
+            listener.accept( frame );
+        }
+    }
+
+    // drops all thumbnails and pending requests, e.g. when the project changed
+    public void clear()
+    {
+        pending.values().forEach( r -> r.future().cancel( false ) );
+        pending.clear();
+        cache.clear();
+        generation++;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public void dispose()
+    {
+        clear();
+        workers.shutdownNow();
+    }
+
+    static BufferedImage render(Image frame)
+    {
+        final int w = frame.getWidth();
+        final int h = frame.getHeight();
+        final int[] argb = new int[w * h];
+        if ( frame.getBitsPerPixel() > 1 )
+        {
+            for ( int y = 0, ptr = 0; y < h; y++ ) {
+                for ( int x = 0; x < w; x++ ) {
+                    argb[ptr++] = frame.getColor( frame.getLevel( x, y ) ).getRGB();
+                }
+            }
+        }
+        else
+        {
+            for ( int x = 0; x < w; x++ )
+            {
+                final long column = frame.getColumn( x );
+                for ( int y = 0, ptr = x; y < h; y++, ptr += w ) {
+                    argb[ptr] = ( column & ( 1L << y ) ) != 0 ? ON : OFF;
+                }
+            }
+        }
+        final BufferedImage result = new BufferedImage( w, h, BufferedImage.TYPE_INT_RGB );
+        result.setRGB( 0, 0, w, h, argb, 0, w );
+        return result;
+    }
+}
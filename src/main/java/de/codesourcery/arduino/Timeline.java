@@ -0,0 +1,362 @@
+package de.codesourcery.arduino;
+
+import java.awt.Point;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Animation described by sprites moving over a background instead of by
+ * stored frames.
+ *
+ * Each track moves one sprite (a {@link Clip}) along its keyframes.
+ * Positions between two keyframes are interpolated linearly, a sprite is
+ * only shown from its first to its last keyframe. Frames are synthesized
+ * on demand: {@link #getFrame(int)} memoizes a bounded number of them for
+ * the editor, {@link #generate(MarqueeGenerator.FrameSink)} streams all of
+ * them through a single scratch frame. Memory use therefore depends on the
+ * number of tracks and keyframes, not on the number of frames.
+ */
+public final class Timeline
+{
+    public static final int DEFAULT_CACHE_SIZE = 64;
+
+    public record Keyframe(int frame, int x, int y)
+    {
+        public Keyframe {
+            Validate.isTrue( frame >= 0, "frame must be >= 0" );
+        }
+    }
+
+    // a sprite and where it is in which frame, immutable
+    public static final class Track
+    {
+        private final Clip sprite;
+        private final List<Keyframe> keyframes;
+
+        public Track(Clip sprite, List<Keyframe> keyframes)
+        {
+            Validate.notNull( sprite, "sprite must not be null" );
+            Validate.isTrue( ! sprite.isEmpty(), "sprite must not be empty" );
+            Validate.notEmpty( keyframes, "keyframes must not be null or empty" );
+            final List<Keyframe> sorted = new ArrayList<>( keyframes );
+            sorted.sort( Comparator.comparingInt( Keyframe::frame ) );
+            for ( int i = 1; i < sorted.size(); i++ ) {
+                Validate.isTrue( sorted.get( i - 1 ).frame() != sorted.get( i ).frame(), "Two keyframes for frame %d", sorted.get( i ).frame() );
+            }
+            this.sprite = sprite;
+            this.keyframes = Collections.unmodifiableList( sorted );
+        }
+
+        public Clip getSprite() {
+            return sprite;
+        }
+
+        // sorted by frame
+        public List<Keyframe> getKeyframes() {
+            return keyframes;
+        }
+
+        public int getFirstFrame() {
+            return keyframes.getFirst().frame();
+        }
+
+        public int getLastFrame() {
+            return keyframes.getLast().frame();
+        }
+
+        // top-left corner of the sprite or null if it is not shown in that frame
+        public Point getPosition(int frame)
+        {
+            if ( frame < getFirstFrame() || frame > getLastFrame() ) {
+                return null;
+            }
+            int lo = 0, hi = keyframes.size() - 1;
+            // find the last keyframe at or before the frame
+            while ( lo < hi )
+            {
+                final int mid = ( lo + hi + 1 ) >>> 1;
+                if ( keyframes.get( mid ).frame() <= frame ) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            final Keyframe from = keyframes.get( lo );
+            if ( from.frame() == frame || lo == keyframes.size() - 1 ) {
+                return new Point( from.x(), from.y() );
+            }
+            final Keyframe to = keyframes.get( lo + 1 );
+            final double t = ( frame - from.frame() ) / (double) ( to.frame() - from.frame() );
+            return new Point( (int) Math.round( from.x() + t * ( to.x() - from.x() ) ),
+                              (int) Math.round( from.y() + t * ( to.y() - from.y() ) ) );
+        }
+
+        // e.g. "0:-8:0 31:32:0"
+        String toDataString()
+        {
+            final StringBuilder b = new StringBuilder();
+            keyframes.forEach( k -> b.append( b.isEmpty() ? "" : " " ).append( k.frame() ).append( ':' ).append( k.x() ).append( ':' ).append( k.y() ) );
+            return b.toString();
+        }
+
+        static Track fromDataString(String s, Clip sprite)
+        {
+            Validate.notBlank( s, "keyframes must not be null or blank" );
+            final List<Keyframe> keyframes = new ArrayList<>();
+            for ( final String key : StringUtils.split( s.trim(), " " ) )
+            {
+                final String[] parts = key.split( ":" );
+                Validate.isTrue( parts.length == 3, "Invalid keyframe: %s", key );
+                keyframes.add( new Keyframe( Integer.parseInt( parts[0] ), Integer.parseInt( parts[1] ), Integer.parseInt( parts[2] ) ) );
+            }
+            return new Track( sprite, keyframes );
+        }
+    }
+
+    private final FrameStore store;
+    private final int bitsPerPixel;
+    private final Image background;
+    private final List<Track> tracks = new ArrayList<>();
+    private int frameCount;
+    // incremented on every change
+    private int version;
+
+    // synthesized frames, least recently used first
+    private final Map<Integer,Image> cache;
+
+    public Timeline(FrameStore store, int bitsPerPixel, int frameCount) {
+        this( store, bitsPerPixel, frameCount, DEFAULT_CACHE_SIZE );
+    }
+
+    public Timeline(FrameStore store, int bitsPerPixel, int frameCount, int cacheSize)
+    {
+        Validate.notNull( store, "store must not be null" );
+        Validate.isTrue( frameCount > 0, "frame count must be > 0" );
+        Validate.isTrue( cacheSize > 0, "cache size must be > 0" );
+        this.store = store;
+        this.bitsPerPixel = bitsPerPixel;
+        this.background = new Image( store, bitsPerPixel );
+        this.frameCount = frameCount;
+        this.cache = new LinkedHashMap<>( 16, 0.75f, true )
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer,Image> eldest)
+            {
+                if ( size() > cacheSize )
+                {
+                    eldest.getValue().release();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public FrameStore getStore() {
+        return store;
+    }
+
+    public int getBitsPerPixel() {
+        return bitsPerPixel;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    public void setFrameCount(int frameCount)
+    {
+        Validate.isTrue( frameCount > 0, "frame count must be > 0" );
+        if ( this.frameCount != frameCount )
+        {
+            this.frameCount = frameCount;
+            invalidate();
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    // pixels behind all sprites, blank unless set
+    public void setBackground(Image frame)
+    {
+        Validate.notNull( frame, "frame must not be null" );
+        if ( background.copyFrom( frame ) ) {
+            invalidate();
+        }
+    }
+
+    public List<Track> getTracks() {
+        return Collections.unmodifiableList( tracks );
+    }
+
+    // tracks added later are drawn on top, the timeline grows to include the track's last keyframe
+    public void addTrack(Track track)
+    {
+        Validate.notNull( track, "track must not be null" );
+        Validate.isTrue( track.getSprite().getBitsPerPixel() == bitsPerPixel, "Sprite has %d bits per pixel but the timeline %d",
+            track.getSprite().getBitsPerPixel(), bitsPerPixel );
+        tracks.add( track );
+        frameCount = Math.max( frameCount, track.getLastFrame() + 1 );
+        invalidate();
+    }
+
+    public void removeTrack(int idx)
+    {
+        Objects.checkIndex( idx, tracks.size() );
+        tracks.remove( idx );
+        invalidate();
+    }
+
+    // discards all memoized frames
+    private synchronized void invalidate()
+    {
+        version++;
+        cache.values().forEach( Image::release );
+        cache.clear();
+    }
+
+    // replaces all pixels of target with the given frame
+    public void render(int frame, Image target)
+    {
+        Objects.checkIndex( frame, frameCount );
+        Validate.isTrue( target.getStore() == store && target.getBitsPerPixel() == bitsPerPixel, "Target does not match the timeline" );
+        target.copyFrom( background );
+        for ( final Track track : tracks )
+        {
+            final Point p = track.getPosition( frame );
+            if ( p != null ) {
+                track.getSprite().paste( target, p.x, p.y );
+            }
+        }
+    }
+
+    /**
+     * Returns a memoized frame for displaying it. The frame must not be
+     * changed and is released once it drops out of the cache, so copy it
+     * if it is needed for longer than painting it.
+     */
+    public synchronized Image getFrame(int frame)
+    {
+        Image result = cache.get( frame );
+        if ( result == null )
+        {
+            result = createFrame( frame );
+            cache.put( frame, result );
+        }
+        return result;
+    }
+
+    // a new frame owned by the caller
+    public Image createFrame(int frame)
+    {
+        final Image result = new Image( store, bitsPerPixel );
+        render( frame, result );
+        result.setDirty( false );
+        return result;
+    }
+
+    // streams all frames in order, pixels lit at any level as in Image#getWord(int)
+    public void generate(MarqueeGenerator.FrameSink sink) throws IOException
+    {
+        Validate.notNull( sink, "sink must not be null" );
+        final Image scratch = new Image( store, bitsPerPixel );
+        try
+        {
+            final long[] words = new long[store.wordsPerFrame];
+            for ( int frame = 0; frame < frameCount; frame++ )
+            {
+                render( frame, scratch );
+                for ( int i = 0; i < words.length; i++ ) {
+                    words[i] = scratch.getWord( i );
+                }
+                sink.accept( words );
+            }
+        }
+        finally {
+            scratch.release();
+        }
+    }
+
+    // all frames as images, only sensible for short timelines
+    public List<Image> toImages()
+    {
+        final List<Image> result = new ArrayList<>( frameCount );
+        for ( int frame = 0; frame < frameCount; frame++ ) {
+            result.add( createFrame( frame ) );
+        }
+        return result;
+    }
+
+    // copy sharing the immutable tracks, for exporting on another thread
+    public Timeline createCopy()
+    {
+        final Timeline copy = new Timeline( store, bitsPerPixel, frameCount );
+        copy.background.copyFrom( background );
+        copy.tracks.addAll( tracks );
+        return copy;
+    }
+
+    // returns the background and all memoized frames to the store
+    public void dispose()
+    {
+        invalidate();
+        background.release();
+    }
+
+    void store(Properties props, String prefix)
+    {
+        props.setProperty( prefix + "frames", Integer.toString( frameCount ) );
+        props.setProperty( prefix + "background", background.toDataString() );
+        for ( int i = 0; i < tracks.size(); i++ )
+        {
+            props.setProperty( prefix + "track." + i, tracks.get( i ).toDataString() );
+            props.setProperty( prefix + "track." + i + ".sprite", tracks.get( i ).getSprite().toDataString() );
+        }
+    }
+
+    // null if there is no timeline with this prefix
+    static Timeline load(Properties props, String prefix, FrameStore store, int bitsPerPixel) throws IOException
+    {
+        final String frames = props.getProperty( prefix + "frames" );
+        if ( frames == null ) {
+            return null;
+        }
+        try
+        {
+            final Timeline result = new Timeline( store, bitsPerPixel, Integer.parseInt( frames.trim() ) );
+            final String background = props.getProperty( prefix + "background" );
+            if ( background != null )
+            {
+                final Image pixels = Image.fromDataString( background, store );
+                try {
+                    result.setBackground( pixels );
+                } finally {
+                    pixels.release();
+                }
+            }
+            for ( int i = 0; props.containsKey( prefix + "track." + i ); i++ )
+            {
+                final String sprite = props.getProperty( prefix + "track." + i + ".sprite" );
+                if ( sprite == null ) {
+                    throw new IOException( "Missing sprite of " + prefix + "track." + i );
+                }
+                result.addTrack( Track.fromDataString( props.getProperty( prefix + "track." + i ), Clip.fromDataString( sprite ) ) );
+            }
+            return result;
+        }
+        catch( IllegalArgumentException e ) {
+            throw new IOException( "Invalid timeline: " + e.getMessage(), e );
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package de.codesourcery.arduino;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.Timer;
+import org.apache.commons.lang3.Validate;
+
+/**
+ * Plays and scrubs through a {@link Timeline}.
+ *
+ * Frames come from the timeline's frame cache, so only the frames around
+ * the current position exist at any time, no matter how long the timeline is.
+ */
+final class TimelinePreview extends JPanel
+{
+    private final Timeline timeline;
+    private final JSlider slider;
+    private final Timer timer;
+    private final JComponent canvas = new JComponent()
+    {
+        @Override
+        protected void paintComponent(Graphics g)
+        {
+            final Image frame = timeline.getFrame( Math.min( slider.getValue(), timeline.getFrameCount() - 1 ) );
+            final int size = Math.max( 1, Math.min( getWidth() / frame.getWidth(), getHeight() / frame.getHeight() ) );
+            g.setColor( Color.DARK_GRAY );
+            g.fillRect( 0, 0, getWidth(), getHeight() );
+            for ( int y = 0; y < frame.getHeight(); y++ )
+            {
+                for ( int x = 0; x < frame.getWidth(); x++ )
+                {
+                    g.setColor( frame.getColor( frame.getLevel( x, y ) ) );
+                    g.fillRect( x * size, y * size, size - 1, size - 1 );
+                }
+            }
+        }
+    };
+
+    public TimelinePreview(Timeline timeline, int frameMillis)
+    {
+        super( new BorderLayout() );
+        Validate.notNull( timeline, "timeline must not be null" );
+        this.timeline = timeline;
+        this.slider = new JSlider( 0, timeline.getFrameCount() - 1, 0 );
+        this.timer = new Timer( frameMillis, ev -> slider.setValue( ( slider.getValue() + 1 ) % timeline.getFrameCount() ) );
+
+        final JButton play = new JButton( "Play" );
+        play.addActionListener( ev -> {
+            if ( timer.isRunning() ) {
+                timer.stop();
+            } else {
+                timer.start();
+            }
+            play.setText( timer.isRunning() ? "Stop" : "Play" );
+        } );
+        slider.addChangeListener( ev -> canvas.repaint() );
+        canvas.setPreferredSize( new Dimension( Math.max( 256, timeline.getStore().width * 8 ), Math.max( 128, timeline.getStore().height * 8 ) ) );
+
+        final JPanel controls = new JPanel( new BorderLayout() );
+        controls.add( play, BorderLayout.WEST );
+        controls.add( slider, BorderLayout.CENTER );
+        add( canvas, BorderLayout.CENTER );
+        add( controls, BorderLayout.SOUTH );
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+}
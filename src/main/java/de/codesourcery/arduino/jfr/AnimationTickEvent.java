@@ -0,0 +1,23 @@
+package de.codesourcery.arduino.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("de.codesourcery.arduino.AnimationTick")
+@Label("Animation Tick")
+@Category({ Subsystems.ROOT, Subsystems.PLAYBACK })
+public final class AnimationTickEvent extends jdk.jfr.Event
+{
+    @Label("Frame")
+    public int frame;
+
+    @Label("Period")
+    @Timespan(Timespan.MILLISECONDS)
+    public long periodMillis;
+
+    @Label("Lateness")
+    @Timespan(Timespan.NANOSECONDS)
+    public long latenessNanos;
+}
@@ -0,0 +1,17 @@
+package de.codesourcery.arduino.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("de.codesourcery.arduino.EventDispatch")
+@Label("Event Bus Dispatch")
+@Category({ Subsystems.ROOT, Subsystems.EVENT_BUS })
+public final class EventDispatchEvent extends jdk.jfr.Event
+{
+    @Label("Event Type")
+    public String eventType;
+
+    @Label("Listeners")
+    public int listenerCount;
+}
@@ -0,0 +1,29 @@
+package de.codesourcery.arduino.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("de.codesourcery.arduino.Paint")
+@Label("Paint")
+@Category({ Subsystems.ROOT, Subsystems.RENDERING })
+public final class PaintEvent extends jdk.jfr.Event
+{
+    public static final String CANVAS = "canvas";
+    public static final String FILMSTRIP = "filmstrip";
+
+    @Label("Component")
+    public String component;
+
+    @Label("Painted Frames")
+    public int paintedFrames;
+
+    @Label("Total Frames")
+    public int totalFrames;
+
+    @Label("Clip Width")
+    public int clipWidth;
+
+    @Label("Clip Height")
+    public int clipHeight;
+}
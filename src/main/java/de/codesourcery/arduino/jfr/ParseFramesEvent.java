@@ -0,0 +1,21 @@
+package de.codesourcery.arduino.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("de.codesourcery.arduino.ParseFrames")
+@Label("Parse Frames")
+@Description("Batch of Image.fromDataString() calls")
+@Category({ Subsystems.ROOT, Subsystems.PERSISTENCE })
+public final class ParseFramesEvent extends jdk.jfr.Event
+{
+    @Label("Frames")
+    public int frameCount;
+
+    @Label("Characters")
+    @DataAmount(DataAmount.BYTES)
+    public long characters;
+}
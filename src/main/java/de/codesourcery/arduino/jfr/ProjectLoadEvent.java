@@ -0,0 +1,17 @@
+package de.codesourcery.arduino.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("de.codesourcery.arduino.ProjectLoad")
+@Label("Project Load")
+@Category({ Subsystems.ROOT, Subsystems.PERSISTENCE })
+public final class ProjectLoadEvent extends jdk.jfr.Event
+{
+    @Label("File")
+    public String file;
+
+    @Label("Frames")
+    public int frameCount;
+}
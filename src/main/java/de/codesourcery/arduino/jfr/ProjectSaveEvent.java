@@ -0,0 +1,17 @@
+package de.codesourcery.arduino.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("de.codesourcery.arduino.ProjectSave")
+@Label("Project Save")
+@Category({ Subsystems.ROOT, Subsystems.PERSISTENCE })
+public final class ProjectSaveEvent extends jdk.jfr.Event
+{
+    @Label("File")
+    public String file;
+
+    @Label("Frames")
+    public int frameCount;
+}
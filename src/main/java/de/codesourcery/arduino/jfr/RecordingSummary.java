@@ -0,0 +1,156 @@
+package de.codesourcery.arduino.jfr;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Summarizes a Flight Recorder recording by subsystem.
+ *
+ * For each of the editor's custom events this prints count, total time and
+ * duration percentiles, grouped by subsystem and by the most telling
+ * field of the event (event type for the event bus, component for paints).
+ * Animation ticks additionally report how late the timer fired. Garbage
+ * collections are included to tell GC stalls from slow code.
+ *
+ * Usage: RecordingSummary &lt;recording.jfr&gt;
+ */
+public final class RecordingSummary
+{
+    private static final String PREFIX = "de.codesourcery.arduino.";
+
+    // durations of one group in nanoseconds
+    private static final class Samples
+    {
+        private long[] values = new long[64];
+        private int count;
+
+        void add(long value)
+        {
+            if ( count == values.length ) {
+                values = Arrays.copyOf( values, count * 2 );
+            }
+            values[count++] = value;
+        }
+
+        void print(PrintStream out, String label)
+        {
+            final long[] sorted = Arrays.copyOf( values, count );
+            Arrays.sort( sorted );
+            final long total = Arrays.stream( sorted ).sum();
+            out.printf( "  %-40s %8d %12s %10s %10s %10s %10s%n", label, count, millis( total ),
+                millis( percentile( sorted, 50 ) ), millis( percentile( sorted, 90 ) ),
+                millis( percentile( sorted, 99 ) ), millis( sorted[sorted.length - 1] ) );
+        }
+
+        private static long percentile(long[] sorted, int p) {
+            return sorted[Math.min( sorted.length - 1, (int) ( (long) sorted.length * p / 100 ) )];
+        }
+
+        private static String millis(long nanos) {
+            return String.format( "%.3f", nanos / 1_000_000d );
+        }
+    }
+
+    private final Map<String,Map<String,Samples>> durations = new TreeMap<>();
+    private final Map<String,Samples> lateness = new TreeMap<>();
+
+    public static void main(String[] args) throws IOException
+    {
+        if ( args.length != 1 )
+        {
+            System.err.println( "Usage: RecordingSummary <recording.jfr>" );
+            System.exit( 1 );
+        }
+        final RecordingSummary summary = new RecordingSummary();
+        summary.read( Path.of( args[0] ) );
+        summary.print( System.out );
+    }
+
+    public void read(Path recording) throws IOException
+    {
+        try ( RecordingFile file = new RecordingFile( recording ) )
+        {
+            while ( file.hasMoreEvents() ) {
+                add( file.readEvent() );
+            }
+        }
+    }
+
+    private void add(RecordedEvent event)
+    {
+        final String type = event.getEventType().getName();
+        final long nanos = event.getDuration().toNanos();
+        if ( type.equals( "jdk.GarbageCollection" ) )
+        {
+            group( "GC", event.getString( "name" ) ).add( nanos );
+            return;
+        }
+        if ( ! type.startsWith( PREFIX ) ) {
+            return;
+        }
+        final List<String> category = event.getEventType().getCategoryNames();
+        final String subsystem = category.size() > 1 ? category.get( 1 ) : category.getFirst();
+        final String name = type.substring( PREFIX.length() );
+        final String label = switch ( name )
+        {
+            case "EventDispatch" -> name + " " + simpleName( event.getString( "eventType" ) );
+            case "Paint" -> name + " " + event.getString( "component" );
+            default -> name;
+        };
+        group( subsystem, label ).add( nanos );
+        if ( name.equals( "AnimationTick" ) ) {
+            lateness.computeIfAbsent( "AnimationTick lateness", k -> new Samples() ).add( event.getLong( "latenessNanos" ) );
+        }
+    }
+
+    private Samples group(String subsystem, String label) {
+        return durations.computeIfAbsent( subsystem, k -> new TreeMap<>() ).computeIfAbsent( label, k -> new Samples() );
+    }
+
+    private static String simpleName(String className)
+    {
+        if ( className == null ) {
+            return "?";
+        }
+        return className.substring( className.lastIndexOf( '.' ) + 1 );
+    }
+
+    public void print(PrintStream out)
+    {
+        if ( durations.isEmpty() )
+        {
+            out.println( "No events recorded, was the recording started with the sprite-edit.jfc settings?" );
+            return;
+        }
+        final List<String> subsystems = new ArrayList<>( durations.keySet() );
+        out.printf( "  %-40s %8s %12s %10s %10s %10s %10s%n", "event", "count", "total ms", "p50 ms", "p90 ms", "p99 ms", "max ms" );
+        for ( final String subsystem : subsystems )
+        {
+            out.println( subsystem );
+            durations.get( subsystem ).forEach( (label, samples) -> samples.print( out, label ) );
+            if ( subsystem.equals( Subsystems.PLAYBACK ) ) {
+                lateness.forEach( (label, samples) -> samples.print( out, label ) );
+            }
+        }
+    }
+
+    // for callers that want the numbers instead of a table
+    public Duration getTotal(String subsystem)
+    {
+        final Map<String,Samples> groups = durations.getOrDefault( subsystem, Map.of() );
+        long total = 0;
+        for ( final Samples s : groups.values() ) {
+            total += Arrays.stream( s.values, 0, s.count ).sum();
+        }
+        return Duration.ofNanos( total );
+    }
+}
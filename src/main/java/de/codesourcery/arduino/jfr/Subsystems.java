@@ -0,0 +1,21 @@
+package de.codesourcery.arduino.jfr;
+
+/**
+ * Flight Recorder categories of the editor's custom events.
+ *
+ * Record with <code>-XX:StartFlightRecording:settings=sprite-edit.jfc</code>
+ * (the profile is in src/main/resources) and summarize with
+ * {@link RecordingSummary}.
+ */
+public final class Subsystems
+{
+    public static final String ROOT = "Sprite Edit";
+
+    public static final String PERSISTENCE = "Persistence";
+    public static final String EVENT_BUS = "Event Bus";
+    public static final String RENDERING = "Rendering";
+    public static final String PLAYBACK = "Playback";
+
+    private Subsystems() {
+    }
+}
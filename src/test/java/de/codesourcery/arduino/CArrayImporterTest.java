@@ -0,0 +1,117 @@
+package de.codesourcery.arduino;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+class CArrayImporterTest
+{
+    private static final int FRAMES = 5;
+
+    private static final int[][] GRIDS = { { 1, 1 }, { 4, 1 }, { 2, 2 }, { 3, 3 }, { 8, 1 }, { 1, 8 }, { 8, 8 } };
+
+    private static Stream<Arguments> layouts() {
+        return Stream.of( GRIDS ).flatMap( g -> IntStream.rangeClosed( 1, 3 ).mapToObj( bits -> Arguments.of( g[0], g[1], bits ) ) );
+    }
+
+    // the deduplicating writer exports 1-bit frames only
+    private static Stream<Arguments> grids() {
+        return Stream.of( GRIDS ).map( g -> Arguments.of( g[0], g[1] ) );
+    }
+
+    // random pixels, the same ones on every run
+    private static List<Image> createFrames(DisplayLayout layout, int bitsPerPixel, int count)
+    {
+        final Random rnd = new Random( layout.getWidth() * 31L + layout.getHeight() * 7L + bitsPerPixel );
+        final FrameStore store = layout.getStore();
+        final List<Image> result = new ArrayList<>();
+        for ( int i = 0; i < count; i++ )
+        {
+            final Image frame = new Image( store, bitsPerPixel );
+            for ( int p = 0; p < bitsPerPixel; p++ )
+            {
+                for ( int w = 0; w < store.wordsPerFrame; w++ ) {
+                    frame.getPlane( p ).setWord( w, rnd.nextLong() & store.getValidMask( w ) );
+                }
+            }
+            result.add( frame );
+        }
+        return result;
+    }
+
+    private static void assertFrames(List<Image> expected, List<Image> actual)
+    {
+        assertEquals( expected.size(), actual.size() );
+        for ( int i = 0; i < expected.size(); i++ ) {
+            assertTrue( expected.get( i ).contentEquals( actual.get( i ) ), "frame " + i + " differs" );
+        }
+    }
+
+    private static Project importSingle(String source) throws Exception
+    {
+        final List<Project> projects = new CArrayImporter().parse( source );
+        assertEquals( 1, projects.size() );
+        return projects.getFirst();
+    }
+
+    @ParameterizedTest
+    @MethodSource( "layouts" )
+    void importsDataString(int modulesX, int modulesY, int bitsPerPixel) throws Exception
+    {
+        final DisplayLayout layout = DisplayLayout.of( modulesX, modulesY );
+        final Project project = new Project( "test", null, layout, createFrames( layout, bitsPerPixel, FRAMES ) );
+
+        final Project imported = importSingle( project.toDataString() );
+        assertEquals( layout, imported.getLayout() );
+        assertEquals( bitsPerPixel, imported.getBitsPerPixel() );
+        assertEquals( project.getExportOptions(), imported.getExportOptions() );
+        assertFrames( project.getImages(), imported.getImages() );
+    }
+
+    @Test
+    void importsRotatedChainWithExportOptions() throws Exception
+    {
+        final DisplayLayout layout = DisplayLayout.of( 2, 2, new int[] { 3, 2, 0, 1 },
+            new DisplayLayout.Rotation[] { DisplayLayout.Rotation.R0, DisplayLayout.Rotation.R90, DisplayLayout.Rotation.R180, DisplayLayout.Rotation.R270 } );
+        final Project project = new Project( "test", null, layout, createFrames( layout, 1, FRAMES ) );
+        project.setExportOptions( new ExportOptions( ExportOptions.Order.COLUMN_MAJOR, ExportOptions.BitOrder.LSB_FIRST,
+            DisplayLayout.Rotation.R90, true, false ) );
+
+        final Project imported = importSingle( project.toDataString() );
+        assertEquals( layout, imported.getLayout() );
+        assertEquals( project.getExportOptions(), imported.getExportOptions() );
+        assertFrames( project.getImages(), imported.getImages() );
+    }
+
+    @ParameterizedTest
+    @MethodSource( "grids" )
+    void importsDeduplicatedSequence(int modulesX, int modulesY) throws Exception
+    {
+        final DisplayLayout layout = DisplayLayout.of( modulesX, modulesY );
+        final List<Image> distinct = createFrames( layout, 1, 3 );
+        final List<Image> frames = List.of( distinct.get( 0 ), distinct.get( 1 ), distinct.get( 0 ), distinct.get( 2 ), distinct.get( 2 ), distinct.get( 1 ) );
+
+        final StringWriter out = new StringWriter();
+        try ( DeduplicatingFrameWriter writer = new DeduplicatingFrameWriter( out, layout, ExportOptions.defaults( layout ) ) )
+        {
+            for ( final Image frame : frames ) {
+                writer.add( frame );
+            }
+            assertEquals( 3, writer.getDistinctFrameCount() );
+        }
+
+        final Project imported = importSingle( out.toString() );
+        assertEquals( layout, imported.getLayout() );
+        assertFrames( frames, imported.getImages() );
+    }
+}
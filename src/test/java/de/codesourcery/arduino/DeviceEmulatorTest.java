@@ -0,0 +1,112 @@
+package de.codesourcery.arduino;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DeviceEmulatorTest
+{
+    private static final double EPSILON = 1e-9;
+
+    // 8 MHz SPI, 16 MHz MCU, 4 cycles per byte, 6 per latch, 12 to decode a byte
+    private static DeviceEmulator.Settings settings(DisplayLayout layout, boolean delta, int fps)
+    {
+        return new DeviceEmulator.Settings( 8_000_000, 16_000_000, layout.getModuleCount(), 4, 6, 12, delta, fps );
+    }
+
+    // the second frame differs from the first in a single register
+    private static Project createProject(DisplayLayout layout, int x, int y)
+    {
+        final Image first = new Image( layout.getStore() );
+        first.set( 0, 0, true );
+        final Image second = first.createCopy();
+        second.set( x, y, true );
+        return new Project( "test", null, layout, new ArrayList<>( List.of( first, second ) ) );
+    }
+
+    private static void assertFrame(DeviceEmulator.FrameStats stats, int writes, int bytes, double busMicros, double cpuMicros)
+    {
+        assertEquals( writes, stats.registerWrites() );
+        assertEquals( bytes, stats.bytes() );
+        assertEquals( busMicros, stats.busMicros(), EPSILON );
+        assertEquals( cpuMicros, stats.cpuMicros(), EPSILON );
+        assertEquals( 1_000_000d / ( busMicros + cpuMicros ), stats.maxFps(), EPSILON );
+    }
+
+    @Test
+    void singleModule()
+    {
+        // column bytes, (0,1) only changes column 0
+        final DisplayLayout layout = DisplayLayout.SINGLE;
+        final DeviceEmulator.Report report = new DeviceEmulator( settings( layout, false, 60 ) ).run( createProject( layout, 0, 1 ) );
+        // 8 writes * 2 bytes, 16 * 4 + 8 * 6 + 8 * 12 = 208 cycles
+        assertFrame( report.frames().get( 0 ), 8, 16, 16, 13 );
+        assertFrame( report.frames().get( 1 ), 8, 16, 16, 13 );
+        assertTrue( report.meetsTarget() );
+    }
+
+    @Test
+    void singleModuleDelta()
+    {
+        final DisplayLayout layout = DisplayLayout.SINGLE;
+        final DeviceEmulator.Report report = new DeviceEmulator( settings( layout, true, 60 ) ).run( createProject( layout, 0, 1 ) );
+        assertFrame( report.frames().get( 0 ), 8, 16, 16, 13 );
+        // 2 * 4 + 6 + 8 * 12 = 110 cycles
+        assertFrame( report.frames().get( 1 ), 1, 2, 2, 6.875 );
+        assertEquals( 0, report.worstFrame().frame() );
+    }
+
+    @Test
+    void chainOfFourModules()
+    {
+        // row registers, (12,3) only changes register 3 of the second module
+        final DisplayLayout layout = DisplayLayout.of( 4, 1 );
+        final DeviceEmulator.Report report = new DeviceEmulator( settings( layout, false, 60 ) ).run( createProject( layout, 12, 3 ) );
+        // every write shifts 2 bytes through 4 modules, 64 * 4 + 8 * 6 + 32 * 12 = 688 cycles
+        assertFrame( report.frames().get( 0 ), 8, 64, 64, 43 );
+        assertFrame( report.frames().get( 1 ), 8, 64, 64, 43 );
+        assertTrue( report.meetsTarget() );
+    }
+
+    @Test
+    void chainOfFourModulesDelta()
+    {
+        final DisplayLayout layout = DisplayLayout.of( 4, 1 );
+        final DeviceEmulator.Report report = new DeviceEmulator( settings( layout, true, 60 ) ).run( createProject( layout, 12, 3 ) );
+        assertFrame( report.frames().get( 0 ), 8, 64, 64, 43 );
+        // 8 * 4 + 6 + 32 * 12 = 422 cycles
+        assertFrame( report.frames().get( 1 ), 1, 8, 8, 26.375 );
+    }
+
+    @Test
+    void missesTarget()
+    {
+        final DisplayLayout layout = DisplayLayout.of( 4, 1 );
+        // 107 us per frame allow about 9346 FPS
+        final DeviceEmulator.Report report = new DeviceEmulator( settings( layout, false, 10_000 ) ).run( createProject( layout, 12, 3 ) );
+        assertFalse( report.meetsTarget() );
+    }
+
+    @Test
+    void runsExportedHeader(@TempDir Path dir) throws Exception
+    {
+        final DisplayLayout layout = DisplayLayout.of( 4, 1 );
+        final Project project = createProject( layout, 12, 3 );
+        final File file = dir.resolve( "frames.h" ).toFile();
+        Files.writeString( file.toPath(), project.toDataString() );
+
+        final Project loaded = DeviceEmulator.loadProject( file );
+        assertEquals( layout, loaded.getLayout() );
+        final DeviceEmulator.Report report = new DeviceEmulator( settings( layout, true, 60 ) ).run( loaded );
+        assertFrame( report.frames().get( 0 ), 8, 64, 64, 43 );
+        assertFrame( report.frames().get( 1 ), 1, 8, 8, 26.375 );
+    }
+}
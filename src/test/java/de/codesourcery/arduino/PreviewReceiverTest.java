@@ -0,0 +1,66 @@
+package de.codesourcery.arduino;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+class PreviewReceiverTest
+{
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    // one pixel per frame, walking across all modules
+    private static Project createProject(DisplayLayout layout)
+    {
+        final List<Image> frames = new ArrayList<>();
+        for ( int i = 0; i < 2 * layout.getModuleCount(); i++ )
+        {
+            final Image frame = new Image( layout.getStore() );
+            frame.set( ( i * 5 ) % layout.getWidth(), ( i * 3 ) % layout.getHeight(), true );
+            frames.add( frame );
+        }
+        return new Project( "test", null, layout, frames );
+    }
+
+    @ParameterizedTest
+    @CsvSource( { "1,1", "4,1" } )
+    void receivesStreamedFrames(int modulesX, int modulesY) throws Exception
+    {
+        final Project project = createProject( DisplayLayout.of( modulesX, modulesY ) );
+        final List<Image> frames = project.getImages();
+        final byte[] last = project.toExportBytes( frames.getLast() );
+        final AtomicInteger next = new AtomicInteger();
+
+        try ( PreviewReceiver receiver = PreviewReceiver.listen( 0 ) )
+        {
+            // every tick offers the next frame, the last one stays
+            try ( PreviewStreamer streamer = PreviewStreamer.connect( "localhost", receiver.getPort(),
+                () -> project.toExportBytes( frames.get( Math.min( next.getAndIncrement(), frames.size() - 1 ) ) ) ) )
+            {
+                final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+                while ( ! received( receiver, last ) && System.currentTimeMillis() < deadline ) {
+                    Thread.sleep( 10 );
+                }
+                assertFalse( streamer.isFailed() );
+            }
+            assertArrayEquals( last, receiver.getFrames().getLast() );
+            assertTrue( receiver.matches( project ) );
+
+            final Project other = createProject( DisplayLayout.of( modulesX, modulesY ) );
+            other.getImages().forEach( img -> img.set( 0, 7, ! img.isSet( 0, 7 ) ) );
+            assertFalse( receiver.matches( other ) );
+        }
+    }
+
+    private static boolean received(PreviewReceiver receiver, byte[] frame)
+    {
+        final List<byte[]> frames = receiver.getFrames();
+        return ! frames.isEmpty() && Arrays.equals( frames.getLast(), frame );
+    }
+}